@@ -3,7 +3,10 @@ package nitrous;
 import nitrous.cpu.Emulator;
 import nitrous.mbc.*;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * An internal information area located at 0100-014F in each cartridge.
@@ -87,9 +90,27 @@ public class Cartridge
     public final boolean isJapanese;
 
     /**
-     * Raw ROM data.
+     * The size of a ROM bank, 16k.
      */
-    public final byte[] rom;
+    public static final int BANK_SIZE = 0x4000;
+
+    /**
+     * The offset of the last byte of the cartridge header; a ROM image must be at least this long + 1.
+     */
+    public static final int HEADER_END = 0x014F;
+
+    /**
+     * ROM banks which have been materialized so far; unmapped banks are null until a game first switches to them.
+     * <p/>
+     * Cartridges obtained through {@link ROMStore} are shared between sessions, so these must never be written to.
+     */
+    private final AtomicReferenceArray<byte[]> banks;
+
+    /**
+     * The image banks are materialized from on first use, or null if every bank was supplied up front.
+     * Usually a read-only memory mapping of the ROM file.
+     */
+    private final ByteBuffer source;
 
     /**
      * Cartridge checksum.
@@ -103,7 +124,35 @@ public class Cartridge
      */
     public Cartridge(byte[] rom)
     {
-        this.rom = rom;
+        this(split(rom), null);
+    }
+
+    /**
+     * Creates a new Cartridge whose banks are copied out of a buffer only when first mapped.
+     * <p/>
+     * When the buffer is a memory mapping of the ROM file, ROM banks a game never touches are never read.
+     *
+     * @param rom The ROM image; must not be modified afterwards.
+     */
+    public Cartridge(ByteBuffer rom)
+    {
+        this(new byte[(rom.capacity() + BANK_SIZE - 1) / BANK_SIZE][], rom);
+    }
+
+    /**
+     * Creates a new Cartridge from already split ROM banks.
+     *
+     * @param banks  The ROM banks; entries may be null if they can be read from source.
+     * @param source The image to read missing banks from, or null if none are missing.
+     */
+    Cartridge(byte[][] banks, ByteBuffer source)
+    {
+        this.banks = new AtomicReferenceArray<>(banks);
+        this.source = source;
+
+        // The header lives in the first bank, which every game maps anyway
+        byte[] rom = getBank(0);
+        if (rom.length <= HEADER_END) throw new IllegalArgumentException("ROM image too small");
 
         /**
          * 0143 - CGB Flag
@@ -166,22 +215,8 @@ public class Cartridge
          * 53h - 1.2MByte (80 banks)
          * 54h - 1.5MByte (96 banks)
          */
-        byte romSize = rom[0x0148];
-        switch (romSize)
-        {
-            case 52:
-                this.romBanks = 72;
-                break;
-            case 53:
-                this.romBanks = 80;
-                break;
-            case 54:
-                this.romBanks = 96;
-                break;
-            default:
-                this.romBanks = (int) Math.pow(2, romSize + 1);
-        }
-        if (rom.length != 16384 * romBanks) throw new AssertionError();
+        this.romBanks = romBanks(rom[0x0148]);
+        if (banks.length != romBanks) throw new AssertionError();
 
         /**
          * 0149 - RAM Size
@@ -214,6 +249,104 @@ public class Cartridge
         this.checksum = chk & 0xFF;
     }
 
+    /**
+     * Decodes the ROM size byte (0148) of the cartridge header.
+     * See the table in {@link #Cartridge(byte[][], ByteBuffer)}.
+     *
+     * @param romSize The ROM size byte.
+     * @return The number of 16k banks, or -1 if the value is not a known size.
+     */
+    public static int romBanks(byte romSize)
+    {
+        switch (romSize)
+        {
+            case 0x52:
+                return 72;
+            case 0x53:
+                return 80;
+            case 0x54:
+                return 96;
+            default:
+                if (romSize < 0 || romSize > 0x08) return -1;
+                return 2 << romSize;
+        }
+    }
+
+    /**
+     * Verifies the header checksum (014D) of a ROM image, as the boot ROM does before starting a game.
+     * <p/>
+     * Contains an 8 bit checksum across the cartridge header bytes 0134-014C. The checksum is calculated as follows:
+     * <pre>
+     * x=0:FOR i=0134h TO 014Ch:x=x-MEM[i]-1:NEXT
+     * </pre>
+     * The lower 8 bits of the result must be the same than the value in this entry. The GAME WON'T WORK if this
+     * checksum is incorrect.
+     *
+     * @param header At least the first 0150h bytes of the ROM image.
+     * @return Whether the checksum matches.
+     */
+    public static boolean isHeaderValid(byte[] header)
+    {
+        if (header.length <= HEADER_END) return false;
+        int x = 0;
+        for (int i = 0x134; i <= 0x14C; i++)
+            x = x - header[i] - 1;
+        return (x & 0xFF) == (header[0x14D] & 0xFF);
+    }
+
+    /**
+     * Splits a flat ROM image into banks.
+     *
+     * @param rom The raw ROM data.
+     * @return The ROM data, in 16k chunks.
+     */
+    private static byte[][] split(byte[] rom)
+    {
+        byte[][] banks = new byte[(rom.length + BANK_SIZE - 1) / BANK_SIZE][];
+        for (int i = 0; i < banks.length; i++)
+            banks[i] = Arrays.copyOfRange(rom, i * BANK_SIZE, (i + 1) * BANK_SIZE);
+        return banks;
+    }
+
+    /**
+     * Fetches the contents of a ROM bank, reading it from the backing image if this is the first time it is used.
+     * <p/>
+     * This is only called on bank switches, never on individual reads.
+     *
+     * @param bank The bank number; wraps around if past the end of the ROM, as on hardware.
+     * @return The 16k of data in the bank; must not be modified.
+     */
+    public byte[] getBank(int bank)
+    {
+        bank %= banks.length();
+        byte[] data = banks.get(bank);
+        if (data == null)
+        {
+            data = new byte[BANK_SIZE];
+            ByteBuffer view = source.duplicate();
+            view.position(bank * BANK_SIZE);
+            view.get(data, 0, Math.min(BANK_SIZE, view.remaining()));
+
+            // Another session may have raced us to it; make sure everyone sees the same array
+            if (!banks.compareAndSet(bank, null, data))
+                data = banks.get(bank);
+        }
+        return data;
+    }
+
+    /**
+     * Retrieves the number of ROM banks which have been read from the backing image so far.
+     *
+     * @return The number of materialized banks.
+     */
+    public int getLoadedBanks()
+    {
+        int loaded = 0;
+        for (int i = 0; i < banks.length(); i++)
+            if (banks.get(i) != null) loaded++;
+        return loaded;
+    }
+
     /**
      * Checks whether this cartridge has a battery.
      *
@@ -228,6 +361,7 @@ public class Cartridge
             case 0x09: // ROM+RAM+BATTERY
             case 0x1B: // ROM+MBC5+RAM+BATT
             case 0x1E: // ROM+MBC5+RUMBLE+SRAM+BATT
+            case 0x0F: // ROM+MBC3+TIMER+BATT
             case 0x10: // ROM+MBC3+TIMER+RAM+BATT
             case 0x13: // ROM+MBC3+RAM+BAT
             case 0x06: // ROM+MBC2+BATTERY
@@ -238,6 +372,16 @@ public class Cartridge
         }
     }
 
+    /**
+     * Checks whether this cartridge has a real time clock.
+     *
+     * @return Whether the cartridge contains an MBC3 timer.
+     */
+    public boolean hasTimer()
+    {
+        return cartridgeType == 0x0F || cartridgeType == 0x10;
+    }
+
     /**
      * Creates a memory controlled for the given Emulator.
      *
@@ -260,6 +404,7 @@ public class Cartridge
             case 0x05:
             case 0x06:
                 return new MBC2(core);
+            case 0x0F:
             case 0x10:
             case 0x11:
             case 0x12:
@@ -0,0 +1,279 @@
+package nitrous;
+
+import nitrous.cpu.Emulator;
+import nitrous.lcd.LCD;
+import nitrous.sound.SoundManager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A snapshot of all mutable guest state of an {@link Emulator}, held in one contiguous direct buffer.
+ * <p/>
+ * Every component writes its state at a fixed offset into the arena:
+ * <pre>
+ *     0000                  header: magic, version, cartridge checksum, arena size
+ *     {@link #CPU_OFFSET}                  CPU registers, flags and cycle counters ({@link Emulator#STATE_SIZE} bytes)
+ *     {@link #memoryOffset}          bank selection, then IO registers/HRAM, OAM, vram, wram and cart ram
+ *     {@link #lcdOffset}             palette memory and the LCD cycle counter ({@link LCD#STATE_SIZE} bytes)
+ *     {@link #soundOffset}           sample clock and the timing state of the four sound channels
+ *                           ({@link SoundManager#STATE_SIZE} bytes)
+ * </pre>
+ * The layout only depends on the cartridge (and whether the session is compact, which changes how much cart ram
+ * there is), so once captured, a state can be cloned or persisted with a single bulk copy of the arena, and any
+ * session running the same cartridge can be restored from it. This makes it cheap to fork sessions for tree search,
+ * or to keep a ring of states for rewinding.
+ * <p/>
+ * The guest keeps running on its usual heap arrays, so emulation is no slower for using an arena; capturing and
+ * restoring are bulk copies of those arrays.
+ * <p/>
+ * States must be captured and restored while the emulation thread is paused (e.g. with {@link
+ * Emulator#executeLock()} held), or from the emulation thread itself.
+ *
+ * @author Tudor
+ */
+public class MachineState
+{
+    /**
+     * The magic number at the start of every arena, "NXST".
+     */
+    public static final int MAGIC = 0x4E585354;
+
+    /**
+     * The version of the arena layout.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The size of the arena header, in bytes.
+     */
+    public static final int HEADER_SIZE = 0x10;
+
+    /**
+     * The offset of the CPU region.
+     */
+    public static final int CPU_OFFSET = HEADER_SIZE;
+
+    /**
+     * The offset of the memory region.
+     */
+    public final int memoryOffset;
+
+    /**
+     * The offset of the LCD region.
+     */
+    public final int lcdOffset;
+
+    /**
+     * The offset of the sound region.
+     */
+    public final int soundOffset;
+
+    /**
+     * The checksum of the cartridge this state belongs to.
+     */
+    private final int checksum;
+
+    /**
+     * The arena itself.
+     */
+    private final ByteBuffer arena;
+
+    /**
+     * Allocates an empty arena laid out for a session.
+     *
+     * @param core The session whose state this arena will hold.
+     */
+    public MachineState(Emulator core)
+    {
+        this(core.cartridge.checksum, core.mmu.getStateSize());
+    }
+
+    /**
+     * Allocates an empty arena.
+     *
+     * @param checksum   The checksum of the cartridge this state belongs to.
+     * @param memorySize The size of the memory region.
+     */
+    private MachineState(int checksum, int memorySize)
+    {
+        this.checksum = checksum;
+        memoryOffset = CPU_OFFSET + Emulator.STATE_SIZE;
+        lcdOffset = memoryOffset + memorySize;
+        soundOffset = lcdOffset + LCD.STATE_SIZE;
+
+        arena = ByteBuffer.allocateDirect(soundOffset + SoundManager.STATE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        arena.putInt(0, MAGIC);
+        arena.putInt(4, VERSION);
+        arena.putInt(8, checksum);
+        arena.putInt(12, arena.capacity());
+    }
+
+    /**
+     * Captures the current state of a session into a new arena.
+     *
+     * @param core The session to capture.
+     * @return The captured state.
+     */
+    public static MachineState of(Emulator core)
+    {
+        MachineState state = new MachineState(core);
+        state.capture(core);
+        return state;
+    }
+
+    /**
+     * Checks that a session has the same layout as this arena.
+     *
+     * @param core The session.
+     * @throws IllegalArgumentException if the session runs a different cartridge, or has a different amount of ram.
+     */
+    private void check(Emulator core)
+    {
+        if (core.cartridge.checksum != checksum || memoryOffset + core.mmu.getStateSize() != lcdOffset)
+            throw new IllegalArgumentException("state does not belong to " + core.cartridge.gameTitle);
+    }
+
+    /**
+     * Copies the state of a session into this arena, overwriting whatever it held.
+     *
+     * @param core The session to capture.
+     */
+    public void capture(Emulator core)
+    {
+        check(core);
+
+        ByteBuffer out = arena.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        out.position(CPU_OFFSET);
+        core.saveState(out);
+        out.position(memoryOffset);
+        core.mmu.saveState(out);
+        out.position(lcdOffset);
+        core.lcd.saveState(out);
+        out.position(soundOffset);
+        core.sound.saveState(out);
+    }
+
+    /**
+     * Replaces the state of a session with the one held in this arena.
+     *
+     * @param core The session to restore; it must run the same cartridge as the one this state was captured from.
+     */
+    public void restore(Emulator core)
+    {
+        check(core);
+
+        ByteBuffer in = arena.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(CPU_OFFSET);
+        core.loadState(in);
+        in.position(memoryOffset);
+        core.mmu.loadState(in);
+        in.position(lcdOffset);
+        core.lcd.loadState(in);
+        in.position(soundOffset);
+        core.sound.loadState(in);
+    }
+
+    /**
+     * Overwrites this arena with the contents of another, in a single bulk copy.
+     *
+     * @param other A state with the same layout.
+     */
+    public void copyFrom(MachineState other)
+    {
+        if (other.arena.capacity() != arena.capacity() || other.checksum != checksum)
+            throw new IllegalArgumentException("states have different layouts");
+
+        ByteBuffer out = arena.duplicate();
+        out.clear();
+        ByteBuffer in = other.arena.duplicate();
+        in.clear();
+        out.put(in);
+    }
+
+    /**
+     * Creates an independent copy of this state.
+     *
+     * @return The copy.
+     */
+    public MachineState copy()
+    {
+        MachineState copy = new MachineState(checksum, lcdOffset - memoryOffset);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * Writes the whole arena to a channel.
+     *
+     * @param channel The channel to write to.
+     * @throws IOException if the channel can't be written to.
+     */
+    public void write(WritableByteChannel channel) throws IOException
+    {
+        ByteBuffer out = arena.duplicate();
+        out.clear();
+        while (out.hasRemaining())
+            channel.write(out);
+    }
+
+    /**
+     * Reads an arena previously written by {@link #write} into this one.
+     *
+     * @param channel The channel to read from.
+     * @throws IOException if the channel can't be read, or doesn't hold a state with this arena's layout.
+     */
+    public void read(ReadableByteChannel channel) throws IOException
+    {
+        // Validate the header before touching the current contents
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException("not a machine state");
+        if (header.getInt(8) != checksum || header.getInt(12) != arena.capacity())
+            throw new IOException("machine state does not belong to this cartridge");
+
+        ByteBuffer in = arena.duplicate();
+        in.clear().position(HEADER_SIZE);
+        readFully(channel, in);
+    }
+
+    /**
+     * Fills a buffer from a channel.
+     *
+     * @param channel The channel to read from.
+     * @param buffer  The buffer to fill.
+     * @throws IOException if the channel ends before the buffer is full.
+     */
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0) throw new EOFException("machine state is truncated");
+    }
+
+    /**
+     * Retrieves the size of the arena.
+     *
+     * @return The size, in bytes.
+     */
+    public int size()
+    {
+        return arena.capacity();
+    }
+
+    /**
+     * Retrieves a read-only view of the arena, e.g. for hashing or comparing states.
+     *
+     * @return A view of the whole arena, little-endian.
+     */
+    public ByteBuffer getBuffer()
+    {
+        ByteBuffer view = arena.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        view.clear();
+        return view;
+    }
+}
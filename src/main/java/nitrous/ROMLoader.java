@@ -0,0 +1,192 @@
+package nitrous;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Loads ROM images from disk.
+ * <p/>
+ * Plain images (*.gb, *.gbc, *.rom) are memory-mapped, so ROM banks are only read once a game first maps them.
+ * Packed images (*.zip, *.gz) are decompressed straight into ROM banks, with no temporary files; the header is
+ * validated before anything past the first bank is read. Either way, the resulting {@link Cartridge} is shared
+ * through the {@link ROMStore}: packed images by the hash of their content, which is computed as they stream past,
+ * and mapped images by the identity of their file, so mapping one never reads more than its header. Two copies of
+ * the same image at different paths are therefore mapped separately.
+ *
+ * @author Tudor
+ */
+public class ROMLoader
+{
+    /**
+     * Checks whether a file name has an extension of a plain ROM image.
+     *
+     * @param name The file name.
+     * @return Whether the file is a plain ROM image.
+     */
+    public static boolean isROM(String name)
+    {
+        name = name.toLowerCase();
+        return name.endsWith(".gb") || name.endsWith(".gbc") || name.endsWith(".rom");
+    }
+
+    /**
+     * Checks whether a file name has an extension this loader can read.
+     *
+     * @param name The file name.
+     * @return Whether the file is a plain or packed ROM image.
+     */
+    public static boolean isSupported(String name)
+    {
+        String lower = name.toLowerCase();
+        return isROM(name) || lower.endsWith(".zip") || lower.endsWith(".gz");
+    }
+
+    /**
+     * Loads a ROM image.
+     *
+     * @param path The image to load.
+     * @return A cartridge for the image, shared with any session already running it.
+     * @throws IOException if the file can't be read, or doesn't contain a valid ROM image.
+     */
+    public static Cartridge load(Path path) throws IOException
+    {
+        String name = path.getFileName().toString().toLowerCase();
+
+        if (name.endsWith(".zip"))
+        {
+            try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(path.toFile()))))
+            {
+                // Use the first ROM image in the archive
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null)
+                {
+                    if (!entry.isDirectory() && isROM(entry.getName()))
+                        return load(in);
+                }
+            }
+            throw new IOException("no ROM image in " + path);
+        }
+
+        if (name.endsWith(".gz"))
+        {
+            try (InputStream in = new GZIPInputStream(new FileInputStream(path.toFile())))
+            {
+                return load(in);
+            }
+        }
+
+        return map(path);
+    }
+
+    /**
+     * Reads a ROM image from a stream, one bank at a time.
+     * <p/>
+     * The first bank is checked before any other is read, so garbage input is rejected without reading it in full.
+     *
+     * @param in The stream to read from; it is not closed.
+     * @return A cartridge for the image.
+     * @throws IOException if the stream can't be read, or doesn't contain a valid ROM image.
+     */
+    public static Cartridge load(InputStream in) throws IOException
+    {
+        // Hash the image while it streams past, instead of in a second pass
+        MessageDigest digest = ROMStore.digest();
+        DigestInputStream hashing = new DigestInputStream(in, digest);
+
+        byte[] header = new byte[Cartridge.BANK_SIZE];
+        readFully(hashing, header);
+        byte[][] banks = new byte[validate(header)][];
+        banks[0] = header;
+
+        for (int i = 1; i < banks.length; i++)
+        {
+            banks[i] = new byte[Cartridge.BANK_SIZE];
+            readFully(hashing, banks[i]);
+        }
+
+        String hash = ROMStore.toHex(digest);
+        Cartridge cartridge = ROMStore.lookup(hash);
+        return cartridge != null ? cartridge : ROMStore.put(hash, new Cartridge(banks, null));
+    }
+
+    /**
+     * Memory-maps a plain ROM image.
+     *
+     * @param path The image to map.
+     * @return A cartridge for the image.
+     * @throws IOException if the file can't be read, or doesn't contain a valid ROM image.
+     */
+    private static Cartridge map(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < Cartridge.BANK_SIZE) throw new IOException("ROM image too small");
+
+            // Read the header through the channel, so a bad image never gets mapped
+            byte[] header = new byte[Cartridge.HEADER_END + 1];
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, buffer.position()) < 0) throw new EOFException();
+            int banks = validate(header);
+            if (size < (long) banks * Cartridge.BANK_SIZE)
+                throw new IOException("ROM image is smaller than its header claims");
+
+            // Hashing the content would read the whole image, so key it by its file instead; a file rewritten since
+            // gets a new key
+            String key = "file:" + path.toRealPath() + ":" + size + ":" + Files.getLastModifiedTime(path).toMillis();
+            Cartridge cartridge = ROMStore.lookup(key);
+            if (cartridge != null) return cartridge;
+
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer rom = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) banks * Cartridge.BANK_SIZE);
+            return ROMStore.put(key, new Cartridge(rom));
+        }
+    }
+
+    /**
+     * Validates a cartridge header.
+     *
+     * @param header At least the first 0150h bytes of a ROM image.
+     * @return The number of ROM banks the image should contain.
+     * @throws IOException if the header is not valid.
+     */
+    private static int validate(byte[] header) throws IOException
+    {
+        if (!Cartridge.isHeaderValid(header))
+            throw new IOException("invalid ROM header checksum");
+
+        int banks = Cartridge.romBanks(header[0x0148]);
+        if (banks < 0)
+            throw new IOException("unknown ROM size " + Integer.toHexString(header[0x0148] & 0xFF));
+        return banks;
+    }
+
+    /**
+     * Fills a buffer from a stream.
+     *
+     * @param in     The stream to read from.
+     * @param buffer The buffer to fill.
+     * @throws IOException if the stream ends before the buffer is full.
+     */
+    private static void readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int read = 0;
+        while (read < buffer.length)
+        {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n == -1) throw new EOFException("ROM image is smaller than its header claims");
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package nitrous;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Process-wide store of loaded {@link Cartridge} images, keyed by the hash of their content, or for images mapped
+ * from a file, by the file's path, size and modification time (see {@link ROMLoader}).
+ * <p/>
+ * A {@link Cartridge} is never modified after construction, so every session running the same ROM image can share
+ * one instance: the ROM bytes are held once, and the header is only parsed once. Entries are weakly referenced, so
+ * an image is evicted as soon as the last {@link nitrous.cpu.Emulator} using it is collected.
+ *
+ * @author Tudor
+ */
+public class ROMStore
+{
+    /**
+     * Cached cartridges, by content hash.
+     */
+    private static final HashMap<String, Entry> cartridges = new HashMap<>();
+
+    /**
+     * Queue notified of cartridges that have been collected, so their entries can be removed.
+     */
+    private static final ReferenceQueue<Cartridge> collected = new ReferenceQueue<>();
+
+    /**
+     * A weak reference to a cached cartridge which remembers the key it is stored under.
+     */
+    private static class Entry extends WeakReference<Cartridge>
+    {
+        /**
+         * The content hash this entry is stored under.
+         */
+        final String hash;
+
+        /**
+         * Creates a new Entry.
+         *
+         * @param hash      The content hash of the cartridge.
+         * @param cartridge The cartridge to reference.
+         */
+        Entry(String hash, Cartridge cartridge)
+        {
+            super(cartridge, collected);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Computes the content hash of a ROM image.
+     *
+     * @param rom The raw ROM data.
+     * @return The hexadecimal SHA-1 of the ROM data.
+     */
+    public static String hash(byte[] rom)
+    {
+        MessageDigest digest = digest();
+        digest.update(rom);
+        return toHex(digest);
+    }
+
+    /**
+     * Creates the digest used to hash ROM content, for callers hashing an image as they stream it in.
+     *
+     * @return A fresh SHA-1 digest.
+     */
+    public static MessageDigest digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Completes a digest created by {@link #digest()} into a store key.
+     *
+     * @param digest The digest, updated with the entire ROM image.
+     * @return The hexadecimal hash.
+     */
+    public static String toHex(MessageDigest digest)
+    {
+        byte[] hash = digest.digest();
+        return String.format("%0" + (hash.length << 1) + "X", new BigInteger(1, hash));
+    }
+
+    /**
+     * Fetches the shared cartridge for a ROM image, creating it if no live session uses this image.
+     * <p/>
+     * The array passed in is not retained if an equal image is already cached, so callers may safely discard it.
+     *
+     * @param rom The raw ROM data.
+     * @return A cartridge for the image, shared with every other session running it.
+     */
+    public static Cartridge get(byte[] rom)
+    {
+        String hash = hash(rom);
+        Cartridge cartridge = lookup(hash);
+        return cartridge != null ? cartridge : put(hash, new Cartridge(rom));
+    }
+
+    /**
+     * Looks up a cached cartridge.
+     *
+     * @param hash The content hash of the image, as produced by {@link #hash} or {@link #toHex}, or another key.
+     * @return The shared cartridge, or null if no live session uses this image.
+     */
+    public static Cartridge lookup(String hash)
+    {
+        synchronized (cartridges)
+        {
+            expunge();
+
+            Entry entry = cartridges.get(hash);
+            return entry != null ? entry.get() : null;
+        }
+    }
+
+    /**
+     * Adds a cartridge to the store.
+     * <p/>
+     * If another thread has stored the same image in the meantime, that cartridge wins and is returned instead.
+     *
+     * @param hash      The content hash of the image, or another key.
+     * @param cartridge The newly created cartridge.
+     * @return The cartridge that is now shared for this image.
+     */
+    public static Cartridge put(String hash, Cartridge cartridge)
+    {
+        synchronized (cartridges)
+        {
+            expunge();
+
+            Entry entry = cartridges.get(hash);
+            Cartridge existing = entry != null ? entry.get() : null;
+            if (existing != null) return existing;
+
+            cartridges.put(hash, new Entry(hash, cartridge));
+            return cartridge;
+        }
+    }
+
+    /**
+     * Retrieves the number of distinct ROM images currently held in the store.
+     *
+     * @return The number of live cached images.
+     */
+    public static int size()
+    {
+        synchronized (cartridges)
+        {
+            expunge();
+            return cartridges.size();
+        }
+    }
+
+    /**
+     * Removes entries whose cartridge is no longer used by any session.
+     * Must be called with the store locked.
+     */
+    private static void expunge()
+    {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null)
+        {
+            // Only remove the mapping if it hasn't already been replaced with a newer entry
+            if (cartridges.get(entry.hash) == entry)
+                cartridges.remove(entry.hash);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package nitrous;
 
 import nitrous.cpu.R;
+import nitrous.lcd.ColorCorrection;
+import nitrous.lcd.FrameSkip;
 import nitrous.lcd.Interpolator;
 import nitrous.ui.Keybinding;
 
@@ -50,6 +52,16 @@ public class Settings
      */
     private static Interpolator interpolator;
 
+    /**
+     * The colour correction applied to Gameboy Color games.
+     */
+    private static ColorCorrection colorCorrection;
+
+    /**
+     * Which frames are rendered.
+     */
+    private static FrameSkip frameSkip;
+
     /**
      * Interface for a listener to activate on CPU clock speed change.
      *
@@ -99,10 +111,16 @@ public class Settings
 
         speed = getEnum("speed", EmulateSpeed.SINGLE);
         interpolator = getEnum("interpolator", Interpolator.NEAREST);
+        colorCorrection = getEnum("colorCorrection", ColorCorrection.NONE);
+        frameSkip = getEnum("frameSkip", FrameSkip.NONE);
 
-        // Find the maximum possible magnification.
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        int maxMag = Math.min(screen.width / R.W, screen.height / R.H);
+        // Find the maximum possible magnification; there's no screen to fit when running headlessly.
+        int maxMag = Integer.MAX_VALUE;
+        if (!GraphicsEnvironment.isHeadless())
+        {
+            Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+            maxMag = Math.min(screen.width / R.W, screen.height / R.H);
+        }
 
         // Cap the stored magnification with maximum possible.
         magnification = Math.max(1, Math.min(maxMag, storage.getInt("magnification", 2)));
@@ -385,6 +403,48 @@ public class Settings
         storage.putInt("interpolator", interpolator.ordinal());
     }
 
+    /**
+     * Retrieves the current colour correction setting.
+     *
+     * @return the {@link ColorCorrection} enumeration that represents the current colour correction
+     */
+    public static ColorCorrection getColorCorrection()
+    {
+        return colorCorrection;
+    }
+
+    /**
+     * Alters the current colour correction setting.
+     *
+     * @param colorCorrection the {@link ColorCorrection} enumeration that represents the new colour correction
+     */
+    public static void setColorCorrection(ColorCorrection colorCorrection)
+    {
+        Settings.colorCorrection = colorCorrection;
+        storage.putInt("colorCorrection", colorCorrection.ordinal());
+    }
+
+    /**
+     * Retrieves the current frame skip setting.
+     *
+     * @return the {@link FrameSkip} enumeration that represents the current frame skip policy
+     */
+    public static FrameSkip getFrameSkip()
+    {
+        return frameSkip;
+    }
+
+    /**
+     * Alters the current frame skip setting.
+     *
+     * @param frameSkip the {@link FrameSkip} enumeration that represents the new frame skip policy
+     */
+    public static void setFrameSkip(FrameSkip frameSkip)
+    {
+        Settings.frameSkip = frameSkip;
+        storage.putInt("frameSkip", frameSkip.ordinal());
+    }
+
     /**
      * Retrieves the current magnification setting.
      *
@@ -0,0 +1,402 @@
+package nitrous;
+
+import nitrous.cpu.Emulator;
+import nitrous.lcd.Frame;
+import nitrous.lcd.FrameCapture;
+import nitrous.lcd.FrameSink;
+import nitrous.lcd.PixelFormat;
+import nitrous.sound.SampleSink;
+import nitrous.sound.SoundChannel;
+import nitrous.sound.SoundManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static nitrous.cpu.R.H;
+import static nitrous.cpu.R.W;
+
+/**
+ * Exports every completed frame and block of audio into a memory-mapped file, for other processes to poll.
+ * <p/>
+ * The file is a header followed by two rings of fixed-size slots, one for frames and one for audio blocks. All
+ * values are little-endian:
+ * <pre>
+ *     0x00  int   magic, "NXSM" ({@link #MAGIC})
+ *     0x04  int   layout version ({@link #VERSION})
+ *     0x08  int   header size
+ *     0x0C  int   pixel format: 0 RGB, 1 BGRA, 2 RGB565, 3 INDEXED (see {@link PixelFormat})
+ *     0x10  int   frame width, in pixels
+ *     0x14  int   frame height, in pixels
+ *     0x18  int   bytes per pixel
+ *     0x1C  int   number of frame slots
+ *     0x20  int   size of a frame slot
+ *     0x24  int   offset of the first frame slot
+ *     0x28  int   sample rate, in Hz
+ *     0x2C  int   channels, interleaved left first
+ *     0x30  int   bits per sample; samples are signed and big-endian, as generated
+ *     0x34  int   size of an audio block
+ *     0x38  int   number of audio slots
+ *     0x3C  int   size of an audio slot
+ *     0x40  int   offset of the first audio slot
+ *     0x44  int   1 while the emulator is running, 0 once it has closed
+ *     0x48  long  number of frames written
+ *     0x50  long  number of audio blocks written
+ * </pre>
+ * Frame (or block) <i>n</i>, counting from 0, goes in slot <i>n</i> modulo the number of slots. Each slot starts
+ * with its sequence number twice, at 0x00 and 0x08, followed by the data at 0x10: a frame is width &times; height
+ * pixels, row by row, then for INDEXED the RGB value of each of {@link Frame#PALETTE_SIZE} colour indices for each
+ * row, as ints.
+ * <p/>
+ * A slot is written as: the sequence at 0x00, the data, the sequence at 0x08, and then the count in the header. To
+ * read the latest frame, a reader takes <i>n</i> = count - 1, reads the sequence at 0x08, copies the data, then reads
+ * the sequence at 0x00; if both are <i>n</i>, the copy is whole, and otherwise the slot was overwritten while it was
+ * being read and the copy must be discarded. Readers in any language can follow this without locking, and never
+ * hold up the emulator: one polling too slowly just sees gaps in the sequence.
+ * <p/>
+ * Writing a frame or block costs a single bulk copy into the mapping, plus a few stores; nothing on the hot path
+ * makes a system call. Keep the file on a memory-backed filesystem, such as /dev/shm, to keep it off the disk.
+ * Frames are written on whichever thread draws scanlines, and audio on the emulation thread.
+ *
+ * @author Tudor
+ */
+public class SharedMemoryExporter implements FrameSink, SampleSink
+{
+    /**
+     * The magic number at the start of the file, "NXSM".
+     */
+    public static final int MAGIC = 0x4E58534D;
+
+    /**
+     * The version of the file layout.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The size of the header, in bytes.
+     */
+    public static final int HEADER_SIZE = 0x80;
+
+    /**
+     * The size of a slot's header, holding its sequence number twice, in bytes.
+     */
+    public static final int SLOT_HEADER_SIZE = 0x10;
+
+    /**
+     * The default number of frame slots. Overridden by the nox.sharedMemoryFrames system property.
+     */
+    public static final int DEFAULT_FRAME_SLOTS = 4;
+
+    /**
+     * The default number of audio slots, about a third of a second's worth. Overridden by the
+     * nox.sharedMemoryBlocks system property.
+     */
+    public static final int DEFAULT_AUDIO_SLOTS = 128;
+
+    /**
+     * The offset of the running flag in the header.
+     */
+    private static final int RUNNING = 0x44;
+
+    /**
+     * The offset of the frame count in the header.
+     */
+    private static final int FRAMES_WRITTEN = 0x48;
+
+    /**
+     * The offset of the audio block count in the header.
+     */
+    private static final int BLOCKS_WRITTEN = 0x50;
+
+    /**
+     * The mapped file.
+     */
+    private final MappedByteBuffer mapping;
+
+    /**
+     * The capture frames are exported from; set it as the LCD's scanline sink.
+     */
+    private final FrameCapture capture;
+
+    /**
+     * A view of each frame slot.
+     */
+    private final ByteBuffer[] frameSlots;
+
+    /**
+     * A view of each frame slot's palettes, for {@link PixelFormat#INDEXED}; otherwise null.
+     */
+    private final IntBuffer[] paletteSlots;
+
+    /**
+     * A view of each audio slot.
+     */
+    private final ByteBuffer[] audioSlots;
+
+    /**
+     * The number of audio blocks written. Only written by the emulation thread.
+     */
+    private volatile long blocks;
+
+    /**
+     * Written and read back between stores other processes must see in order; see {@link #fence()}.
+     */
+    private volatile int fence;
+
+    /**
+     * Maps an export file and writes its header.
+     *
+     * @param file       The file; created if it doesn't exist, and resized to fit.
+     * @param format     The format to export frames in.
+     * @param frameSlots The number of frame slots.
+     * @param audioSlots The number of audio slots.
+     * @throws IOException              if the file can't be mapped.
+     * @throws IllegalArgumentException if either ring has no slots, or the rings are too large to map.
+     */
+    public SharedMemoryExporter(File file, PixelFormat format, int frameSlots, int audioSlots) throws IOException
+    {
+        if (frameSlots < 1 || audioSlots < 1)
+            throw new IllegalArgumentException("shared memory rings need at least one slot each");
+
+        int pixelBytes = W * H * format.bytesPerPixel;
+        int paletteBytes = format == PixelFormat.INDEXED ? H * Frame.PALETTE_SIZE * 4 : 0;
+        int frameSlotSize = align(SLOT_HEADER_SIZE + pixelBytes + paletteBytes);
+        int audioSlotSize = align(SLOT_HEADER_SIZE + SoundManager.BLOCK_SIZE);
+
+        // A single mapping can't exceed 2 GB, which is also what keeps the slot offsets below from overflowing
+        long total = HEADER_SIZE + (long) frameSlots * frameSlotSize + (long) audioSlots * audioSlotSize;
+        if (total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("shared memory rings too large to map: " + total + " bytes");
+        int audioOffset = HEADER_SIZE + frameSlots * frameSlotSize;
+        int size = (int) total;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            // The mapping stays valid after the file is closed
+            raf.setLength(size);
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        this.frameSlots = new ByteBuffer[frameSlots];
+        this.paletteSlots = paletteBytes > 0 ? new IntBuffer[frameSlots] : null;
+        for (int i = 0; i < frameSlots; i++)
+        {
+            this.frameSlots[i] = slot(HEADER_SIZE + i * frameSlotSize, frameSlotSize);
+            if (paletteSlots != null)
+            {
+                ByteBuffer palettes = slot(HEADER_SIZE + i * frameSlotSize + SLOT_HEADER_SIZE + pixelBytes, paletteBytes);
+                paletteSlots[i] = palettes.asIntBuffer();
+            }
+        }
+        this.audioSlots = new ByteBuffer[audioSlots];
+        for (int i = 0; i < audioSlots; i++)
+            this.audioSlots[i] = slot(audioOffset + i * audioSlotSize, audioSlotSize);
+
+        mapping.putInt(0x00, MAGIC);
+        mapping.putInt(0x04, VERSION);
+        mapping.putInt(0x08, HEADER_SIZE);
+        mapping.putInt(0x0C, format.ordinal());
+        mapping.putInt(0x10, W);
+        mapping.putInt(0x14, H);
+        mapping.putInt(0x18, format.bytesPerPixel);
+        mapping.putInt(0x1C, frameSlots);
+        mapping.putInt(0x20, frameSlotSize);
+        mapping.putInt(0x24, HEADER_SIZE);
+        mapping.putInt(0x28, (int) SoundChannel.AUDIO_FORMAT.getSampleRate());
+        mapping.putInt(0x2C, SoundChannel.AUDIO_FORMAT.getChannels());
+        mapping.putInt(0x30, SoundChannel.AUDIO_FORMAT.getSampleSizeInBits());
+        mapping.putInt(0x34, SoundManager.BLOCK_SIZE);
+        mapping.putInt(0x38, audioSlots);
+        mapping.putInt(0x3C, audioSlotSize);
+        mapping.putInt(0x40, audioOffset);
+        mapping.putInt(RUNNING, 1);
+        mapping.putLong(FRAMES_WRITTEN, 0);
+        mapping.putLong(BLOCKS_WRITTEN, 0);
+
+        // Left over from an earlier run, slots could otherwise pass for ones this run has written
+        for (ByteBuffer slot : this.frameSlots)
+            slot.putLong(0, -1).putLong(8, -1);
+        for (ByteBuffer slot : this.audioSlots)
+            slot.putLong(0, -1).putLong(8, -1);
+
+        capture = new FrameCapture(format, true, this);
+    }
+
+    /**
+     * Rounds a slot size up to a whole number of cache lines, so no two slots share one.
+     *
+     * @param size The size, in bytes.
+     * @return The aligned size.
+     */
+    private static int align(int size)
+    {
+        return (size + 63) & ~63;
+    }
+
+    /**
+     * Creates a little-endian view of part of the mapping.
+     *
+     * @param offset The offset of the part.
+     * @param size   The size of the part, in bytes.
+     * @return The view.
+     */
+    private ByteBuffer slot(int offset, int size)
+    {
+        ByteBuffer view = mapping.duplicate();
+        view.limit(offset + size).position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Maps the export file named by the nox.sharedMemory system property, and attaches it to an emulator.
+     * <p/>
+     * The nox.sharedMemoryFormat property picks the pixel format, BGRA by default, and nox.sharedMemoryFrames and
+     * nox.sharedMemoryBlocks the number of slots in each ring.
+     *
+     * @param core The emulator to export from.
+     * @return The attached exporter, or null if the property isn't set.
+     * @throws IOException              if the file can't be mapped.
+     * @throws IllegalArgumentException if the format is unknown, or the slot counts are out of range.
+     */
+    public static SharedMemoryExporter start(Emulator core) throws IOException
+    {
+        String path = System.getProperty("nox.sharedMemory");
+        if (path == null) return null;
+
+        PixelFormat format = PixelFormat.valueOf(System.getProperty("nox.sharedMemoryFormat", "BGRA"));
+        SharedMemoryExporter exporter = new SharedMemoryExporter(new File(path), format,
+                Integer.getInteger("nox.sharedMemoryFrames", DEFAULT_FRAME_SLOTS),
+                Integer.getInteger("nox.sharedMemoryBlocks", DEFAULT_AUDIO_SLOTS));
+        exporter.attach(core);
+        return exporter;
+    }
+
+    /**
+     * Starts exporting an emulator's frames and audio. This replaces any scanline sink and sample sink already set.
+     *
+     * @param core The emulator.
+     */
+    public void attach(Emulator core)
+    {
+        core.lcd.setScanlineSink(capture);
+        core.sound.setSampleSink(this);
+    }
+
+    /**
+     * Stops exporting an emulator's frames and audio.
+     *
+     * @param core The emulator.
+     */
+    public void detach(Emulator core)
+    {
+        core.lcd.setScanlineSink(null);
+        core.sound.setSampleSink(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void frame(Frame frame)
+    {
+        long sequence = frame.getSequence();
+        int index = (int) (sequence % frameSlots.length);
+        ByteBuffer slot = frameSlots[index];
+
+        slot.putLong(0, sequence);
+        fence();
+
+        // Captured straight into a direct buffer, so this is the one copy
+        slot.position(SLOT_HEADER_SIZE);
+        slot.put(frame.buffer);
+        frame.buffer.rewind();
+        if (paletteSlots != null)
+        {
+            IntBuffer palettes = paletteSlots[index];
+            palettes.clear();
+            palettes.put(frame.palettes);
+        }
+
+        fence();
+        slot.putLong(8, sequence);
+        fence();
+        mapping.putLong(FRAMES_WRITTEN, sequence + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void samples(byte[] block, int length)
+    {
+        long sequence = blocks++;
+        ByteBuffer slot = audioSlots[(int) (sequence % audioSlots.length)];
+
+        slot.putLong(0, sequence);
+        fence();
+
+        slot.position(SLOT_HEADER_SIZE);
+        slot.put(block, 0, Math.min(length, SoundManager.BLOCK_SIZE));
+
+        fence();
+        slot.putLong(8, sequence);
+        fence();
+        mapping.putLong(BLOCKS_WRITTEN, sequence + 1);
+    }
+
+    /**
+     * Keeps the stores before it from being reordered with those after it, so another process reading the mapping
+     * sees them in program order. A volatile write keeps earlier stores before it, and reading it back keeps later
+     * stores after.
+     */
+    private void fence()
+    {
+        fence = 0;
+        int ignored = fence;
+    }
+
+    /**
+     * Marks the file as no longer being written to, for readers to stop polling.
+     */
+    public void close()
+    {
+        fence();
+        mapping.putInt(RUNNING, 0);
+    }
+
+    /**
+     * Retrieves the capture frames are exported from.
+     *
+     * @return The capture.
+     */
+    public FrameCapture getCapture()
+    {
+        return capture;
+    }
+
+    /**
+     * Retrieves the number of frames written.
+     *
+     * @return The number of frames.
+     */
+    public long getFramesWritten()
+    {
+        return capture.getFramesCompleted();
+    }
+
+    /**
+     * Retrieves the number of audio blocks written.
+     *
+     * @return The number of blocks.
+     */
+    public long getBlocksWritten()
+    {
+        return blocks;
+    }
+}
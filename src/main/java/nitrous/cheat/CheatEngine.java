@@ -0,0 +1,241 @@
+package nitrous.cheat;
+
+import nitrous.cpu.Emulator;
+import nitrous.lcd.LCD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies Game Genie and GameShark codes to a session.
+ * <p/>
+ * Neither kind of cheat adds any work to the memory access path:
+ * <ul>
+ * <li>Game Genie codes are resolved when a ROM bank is mapped. A bank containing a patch which applies to it (taking
+ * the compare value into account) is replaced with a patched private copy, made once per bank; every other bank is
+ * mapped straight from the shared cartridge image. Reads from ROM remain plain array accesses either way.</li>
+ * <li>GameShark codes are written all at once at the start of every V-Blank, like the original hardware.</li>
+ * </ul>
+ * Codes may be added and removed from any thread. GameShark codes take effect at the next V-Blank, as do Game Genie
+ * codes: the ROM banks are remapped on the emulation thread, so they can't race the game's own bank switches. Call
+ * {@link #applyPatches()} to have Game Genie codes take effect straight away, e.g. before the session is started.
+ *
+ * @author Tudor
+ */
+public class CheatEngine implements LCD.VBlankListener
+{
+    /**
+     * The session cheats are applied to.
+     */
+    private final Emulator core;
+
+    /**
+     * Game Genie codes, as last added or removed. Replaced rather than modified, so the emulation thread never needs to
+     * lock.
+     */
+    private volatile GameGenie[] genie = new GameGenie[0];
+
+    /**
+     * Whether {@link #genie} changed since the banks were last remapped.
+     */
+    private volatile boolean remapPending;
+
+    /**
+     * Game Genie codes the mapped banks are patched with. Only used on the emulation thread.
+     */
+    private GameGenie[] patches = new GameGenie[0];
+
+    /**
+     * Active GameShark codes. Replaced rather than modified.
+     */
+    private volatile GameShark[] shark = new GameShark[0];
+
+    /**
+     * Switchable ROM banks resolved against {@link #patches}, patched or not; null until first mapped. Only used on the
+     * emulation thread.
+     */
+    private byte[][] banks;
+
+    /**
+     * Creates a cheat engine, and installs it into a session.
+     * <p/>
+     * The session must not be running, or its {@link Emulator#executeLock()} must be held.
+     *
+     * @param core The session to apply cheats to.
+     */
+    public CheatEngine(Emulator core)
+    {
+        this.core = core;
+        this.banks = new byte[core.cartridge.romBanks][];
+        core.lcd.addVBlankListener(this);
+        core.mmu.setCheats(this);
+    }
+
+    /**
+     * Decodes and adds a code of either kind.
+     * <p/>
+     * #cheat Game Genie codes patch ROM, GameShark codes keep writing to ram
+     *
+     * @param code A Game Genie code (ABC-DEF or ABC-DEF-GHI) or a GameShark code (TTVVLLHH).
+     * @throws IllegalArgumentException if the code is malformed.
+     */
+    public void add(String code)
+    {
+        if (code.contains("-") || code.trim().length() != 8)
+            add(GameGenie.parse(code));
+        else
+            add(GameShark.parse(code));
+    }
+
+    /**
+     * Adds a Game Genie code.
+     *
+     * @param code The code to add.
+     */
+    public synchronized void add(GameGenie code)
+    {
+        List<GameGenie> codes = new ArrayList<>(Arrays.asList(genie));
+        codes.add(code);
+        setGenie(codes);
+    }
+
+    /**
+     * Removes a Game Genie code.
+     *
+     * @param code The code to remove.
+     */
+    public synchronized void remove(GameGenie code)
+    {
+        List<GameGenie> codes = new ArrayList<>(Arrays.asList(genie));
+        codes.remove(code);
+        setGenie(codes);
+    }
+
+    /**
+     * Adds a GameShark code.
+     *
+     * @param code The code to add.
+     */
+    public synchronized void add(GameShark code)
+    {
+        List<GameShark> codes = new ArrayList<>(Arrays.asList(shark));
+        codes.add(code);
+        shark = codes.toArray(new GameShark[codes.size()]);
+    }
+
+    /**
+     * Removes a GameShark code.
+     *
+     * @param code The code to remove.
+     */
+    public synchronized void remove(GameShark code)
+    {
+        List<GameShark> codes = new ArrayList<>(Arrays.asList(shark));
+        codes.remove(code);
+        shark = codes.toArray(new GameShark[codes.size()]);
+    }
+
+    /**
+     * Removes every code.
+     */
+    public synchronized void clear()
+    {
+        shark = new GameShark[0];
+        setGenie(new ArrayList<GameGenie>());
+    }
+
+    /**
+     * Retrieves the active Game Genie codes.
+     *
+     * @return A copy of the active codes.
+     */
+    public GameGenie[] getGameGenieCodes()
+    {
+        return genie.clone();
+    }
+
+    /**
+     * Retrieves the active GameShark codes.
+     *
+     * @return A copy of the active codes.
+     */
+    public GameShark[] getGameSharkCodes()
+    {
+        return shark.clone();
+    }
+
+    /**
+     * Replaces the active Game Genie codes; the banks are mapped in again at the next V-Blank.
+     *
+     * @param codes The new codes.
+     */
+    private void setGenie(List<GameGenie> codes)
+    {
+        genie = codes.toArray(new GameGenie[codes.size()]);
+        remapPending = true;
+    }
+
+    /**
+     * Maps the ROM banks in again if the Game Genie codes changed since they were last mapped.
+     * <p/>
+     * Called at every V-Blank; it may also be called from the emulation thread, from another thread holding the {@link
+     * Emulator#executeLock()}, or before the session is started.
+     */
+    public void applyPatches()
+    {
+        if (!remapPending) return;
+
+        // Clear the flag first, so codes changed while remapping are picked up next time
+        remapPending = false;
+        patches = genie;
+        banks = new byte[core.cartridge.romBanks][];
+        core.mmu.remapRom();
+    }
+
+    /**
+     * Resolves a ROM bank against the active Game Genie codes.
+     * <p/>
+     * Called by the memory controller whenever a bank is mapped, on the emulation thread.
+     *
+     * @param bank       The bank number.
+     * @param data       The bank's data, as found in the cartridge image.
+     * @param switchable Whether the bank is being mapped into $4000-$7FFF, rather than $0000-$3FFF.
+     * @return The data itself if no patch applies, or a patched copy.
+     */
+    public byte[] patch(int bank, byte[] data, boolean switchable)
+    {
+        GameGenie[] codes = patches;
+        if (codes.length == 0) return data;
+
+        // Only switchable banks are cached, since bank 0 is resolved once per change of codes
+        byte[][] cache = banks;
+        int index = bank % cache.length;
+        if (switchable && cache[index] != null) return cache[index];
+
+        byte[] patched = data;
+        for (GameGenie code : codes)
+        {
+            if (!code.appliesTo(data, switchable)) continue;
+
+            if (patched == data) patched = data.clone();
+            patched[code.address & 0x3FFF] = (byte) code.value;
+        }
+
+        if (switchable) cache[index] = patched;
+        return patched;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vblank()
+    {
+        applyPatches();
+
+        GameShark[] codes = shark;
+        for (GameShark code : codes)
+            core.mmu.poke(code.bank, code.address, code.value);
+    }
+}
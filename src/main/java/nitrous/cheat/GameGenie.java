@@ -0,0 +1,111 @@
+package nitrous.cheat;
+
+/**
+ * A Game Genie code, which patches a byte of ROM.
+ * <p/>
+ * Codes are written as ABC-DEF or ABC-DEF-GHI, in hexadecimal:
+ * <ul>
+ * <li>AB is the new data;</li>
+ * <li>FCDE is the address, XORed with F000h;</li>
+ * <li>GI is the data the ROM must contain for the patch to apply, XORed with BAh and rotated left by two.
+ * H is unused.</li>
+ * </ul>
+ * Since many games keep different code in each ROM bank at the same address, the compare value is what makes a patch
+ * to $4000-$7FFF only apply to the intended bank.
+ *
+ * @author Tudor
+ */
+public class GameGenie
+{
+    /**
+     * The code as entered.
+     */
+    public final String code;
+
+    /**
+     * The patched address, $0000-$7FFF.
+     */
+    public final int address;
+
+    /**
+     * The new data.
+     */
+    public final int value;
+
+    /**
+     * The data the ROM must contain for the patch to apply, or -1 if it always applies.
+     */
+    public final int compare;
+
+    /**
+     * Creates a new GameGenie code.
+     *
+     * @param code    The code as entered.
+     * @param address The patched address.
+     * @param value   The new data.
+     * @param compare The data the ROM must contain, or -1.
+     */
+    public GameGenie(String code, int address, int value, int compare)
+    {
+        this.code = code;
+        this.address = address;
+        this.value = value;
+        this.compare = compare;
+    }
+
+    /**
+     * Decodes a Game Genie code.
+     *
+     * @param code The code, with or without dashes.
+     * @return The decoded code.
+     * @throws IllegalArgumentException if the code is malformed.
+     */
+    public static GameGenie parse(String code)
+    {
+        String digits = code.replace("-", "").trim();
+        if (digits.length() != 6 && digits.length() != 9)
+            throw new IllegalArgumentException("Game Genie codes have 6 or 9 digits: " + code);
+
+        int[] d = new int[digits.length()];
+        for (int i = 0; i < d.length; i++)
+        {
+            d[i] = Character.digit(digits.charAt(i), 16);
+            if (d[i] < 0) throw new IllegalArgumentException("not a hexadecimal digit in " + code);
+        }
+
+        int value = (d[0] << 4) | d[1];
+        int address = ((d[5] << 12) | (d[2] << 8) | (d[3] << 4) | d[4]) ^ 0xF000;
+        if (address >= 0x8000)
+            throw new IllegalArgumentException("Game Genie codes can only patch ROM: " + code);
+
+        int compare = -1;
+        if (d.length == 9)
+        {
+            int packed = (d[6] << 4) | d[8];
+            compare = (((packed >> 2) | (packed << 6)) & 0xFF) ^ 0xBA;
+        }
+        return new GameGenie(code, address, value, compare);
+    }
+
+    /**
+     * Checks whether this code applies to a ROM bank.
+     *
+     * @param bank       The bank's data.
+     * @param switchable Whether the bank is being mapped into $4000-$7FFF, rather than $0000-$3FFF.
+     * @return Whether the patch applies.
+     */
+    public boolean appliesTo(byte[] bank, boolean switchable)
+    {
+        if ((address >= 0x4000) != switchable) return false;
+        return compare < 0 || (bank[address & 0x3FFF] & 0xFF) == compare;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return code;
+    }
+}
@@ -0,0 +1,90 @@
+package nitrous.cheat;
+
+/**
+ * A GameShark code, which keeps writing a value to ram.
+ * <p/>
+ * Codes are written as TTVVLLHH, in hexadecimal: TT selects the ram bank, VV is the value, and HHLL is the address.
+ * TT is usually 01, which writes through whatever bank is mapped; 80h-87h and 90h-97h select work ram bank
+ * (or cart ram bank) TT AND 7 explicitly, as used by CGB games.
+ *
+ * @author Tudor
+ */
+public class GameShark
+{
+    /**
+     * The code as entered.
+     */
+    public final String code;
+
+    /**
+     * The bank to write through, or -1 for the currently mapped one.
+     */
+    public final int bank;
+
+    /**
+     * The value to write.
+     */
+    public final int value;
+
+    /**
+     * The address to write to.
+     */
+    public final int address;
+
+    /**
+     * Creates a new GameShark code.
+     *
+     * @param code    The code as entered.
+     * @param bank    The bank to write through, or -1.
+     * @param value   The value to write.
+     * @param address The address to write to.
+     */
+    public GameShark(String code, int bank, int value, int address)
+    {
+        this.code = code;
+        this.bank = bank;
+        this.value = value;
+        this.address = address;
+    }
+
+    /**
+     * Decodes a GameShark code.
+     *
+     * @param code The code.
+     * @return The decoded code.
+     * @throws IllegalArgumentException if the code is malformed.
+     */
+    public static GameShark parse(String code)
+    {
+        String digits = code.trim();
+        if (digits.length() != 8)
+            throw new IllegalArgumentException("GameShark codes have 8 digits: " + code);
+
+        int raw;
+        try
+        {
+            raw = (int) Long.parseLong(digits, 16);
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("not a hexadecimal code: " + code);
+        }
+
+        int type = (raw >>> 24) & 0xFF;
+        int value = (raw >>> 16) & 0xFF;
+        int address = ((raw & 0xFF) << 8) | ((raw >>> 8) & 0xFF);
+
+        int bank = -1;
+        if ((type & 0xE0) == 0x80)
+            bank = type & 0x07;
+        return new GameShark(code, bank, value, address);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return code;
+    }
+}
@@ -4,10 +4,13 @@ import nitrous.Cartridge;
 import nitrous.Settings;
 import nitrous.lcd.LCD;
 import nitrous.mbc.Memory;
+import nitrous.mbc.MemoryStats;
+import nitrous.mbc.SaveFlusher;
 import nitrous.sound.SoundManager;
 
 import java.awt.*;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.LockSupport;
 
@@ -37,11 +40,26 @@ public class Emulator
      */
     public final Cartridge cartridge;
 
+    /**
+     * Whether this is a compact session: a headless instance which holds as little state as possible, for hosting
+     * large numbers of sessions in one process.
+     * <p/>
+     * Compact sessions size cart ram from the cartridge header, only allocate the CGB's extra vram and wram banks
+     * once a game switches to them, never touch AWT or open an audio line, and don't follow changes to the speed
+     * setting.
+     */
+    public final boolean compact;
+
     /**
      * Cartridge save file.
      */
     public File savefile;
 
+    /**
+     * Background writer of battery-backed cart ram into the save file; null if saving only happens on exit.
+     */
+    public SaveFlusher saveFlusher;
+
     /**
      * LCD; may be null if running headlessly.
      */
@@ -109,6 +127,11 @@ public class Emulator
      */
     public long timerCycle = 0;
 
+    /**
+     * The size of the CPU's region of a {@link nitrous.MachineState}, in bytes.
+     */
+    public static final int STATE_SIZE = 0x60;
+
     /**
      * The base clock speed for the CPU; 4.194304MHz.
      */
@@ -134,6 +157,16 @@ public class Emulator
      */
     public long cycle = 0;
 
+    /**
+     * The number of CPU cycles spent in double speed mode, up to the last switch back to normal speed.
+     */
+    private long doubleSpeedCycles = 0;
+
+    /**
+     * The CPU cycle at which double speed mode was last entered.
+     */
+    private long doubleSpeedStart = 0;
+
     /**
      * The number of cycles elapsed since the last speed emulation sleep.
      */
@@ -150,22 +183,51 @@ public class Emulator
      * @param cartridge The ROM to emulate.
      */
     public Emulator(Cartridge cartridge)
+    {
+        this(cartridge, false);
+    }
+
+    /**
+     * Creates a new Emulator.
+     *
+     * @param cartridge The ROM to emulate.
+     * @param compact   Whether to create a compact, headless session (see {@link #compact}).
+     */
+    public Emulator(Cartridge cartridge, boolean compact)
     {
         this.cartridge = cartridge;
+        this.compact = compact;
         this.mmu = cartridge.createController(this);
         this.lcd = new LCD(this);
-        this.sound = new SoundManager(this);
+        this.sound = new SoundManager(this, !compact);
         sound.updateClockSpeed(clockSpeed);
 
-        // #action respond to emulation speed change
-        Settings.addSpeedListener((speed) -> {
-            clockSpeed = speed.clockSpeed;
-            sound.updateClockSpeed(speed.clockSpeed);
-        });
+        // The listener set is static, so registering would keep compact sessions alive forever
+        if (!compact)
+        {
+            // #action respond to emulation speed change
+            Settings.addSpeedListener((speed) -> {
+                clockSpeed = speed.clockSpeed;
+                sound.updateClockSpeed(speed.clockSpeed);
+            });
+        }
 
         reset();
     }
 
+    /**
+     * Estimates the heap retained by this session.
+     * <p/>
+     * Only the memory arrays and frame buffer are counted, as they make up almost all of an instance's footprint;
+     * ROM banks are shared between sessions through the {@link nitrous.ROMStore}, so they aren't included.
+     *
+     * @return The approximate size of this session's state, in bytes.
+     */
+    public long getFootprint()
+    {
+        return mmu.getFootprint() + lcd.getFootprint() + sound.getFootprint();
+    }
+
     /**
      * Change the display.
      *
@@ -378,6 +440,57 @@ public class Emulator
         setIO(0x49, 0xff);
     }
 
+    /**
+     * Writes the CPU state into a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the CPU region; {@link #STATE_SIZE} bytes are used.
+     */
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+
+        state.putInt(pc).putInt(SP);
+        state.putInt(A).putInt(B).putInt(C).putInt(D).putInt(E).putInt(F).putInt(H).putInt(L);
+        state.put((byte) (interruptsEnabled ? 1 : 0)).put((byte) (cpuHalted ? 1 : 0)).put((byte) (doubleSpeed ? 1 : 0));
+        state.putInt(clockSpeed);
+        state.putLong(cycle).putLong(divCycle).putLong(timerCycle).putLong(doubleSpeedCycles).putLong(doubleSpeedStart);
+
+        state.position(base + STATE_SIZE);
+    }
+
+    /**
+     * Restores the CPU state from a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the CPU region.
+     */
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+
+        pc = state.getInt();
+        SP = state.getInt();
+        A = state.getInt();
+        B = state.getInt();
+        C = state.getInt();
+        D = state.getInt();
+        E = state.getInt();
+        F = state.getInt();
+        H = state.getInt();
+        L = state.getInt();
+        interruptsEnabled = state.get() != 0;
+        cpuHalted = state.get() != 0;
+        doubleSpeed = state.get() != 0;
+        clockSpeed = state.getInt();
+        cycle = state.getLong();
+        divCycle = state.getLong();
+        timerCycle = state.getLong();
+        doubleSpeedCycles = state.getLong();
+        doubleSpeedStart = state.getLong();
+        sound.updateClockSpeed(clockSpeed);
+
+        state.position(base + STATE_SIZE);
+    }
+
     /**
      * Checks a condition from an opcode.
      *
@@ -562,9 +675,28 @@ public class Emulator
 
         this.doubleSpeed = doubleSpeed;
         if (doubleSpeed)
+        {
             clockSpeed = BASE_CLOCK_SPEED * 2;
-        else
+            doubleSpeedStart = cycle;
+        } else
+        {
             clockSpeed = BASE_CLOCK_SPEED;
+            doubleSpeedCycles += cycle - doubleSpeedStart;
+        }
+    }
+
+    /**
+     * Computes the amount of emulated time elapsed since startup, as a number of cycles of the base 4.194304MHz
+     * clock. Unlike {@link #cycle}, this doesn't run twice as fast while the CPU is in double speed mode.
+     *
+     * @return The elapsed base clock cycles.
+     */
+    public long getBaseClockCycles()
+    {
+        long fast = doubleSpeedCycles + (doubleSpeed ? cycle - doubleSpeedStart : 0);
+
+        // Every double speed cycle only took half a base clock cycle
+        return cycle - fast / 2;
     }
 
     /**
@@ -737,12 +869,14 @@ public class Emulator
     private void setByte(int addr, int _data)
     {
         tick(4);
+        if (MemoryStats.ENABLED) mmu.stats.write(addr);
         mmu.setAddress(addr, _data);
     }
 
     private void setIO(int addr, int data)
     {
         tick(4);
+        if (MemoryStats.ENABLED) mmu.stats.write(0xFF00 + addr);
         mmu.setIO(addr, data);
     }
 
@@ -754,6 +888,7 @@ public class Emulator
     private int getByte(int addr)
     {
         tick(4);
+        if (MemoryStats.ENABLED) mmu.stats.read(addr);
         return mmu.getAddress(addr);
     }
 
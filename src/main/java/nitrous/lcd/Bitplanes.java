@@ -0,0 +1,87 @@
+package nitrous.lcd;
+
+/**
+ * Lookup tables for decoding rows of tile data.
+ * <p/>
+ * In vram, each 8-pixel row of a tile is stored as two bitplanes: the first byte holds the low bit of each pixel's
+ * colour index, the second the high bit, with bit 7 the leftmost pixel. Rather than combining the planes bit by bit
+ * with variable shifts, {@link #interleave} spreads each byte through a 256-entry table and merges the two, giving
+ * all eight colour indices packed 2 bits apiece, leftmost pixel in the lowest bits. {@link #interleaveFlipped} does
+ * the same for X-flipped rows, so either can be unpacked with the same fixed shifts.
+ * <p/>
+ * The tables are shared and immutable, so renderers without a {@link TileCache}, such as headless tile viewers, can
+ * use them as well.
+ *
+ * @author Tudor
+ */
+public final class Bitplanes
+{
+    /**
+     * Each byte with its bits spread to even positions, bit 7 first: bit 7 moves to bit 0, bit 6 to bit 2, and so on.
+     */
+    private static final char[] SPREAD = new char[256];
+
+    /**
+     * Each byte with its bits spread to even positions, bit 0 first: bit 0 stays at bit 0, bit 1 moves to bit 2, and
+     * so on.
+     */
+    private static final char[] SPREAD_FLIPPED = new char[256];
+
+    static
+    {
+        for (int b = 0; b < 256; b++)
+        {
+            int spread = 0, flipped = 0;
+            for (int px = 0; px < 8; px++)
+            {
+                spread |= ((b >> (7 - px)) & 1) << (px * 2);
+                flipped |= ((b >> px) & 1) << (px * 2);
+            }
+            SPREAD[b] = (char) spread;
+            SPREAD_FLIPPED[b] = (char) flipped;
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private Bitplanes()
+    {
+    }
+
+    /**
+     * Decodes a row of tile data.
+     *
+     * @param low  The first byte of the row, holding the low bit of each colour index.
+     * @param high The second byte of the row, holding the high bit of each colour index.
+     * @return The eight colour indices, 2 bits each; the leftmost pixel's in bits 0-1.
+     */
+    public static int interleave(int low, int high)
+    {
+        return SPREAD[low & 0xFF] | (SPREAD[high & 0xFF] << 1);
+    }
+
+    /**
+     * Decodes a row of tile data, mirrored horizontally.
+     *
+     * @param low  The first byte of the row, holding the low bit of each colour index.
+     * @param high The second byte of the row, holding the high bit of each colour index.
+     * @return The eight colour indices, 2 bits each; the rightmost pixel's in bits 0-1.
+     */
+    public static int interleaveFlipped(int low, int high)
+    {
+        return SPREAD_FLIPPED[low & 0xFF] | (SPREAD_FLIPPED[high & 0xFF] << 1);
+    }
+
+    /**
+     * Unpacks one colour index from a decoded row.
+     *
+     * @param row The decoded row.
+     * @param px  The pixel, 0-7, counting from whichever end was decoded first.
+     * @return The colour index, 0-3.
+     */
+    public static int pixel(int row, int px)
+    {
+        return (row >> (px * 2)) & 3;
+    }
+}
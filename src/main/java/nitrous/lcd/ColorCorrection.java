@@ -0,0 +1,104 @@
+package nitrous.lcd;
+
+/**
+ * Definitions for converting Gameboy Color colours to RGB.
+ * <p/>
+ * The CGB stores colours as 15-bit values, 5 bits per channel. Its LCD did not show them linearly: colours were
+ * washed out, and the channels bled into each other. Games were designed for that screen, so on a modern display
+ * their colours may look oversaturated unless they are corrected.
+ * <p/>
+ * Each correction is a table of all 32768 colours, built the first time it is used, so switching corrections only
+ * changes which table palette writes look colours up in, and costs nothing per pixel.
+ *
+ * @author Tudor
+ */
+public enum ColorCorrection
+{
+    /**
+     * Each channel scaled linearly from 0-1Fh to 0-FFh.
+     */
+    NONE("None")
+            {
+                @Override
+                int convert(int red, int green, int blue)
+                {
+                    return (scale(red) << 16) | (scale(green) << 8) | scale(blue);
+                }
+            },
+
+    /**
+     * Channels mixed and compressed to approximate the colours of the CGB's LCD.
+     */
+    LCD("Color LCD")
+            {
+                @Override
+                int convert(int red, int green, int blue)
+                {
+                    // Each channel picks up some of the others, and none quite reach full brightness
+                    int r = Math.min(960, red * 26 + green * 4 + blue * 2) >> 2;
+                    int g = Math.min(960, green * 24 + blue * 8) >> 2;
+                    int b = Math.min(960, red * 6 + green * 4 + blue * 22) >> 2;
+                    return (r << 16) | (g << 8) | b;
+                }
+            };
+
+    /**
+     * Name of the correction as displayed in the GUI.
+     */
+    public final String name;
+
+    /**
+     * The RGB value of every 15-bit colour, or null until first needed.
+     */
+    private volatile int[] table;
+
+    /**
+     * Creates a ColorCorrection.
+     *
+     * @param name The name of the correction as shown to the user in the GUI.
+     */
+    ColorCorrection(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Converts a colour.
+     *
+     * @param red   The red intensity, 0-1Fh.
+     * @param green The green intensity, 0-1Fh.
+     * @param blue  The blue intensity, 0-1Fh.
+     * @return The colour, as 0x00RRGGBB.
+     */
+    abstract int convert(int red, int green, int blue);
+
+    /**
+     * Scales an intensity linearly from 0-1Fh to 0-FFh.
+     *
+     * @param intensity The intensity, 0-1Fh.
+     * @return The intensity, 0-FFh.
+     */
+    private static int scale(int intensity)
+    {
+        return (int) (intensity / 31f * 255 + 0.5) & 0xFF;
+    }
+
+    /**
+     * Retrieves the table of every colour.
+     *
+     * @return 32768 RGB values, indexed by 15-bit colour: red in bits 0-4, green in bits 5-9, blue in bits 10-14.
+     */
+    public int[] getTable()
+    {
+        int[] table = this.table;
+        if (table == null)
+        {
+            // Racing threads may both build the table, but they build the same one
+            table = new int[0x8000];
+            for (int color = 0; color < table.length; color++)
+                table[color] = convert(color & 0x1F, (color >> 5) & 0x1F, (color >> 10) & 0x1F);
+            this.table = table;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,250 @@
+package nitrous.lcd;
+
+import java.util.Arrays;
+
+import static nitrous.cpu.R.H;
+
+/**
+ * Numbers the distinct colours of frames, and tabulates how alike each pair of them is, for the {@link PixelScaler
+ * pixel scalers}.
+ * <p/>
+ * A Gameboy frame only ever holds a handful of colours: 4 on a Gameboy, and rarely more than a few dozen on a
+ * Gameboy Color. Comparing neighbouring pixels is the bulk of a pixel-art scaler's work, so rather than converting
+ * both to YUV for every comparison, each frame is first turned into colour indices, and the scalers look the
+ * comparison up in a table with an entry per pair of colours. The table is only extended when a new colour shows
+ * up, so for most frames, building it costs nothing at all.
+ * <p/>
+ * Pairs are tabulated among the first {@link #LUT_COLORS} colours; the rare colour past those is compared directly.
+ *
+ * @author Tudor
+ */
+class ColorTable
+{
+    /**
+     * The number of colours whose pairs are tabulated.
+     */
+    static final int LUT_COLORS = 256;
+
+    /**
+     * The most colours numbered before starting over; enough for a frame of W &times; H distinct colours.
+     */
+    private static final int CAPACITY = 1 << 15;
+
+    /**
+     * Mask to wrap a hash into {@link #keys}.
+     */
+    private static final int HASH_MASK = CAPACITY * 2 - 1;
+
+    /**
+     * The colours numbered, as RGB, in the order they were first seen.
+     */
+    final int[] colors = new int[CAPACITY];
+
+    /**
+     * Each colour's luma and chroma, packed as 0xYYUUVV.
+     */
+    private final int[] yuv = new int[CAPACITY];
+
+    /**
+     * For each pair of tabulated colours, 1 if they are different enough to be told apart, as HQx judges it.
+     */
+    private final byte[] differences = new byte[LUT_COLORS * LUT_COLORS];
+
+    /**
+     * For each pair of tabulated colours, their weighted YUV distance, as xBR judges it.
+     */
+    private final int[] distances = new int[LUT_COLORS * LUT_COLORS];
+
+    /**
+     * Open-addressed hash table of colours, or -1 for an empty slot.
+     */
+    private final int[] keys = new int[CAPACITY * 2];
+
+    /**
+     * The index of the colour in the same slot of {@link #keys}.
+     */
+    private final int[] values = new int[CAPACITY * 2];
+
+    /**
+     * The number of colours numbered.
+     */
+    private int count;
+
+    /**
+     * Creates a new, empty ColorTable.
+     */
+    ColorTable()
+    {
+        Arrays.fill(keys, -1);
+    }
+
+    /**
+     * Turns a frame into colour indices, numbering any colours not seen before.
+     *
+     * @param pixels The frame, as RGB, row by row.
+     * @param width  The width of the frame.
+     * @param out    The indices, row by row, with a border of <code>pad</code> pixels repeating the edges.
+     * @param pad    The width of the border.
+     */
+    void index(int[] pixels, int width, int[] out, int pad)
+    {
+        // Start over if a frame from the LCD, with at most PALETTE_SIZE colours a line, could overflow the table
+        if (count > CAPACITY - H * Frame.PALETTE_SIZE) clear();
+
+        int height = pixels.length / width;
+        int stride = width + pad * 2;
+        int last = -1;
+        int index = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int from = y * width;
+            int to = (y + pad) * stride + pad;
+            for (int x = 0; x < width; x++)
+            {
+                // Runs of the same colour are common, and needn't be looked up again
+                int rgb = pixels[from + x] & 0xFFFFFF;
+                if (rgb != last)
+                {
+                    index = lookup(rgb);
+                    last = rgb;
+                    if (index < 0)
+                    {
+                        // Any other frame which overflows it will fit once it's empty
+                        clear();
+                        index(pixels, width, out, pad);
+                        return;
+                    }
+                }
+                out[to + x] = index;
+            }
+
+            // Repeat the edge pixels into the border
+            int row = (y + pad) * stride;
+            Arrays.fill(out, row, row + pad, out[row + pad]);
+            Arrays.fill(out, row + pad + width, row + stride, out[row + pad + width - 1]);
+        }
+
+        for (int y = 0; y < pad; y++)
+        {
+            System.arraycopy(out, pad * stride, out, y * stride, stride);
+            System.arraycopy(out, (pad + height - 1) * stride, out, (pad + height + y) * stride, stride);
+        }
+    }
+
+    /**
+     * Forgets every colour numbered.
+     */
+    private void clear()
+    {
+        Arrays.fill(keys, -1);
+        count = 0;
+    }
+
+    /**
+     * Finds the index of a colour, numbering it if it wasn't seen before.
+     *
+     * @param rgb The colour.
+     * @return The index, or -1 if the table is full.
+     */
+    private int lookup(int rgb)
+    {
+        int slot = (rgb * 0x9E3779B1 >>> 16) & HASH_MASK;
+        while (true)
+        {
+            int key = keys[slot];
+            if (key == rgb) return values[slot];
+            if (key == -1) break;
+            slot = (slot + 1) & HASH_MASK;
+        }
+
+        if (count == CAPACITY) return -1;
+        int index = count++;
+        keys[slot] = rgb;
+        values[slot] = index;
+        colors[index] = rgb;
+        yuv[index] = toYUV(rgb);
+
+        // Fill in the new colour's row and column of the tables
+        if (index < LUT_COLORS)
+        {
+            for (int other = 0; other <= index; other++)
+            {
+                byte unlike = (byte) (unlike(yuv[index], yuv[other]) ? 1 : 0);
+                int distance = yuvDistance(yuv[index], yuv[other]);
+                differences[index * LUT_COLORS + other] = differences[other * LUT_COLORS + index] = unlike;
+                distances[index * LUT_COLORS + other] = distances[other * LUT_COLORS + index] = distance;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Determines whether two colours are different enough to be told apart, as HQx judges it.
+     *
+     * @param a The index of one colour.
+     * @param b The index of the other.
+     * @return Whether they differ.
+     */
+    boolean different(int a, int b)
+    {
+        if (a == b) return false;
+        return (a | b) < LUT_COLORS ? differences[a * LUT_COLORS + b] != 0 : unlike(yuv[a], yuv[b]);
+    }
+
+    /**
+     * Retrieves the weighted YUV distance between two colours, as xBR judges it.
+     *
+     * @param a The index of one colour.
+     * @param b The index of the other.
+     * @return The distance; 0 if they are the same.
+     */
+    int distance(int a, int b)
+    {
+        return (a | b) < LUT_COLORS ? distances[a * LUT_COLORS + b] : yuvDistance(yuv[a], yuv[b]);
+    }
+
+    /**
+     * Converts a colour to YUV.
+     *
+     * @param rgb The colour, as 0x00RRGGBB.
+     * @return The colour, as 0xYYUUVV.
+     */
+    private static int toYUV(int rgb)
+    {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int y = (299 * r + 587 * g + 114 * b) / 1000;
+        int u = (-169 * r - 331 * g + 500 * b) / 1000 + 128;
+        int v = (500 * r - 419 * g - 81 * b) / 1000 + 128;
+        return (y << 16) | (u << 8) | v;
+    }
+
+    /**
+     * Compares two YUV colours with the thresholds HQx uses.
+     *
+     * @param a One colour, as 0xYYUUVV.
+     * @param b The other.
+     * @return Whether they differ.
+     */
+    private static boolean unlike(int a, int b)
+    {
+        return Math.abs((a >> 16) - (b >> 16)) > 0x30
+                || Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) > 0x07
+                || Math.abs((a & 0xFF) - (b & 0xFF)) > 0x06;
+    }
+
+    /**
+     * Measures the distance between two YUV colours with the weights xBR uses.
+     *
+     * @param a One colour, as 0xYYUUVV.
+     * @param b The other.
+     * @return The distance.
+     */
+    private static int yuvDistance(int a, int b)
+    {
+        return 48 * Math.abs((a >> 16) - (b >> 16))
+                + 7 * Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+                + 6 * Math.abs((a & 0xFF) - (b & 0xFF));
+    }
+}
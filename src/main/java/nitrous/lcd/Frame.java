@@ -0,0 +1,176 @@
+package nitrous.lcd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import static nitrous.cpu.R.H;
+import static nitrous.cpu.R.W;
+
+/**
+ * A complete frame, as captured by a {@link FrameCapture}.
+ * <p/>
+ * Pixels are stored row by row, W per row, in one of two ways: as an int per pixel in {@link #pixels}, or packed at
+ * {@link PixelFormat#bytesPerPixel} bytes per pixel in the direct, little-endian {@link #buffer}, ready to hand to
+ * native code or a channel without copying. Either way, a pixel holds its format's encoding in the low bits; for
+ * {@link PixelFormat#INDEXED}, that is the colour index, and each row's colours are in {@link #palettes}.
+ *
+ * @author Tudor
+ */
+public class Frame
+{
+    /**
+     * The number of colours in each row's palette.
+     */
+    public static final int PALETTE_SIZE = LCD.BLANK_COLOR + 1;
+
+    /**
+     * The format of the pixels.
+     */
+    public final PixelFormat format;
+
+    /**
+     * The pixels, one int each; or null if they are in {@link #buffer}.
+     */
+    public final int[] pixels;
+
+    /**
+     * The pixels, packed into a direct buffer; or null if they are in {@link #pixels}.
+     */
+    public final ByteBuffer buffer;
+
+    /**
+     * For {@link PixelFormat#INDEXED}, the RGB value of each colour index in each row, {@link #PALETTE_SIZE} per row;
+     * otherwise null.
+     */
+    public final int[] palettes;
+
+    /**
+     * A view of {@link #buffer} for 32-bit formats; otherwise null.
+     */
+    private final IntBuffer ints;
+
+    /**
+     * A view of {@link #buffer} for 16-bit formats; otherwise null.
+     */
+    private final ShortBuffer shorts;
+
+    /**
+     * The number of frames captured before this one.
+     */
+    long sequence;
+
+    /**
+     * Whether any pixel differs from the frame before.
+     */
+    boolean changed;
+
+    /**
+     * Creates a new Frame.
+     *
+     * @param format The format of the pixels.
+     * @param direct Whether to store pixels in a direct buffer, rather than an int array.
+     */
+    Frame(PixelFormat format, boolean direct)
+    {
+        this.format = format;
+        if (direct)
+        {
+            pixels = null;
+            buffer = ByteBuffer.allocateDirect(W * H * format.bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+            ints = format.bytesPerPixel == 4 ? buffer.asIntBuffer() : null;
+            shorts = format.bytesPerPixel == 2 ? buffer.asShortBuffer() : null;
+        } else
+        {
+            pixels = new int[W * H];
+            buffer = null;
+            ints = null;
+            shorts = null;
+        }
+        palettes = format == PixelFormat.INDEXED ? new int[H * PALETTE_SIZE] : null;
+    }
+
+    /**
+     * Stores a scanline.
+     *
+     * @param line    The scanline, 0-143.
+     * @param indices The colour index of each pixel.
+     * @param colors  The value of each colour index in this frame's format; RGB for {@link PixelFormat#INDEXED}.
+     */
+    void write(int line, byte[] indices, int[] colors)
+    {
+        int base = line * W;
+        if (format == PixelFormat.INDEXED)
+        {
+            System.arraycopy(colors, 0, palettes, line * PALETTE_SIZE, PALETTE_SIZE);
+            if (pixels != null)
+            {
+                for (int x = 0; x < W; x++)
+                    pixels[base + x] = indices[x];
+            } else
+            {
+                for (int x = 0; x < W; x++)
+                    buffer.put(base + x, indices[x]);
+            }
+        } else if (pixels != null)
+        {
+            for (int x = 0; x < W; x++)
+                pixels[base + x] = colors[indices[x]];
+        } else if (ints != null)
+        {
+            for (int x = 0; x < W; x++)
+                ints.put(base + x, colors[indices[x]]);
+        } else
+        {
+            for (int x = 0; x < W; x++)
+                shorts.put(base + x, (short) colors[indices[x]]);
+        }
+    }
+
+    /**
+     * Copies a scanline from another frame of the same format and storage.
+     *
+     * @param from The frame to copy from.
+     * @param line The scanline, 0-143.
+     */
+    void copy(Frame from, int line)
+    {
+        int base = line * W;
+        if (pixels != null)
+        {
+            System.arraycopy(from.pixels, base, pixels, base, W);
+        } else
+        {
+            int size = format.bytesPerPixel;
+            ByteBuffer src = from.buffer.duplicate();
+            src.limit((base + W) * size).position(base * size);
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(base * size);
+            dst.put(src);
+        }
+        if (palettes != null)
+            System.arraycopy(from.palettes, line * PALETTE_SIZE, palettes, line * PALETTE_SIZE, PALETTE_SIZE);
+    }
+
+    /**
+     * Retrieves the number of frames captured before this one, counting from 0, so gaps show where frames were
+     * missed.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Determines whether any pixel differs from the frame before.
+     *
+     * @return Whether the frame changed.
+     */
+    public boolean isChanged()
+    {
+        return changed;
+    }
+}
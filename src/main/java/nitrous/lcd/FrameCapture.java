@@ -0,0 +1,165 @@
+package nitrous.lcd;
+
+import java.util.Arrays;
+
+import static nitrous.cpu.R.H;
+
+/**
+ * Assembles the scanlines an LCD draws into complete {@link Frame frames}, for headless consumers such as capture
+ * and analysis pipelines.
+ * <p/>
+ * Set it as the LCD's {@link LCD.ScanlineSink}: no display is needed, and nothing here touches AWT or Swing, so it
+ * runs under <code>java.awt.headless=true</code>. Each scanline is encoded straight into the frame being captured,
+ * in the chosen pixel format, so no frame is ever copied as a whole.
+ * <p/>
+ * Frames can be taken in one of two ways:
+ * <ul>
+ * <li>pushed to a {@link FrameSink} as each is completed, on the thread drawing scanlines; or</li>
+ * <li>pulled with {@link #poll()}, from any one thread. Frames are triple-buffered, so capturing never waits for the
+ * consumer; one which polls too slowly misses frames, as shown by gaps in {@link Frame#getSequence()}.</li>
+ * </ul>
+ * Scanlines not drawn in a frame, while the display was disabled, keep what they showed in the frame before.
+ *
+ * @author Tudor
+ */
+public class FrameCapture implements LCD.ScanlineSink
+{
+    /**
+     * The format frames are captured in.
+     */
+    private final PixelFormat format;
+
+    /**
+     * The sink frames are pushed to, or null if they are pulled.
+     */
+    private final FrameSink sink;
+
+    /**
+     * Hands frames to the puller, or null if they are pushed.
+     */
+    private final FrameExchange<Frame> frames;
+
+    /**
+     * The frame being captured.
+     */
+    private Frame current;
+
+    /**
+     * Which scanlines have been captured into the current frame.
+     */
+    private final boolean[] captured = new boolean[H];
+
+    /**
+     * The number of frames completed.
+     */
+    private volatile long completed;
+
+    /**
+     * Creates a FrameCapture which pushes frames to a sink.
+     *
+     * @param format The format to capture frames in.
+     * @param direct Whether to store pixels in a direct buffer, rather than an int array.
+     * @param sink   The sink to push frames to.
+     */
+    public FrameCapture(PixelFormat format, boolean direct, FrameSink sink)
+    {
+        this.format = format;
+        this.sink = sink;
+        this.frames = null;
+        current = new Frame(format, direct);
+    }
+
+    /**
+     * Creates a FrameCapture whose frames are pulled with {@link #poll()}.
+     *
+     * @param format The format to capture frames in.
+     * @param direct Whether to store pixels in a direct buffer, rather than an int array.
+     */
+    public FrameCapture(PixelFormat format, boolean direct)
+    {
+        this.format = format;
+        this.sink = null;
+        current = new Frame(format, direct);
+        frames = new FrameExchange<>(current, new Frame(format, direct), new Frame(format, direct));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PixelFormat getPixelFormat()
+    {
+        return format;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void scanline(int scanline, byte[] indices, int[] colors)
+    {
+        current.write(scanline, indices, colors);
+        captured[scanline] = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void frame(boolean changed)
+    {
+        Frame frame = current;
+        frame.sequence = completed++;
+        frame.changed = changed;
+
+        if (sink != null)
+        {
+            // Lines not captured still hold the frame before, as frames are captured into the same storage
+            sink.frame(frame);
+        } else
+        {
+            Frame last = frames.getPublished();
+            if (last != null)
+            {
+                for (int line = 0; line < H; line++)
+                {
+                    if (!captured[line]) frame.copy(last, line);
+                }
+            }
+            current = frames.publish();
+        }
+        Arrays.fill(captured, false);
+    }
+
+    /**
+     * Takes the latest frame, if one was completed since the last was taken. Must only be called by one thread.
+     *
+     * @return The frame, which stays valid until the next call; or null if there is no new frame.
+     * @throws IllegalStateException if frames are pushed to a sink instead.
+     */
+    public Frame poll()
+    {
+        if (frames == null) throw new IllegalStateException("frames are pushed to a sink");
+        return frames.take();
+    }
+
+    /**
+     * Retrieves the number of frames completed.
+     *
+     * @return The number of frames.
+     */
+    public long getFramesCompleted()
+    {
+        return completed;
+    }
+
+    /**
+     * Retrieves the number of frames replaced by a newer one before they were polled.
+     *
+     * @return The number of frames missed, or 0 if frames are pushed.
+     */
+    public long getFramesMissed()
+    {
+        return frames != null ? frames.getDropped() : 0;
+    }
+}
@@ -0,0 +1,125 @@
+package nitrous.lcd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands completed frames from the thread drawing them to a thread consuming them, without either ever waiting on
+ * the other.
+ * <p/>
+ * Three buffers take turns: the producer draws into the back buffer, the consumer reads the front buffer, and
+ * the third holds the latest completed frame. Publishing swaps the back buffer with the latest, and taking swaps the
+ * front buffer with it, each in a single atomic exchange. A frame published before the previous one was taken
+ * replaces it, and is counted as dropped.
+ * <p/>
+ * There must be only one producer and one consumer at a time.
+ *
+ * @param <T> The type of buffer.
+ * @author Tudor
+ */
+class FrameExchange<T>
+{
+    /**
+     * Flags the latest buffer as holding a frame not yet taken.
+     */
+    private static final int FRESH = 4;
+
+    /**
+     * The three buffers.
+     */
+    private final Object[] buffers;
+
+    /**
+     * The index of the buffer holding the latest completed frame, with {@link #FRESH} set until it is taken.
+     */
+    private final AtomicInteger latest = new AtomicInteger(1);
+
+    /**
+     * The index of the buffer being drawn into. Only touched by the producer.
+     */
+    private int back = 0;
+
+    /**
+     * The index of the buffer last published. Only touched by the producer.
+     */
+    private int published = -1;
+
+    /**
+     * The index of the buffer being presented. Only touched by the consumer.
+     */
+    private int front = 2;
+
+    /**
+     * The number of frames replaced before they were taken. Only written by the producer.
+     */
+    private volatile long dropped;
+
+    /**
+     * Creates a new FrameExchange.
+     *
+     * @param back  The buffer the producer is drawing into.
+     * @param spare Another buffer alike.
+     * @param front A third buffer alike.
+     */
+    FrameExchange(T back, T spare, T front)
+    {
+        buffers = new Object[]{back, spare, front};
+    }
+
+    /**
+     * Retrieves a buffer.
+     *
+     * @param index The buffer's index.
+     * @return The buffer.
+     */
+    @SuppressWarnings("unchecked")
+    private T get(int index)
+    {
+        return (T) buffers[index];
+    }
+
+    /**
+     * Publishes the back buffer as the latest frame. Called by the producer.
+     *
+     * @return The buffer to draw the next frame into.
+     */
+    T publish()
+    {
+        int old = latest.getAndSet(back | FRESH);
+        if ((old & FRESH) != 0) dropped++;
+        published = back;
+        back = old & ~FRESH;
+        return get(back);
+    }
+
+    /**
+     * Retrieves the frame published last. Called by the producer.
+     *
+     * @return The frame, or null if none has been published yet. It must only be read.
+     */
+    T getPublished()
+    {
+        return published != -1 ? get(published) : null;
+    }
+
+    /**
+     * Takes the latest frame, if one was published since the last was taken. Called by the consumer.
+     *
+     * @return The frame, which stays the consumer's until the next frame is taken; or null if there is no new frame.
+     */
+    T take()
+    {
+        if ((latest.get() & FRESH) == 0) return null;
+        front = latest.getAndSet(front) & ~FRESH;
+        return get(front);
+    }
+
+    /**
+     * Retrieves the number of frames replaced by a newer one before they were taken.
+     *
+     * @return The number of frames dropped.
+     */
+    long getDropped()
+    {
+        return dropped;
+    }
+}
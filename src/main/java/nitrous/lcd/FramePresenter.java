@@ -0,0 +1,268 @@
+package nitrous.lcd;
+
+import nitrous.Settings;
+import nitrous.renderer.IRenderManager;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Blits completed frames onto the display, on a thread of its own.
+ * <p/>
+ * Frames reach the presenter through a {@link FrameExchange}, so however long a blit takes, or a renderer takes to
+ * recover a lost surface, the thread drawing frames never waits for it. It is woken as each frame is published, and
+ * otherwise wakes every couple of frame periods: if no frame was completed in the meantime, the last one is presented
+ * again, and counted as duplicated. Frames completed unchanged are never published, but don't count as missing.
+ * <p/>
+ * The display ignores repaints, so nothing else repairs it after it is exposed or its renderer is recreated. The
+ * last frame is therefore presented again as soon as the renderer changes, and otherwise refreshed every
+ * {@link #REFRESH_NANOS}, as when the game shows a static screen or is paused; these count as refreshed rather than
+ * duplicated.
+ * <p/>
+ * With a pixel-art {@link Interpolator#scaler scaler} selected, each new frame is magnified here, once, before it is
+ * stretched onto the display; a frame presented again is only scaled again if the scaler was changed meanwhile.
+ *
+ * @author Tudor
+ */
+class FramePresenter extends Thread
+{
+    /**
+     * The length of a frame at the normal clock speed, in nanoseconds.
+     */
+    private static final long FRAME_NANOS = 154 * 456 * 1_000_000_000L / 4_194_304;
+
+    /**
+     * How long to wait for a frame to be completed before presenting the last one again, in nanoseconds.
+     */
+    private static final long REPEAT_NANOS = FRAME_NANOS * 2;
+
+    /**
+     * How long to keep presenting the last frame again before sleeping until a new one, in nanoseconds.
+     */
+    private static final long IDLE_NANOS = 1_000_000_000L;
+
+    /**
+     * How often to present the last frame again while no new one is published, to repair a display that lost it,
+     * in nanoseconds.
+     */
+    private static final long REFRESH_NANOS = 500_000_000L;
+
+    /**
+     * The LCD whose display frames are presented on.
+     */
+    private final LCD lcd;
+
+    /**
+     * The exchange frames are taken from.
+     */
+    private final FrameExchange<BufferedImage> frames;
+
+    /**
+     * When the last frame was completed, published or not, as given by {@link System#nanoTime()}.
+     */
+    private volatile long lastCompleted;
+
+    /**
+     * Magnifies frames for interpolators with a pixel-art scaler.
+     */
+    private final FrameScaler scaler = new FrameScaler();
+
+    /**
+     * The number of frames presented, not counting duplicates.
+     */
+    private volatile long presented;
+
+    /**
+     * The number of times the last frame was presented again for want of a new one.
+     */
+    private volatile long duplicated;
+
+    /**
+     * The number of times the last frame was presented again to repair the display.
+     */
+    private volatile long refreshed;
+
+    /**
+     * The frame last presented, magnified if need be; null until the first.
+     */
+    private BufferedImage shown;
+
+    /**
+     * The interpolator {@link #shown} was presented with.
+     */
+    private Interpolator shownWith;
+
+    /**
+     * The renderer {@link #shown} was last presented on.
+     */
+    private IRenderManager shownOn;
+
+    /**
+     * When a frame was last presented, as given by {@link System#nanoTime()}.
+     */
+    private long lastPresented;
+
+    /**
+     * Creates a new FramePresenter.
+     *
+     * @param lcd    The LCD whose display to present on.
+     * @param frames The exchange to take frames from.
+     */
+    FramePresenter(LCD lcd, FrameExchange<BufferedImage> frames)
+    {
+        super("Frame-Presenter-Thread");
+        setDaemon(true);
+
+        this.lcd = lcd;
+        this.frames = frames;
+    }
+
+    /**
+     * Notes that a frame was completed, whether or not it is published.
+     */
+    void completed()
+    {
+        lastCompleted = System.nanoTime();
+    }
+
+    /**
+     * Wakes the presenter, after a frame has been published.
+     */
+    void wake()
+    {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        BufferedImage last = null;
+        while (true)
+        {
+            BufferedImage frame = frames.take();
+            long now = System.nanoTime();
+            long idle = now - lastCompleted;
+            if (frame != null)
+            {
+                shownWith = Settings.getInterpolator();
+                shown = magnify(frame, shownWith);
+                present();
+                presented++;
+                last = frame;
+            } else if (last != null)
+            {
+                if (Settings.getInterpolator() != shownWith)
+                {
+                    shownWith = Settings.getInterpolator();
+                    shown = magnify(last, shownWith);
+                }
+
+                if (idle >= REPEAT_NANOS && idle < IDLE_NANOS)
+                {
+                    // No frame came in time; show the last one again
+                    present();
+                    duplicated++;
+                } else if (lcd.currentRenderer != shownOn || now - lastPresented >= REFRESH_NANOS)
+                {
+                    // Frames are unchanged or the game is paused, but the display may still need repairing
+                    present();
+                    refreshed++;
+                }
+            }
+
+            if (last == null)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, idle < IDLE_NANOS ? REPEAT_NANOS : REFRESH_NANOS);
+        }
+    }
+
+    /**
+     * Magnifies a frame with an interpolator's pixel-art scaler, if it has one.
+     *
+     * @param frame        The frame.
+     * @param interpolator The interpolator.
+     * @return The magnified frame, or the frame itself if there is no scaler.
+     */
+    private BufferedImage magnify(BufferedImage frame, Interpolator interpolator)
+    {
+        return interpolator.scaler != null ? scaler.scale(frame, interpolator.scaler) : frame;
+    }
+
+    /**
+     * Blits the frame to show onto the display, if there is one.
+     */
+    private void present()
+    {
+        BufferedImage frame = shown;
+        Interpolator interpolator = shownWith;
+        lastPresented = System.nanoTime();
+
+        // Our renderer may have been invalidated, or we may be running headlessly
+        IRenderManager renderer = lcd.currentRenderer;
+        shownOn = renderer;
+        Graphics2D graphics = renderer != null ? renderer.getGraphics() : null;
+        if (graphics == null) return;
+
+        int width = lcd.core.display.getWidth();
+        int height = lcd.core.display.getHeight();
+
+        // Set the user's preferred interpolation method
+        switch (interpolator)
+        {
+            case NEAREST:
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                break;
+            case BILINEAR:
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                break;
+            case BICUBIC:
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                break;
+            default:
+                // A scaled frame only needs smoothing if the display isn't a whole multiple of it
+                boolean whole = width % frame.getWidth() == 0 && height % frame.getHeight() == 0;
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, whole
+                        ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                        : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                break;
+        }
+
+        // Blit the frame onto the display
+        graphics.drawImage(frame, 0, 0, width, height, null);
+    }
+
+    /**
+     * Retrieves the number of frames presented, not counting duplicates.
+     *
+     * @return The number of frames presented.
+     */
+    long getPresented()
+    {
+        return presented;
+    }
+
+    /**
+     * Retrieves the number of times the last frame was presented again for want of a new one.
+     *
+     * @return The number of frames duplicated.
+     */
+    long getDuplicated()
+    {
+        return duplicated;
+    }
+
+    /**
+     * Retrieves the number of times the last frame was presented again to repair the display.
+     *
+     * @return The number of frames refreshed.
+     */
+    long getRefreshed()
+    {
+        return refreshed;
+    }
+}
@@ -0,0 +1,170 @@
+package nitrous.lcd;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import static nitrous.cpu.R.H;
+import static nitrous.cpu.R.W;
+
+/**
+ * Magnifies frames with a {@link PixelScaler}, spreading the rows of each frame across a small fork-join pool.
+ * <p/>
+ * A frame is scaled in two passes: it is first turned into colour indices by a {@link ColorTable}, on the calling
+ * thread, and then split into bands of rows which are scaled in parallel. The scaled frame is an ordinary
+ * {@link BufferedImage}, so any renderer can blit it, and a frame presented again needn't be scaled again.
+ * <p/>
+ * The pool is shared by all scalers, and has as many threads as there are cores, up to four; the nox.scalerThreads
+ * system property overrides this. With a single thread, frames are scaled on the calling thread alone.
+ * <p/>
+ * A FrameScaler must only be used by one thread at a time.
+ *
+ * @author Tudor
+ */
+public class FrameScaler
+{
+    /**
+     * The number of threads rows are scaled on.
+     */
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("nox.scalerThreads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    /**
+     * The pool rows are scaled on.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS,
+            pool ->
+            {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Pixel-Scaler-Thread-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+
+    /**
+     * The fewest rows a band is split into.
+     */
+    private static final int BAND_ROWS = 16;
+
+    /**
+     * The length of a row of {@link #indices}, border included.
+     */
+    private static final int STRIDE = W + PixelScaler.PAD * 2;
+
+    /**
+     * The table colours are numbered with.
+     */
+    private final ColorTable table = new ColorTable();
+
+    /**
+     * The colour indices of the frame being scaled, with a border repeating its edges.
+     */
+    private final int[] indices = new int[STRIDE * (H + PixelScaler.PAD * 2)];
+
+    /**
+     * The scaled frame for each factor, created as needed.
+     */
+    private final BufferedImage[] images = new BufferedImage[4];
+
+    /**
+     * Magnifies a frame.
+     *
+     * @param frame  The frame, W by H, with its pixels in an int array, as {@link BufferedImage#TYPE_INT_RGB} does.
+     * @param scaler The scaler to use.
+     * @return The scaled frame, which is reused by the next call with a scaler of the same factor.
+     */
+    public BufferedImage scale(BufferedImage frame, PixelScaler scaler)
+    {
+        BufferedImage image = images[scaler.factor];
+        if (image == null)
+        {
+            image = new BufferedImage(W * scaler.factor, H * scaler.factor, BufferedImage.TYPE_INT_RGB);
+            images[scaler.factor] = image;
+        }
+
+        int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        scale(pixels, scaler, ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    /**
+     * Magnifies a frame.
+     *
+     * @param pixels The frame, W by H, as RGB, row by row.
+     * @param scaler The scaler to use.
+     * @param out    The scaled frame, as RGB, row by row; W &times; H &times; the square of the scaler's factor.
+     */
+    public void scale(int[] pixels, PixelScaler scaler, int[] out)
+    {
+        table.index(pixels, W, indices, PixelScaler.PAD);
+
+        if (THREADS == 1)
+            scaler.scale(table, indices, STRIDE, out, W, 0, H);
+        else
+            POOL.invoke(new Band(scaler, out, 0, H));
+    }
+
+    /**
+     * A band of rows to scale, split in two until it is small enough.
+     */
+    private class Band extends RecursiveAction
+    {
+        /**
+         * Bands are never serialized; declared to keep the compiler quiet.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The scaler to use.
+         */
+        private final PixelScaler scaler;
+
+        /**
+         * The scaled frame.
+         */
+        private final int[] out;
+
+        /**
+         * The first row of the band.
+         */
+        private final int from;
+
+        /**
+         * The row after the band.
+         */
+        private final int to;
+
+        /**
+         * Creates a new Band.
+         *
+         * @param scaler The scaler to use.
+         * @param out    The scaled frame.
+         * @param from   The first row of the band.
+         * @param to     The row after the band.
+         */
+        Band(PixelScaler scaler, int[] out, int from, int to)
+        {
+            this.scaler = scaler;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute()
+        {
+            if (to - from <= BAND_ROWS)
+            {
+                scaler.scale(table, indices, STRIDE, out, W, from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new Band(scaler, out, from, middle), new Band(scaler, out, middle, to));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package nitrous.lcd;
+
+/**
+ * Interface for a consumer of complete frames, pushed to it by a {@link FrameCapture}.
+ * <p/>
+ * Frames are pushed on whichever thread draws scanlines, as each one is completed. The frame is only valid for the
+ * duration of the call, as the next is captured into the same storage; a sink must copy or consume what it needs
+ * before returning.
+ *
+ * @author Tudor
+ */
+public interface FrameSink
+{
+    /**
+     * Method called with each frame completed.
+     *
+     * @param frame The frame.
+     */
+    void frame(Frame frame);
+}
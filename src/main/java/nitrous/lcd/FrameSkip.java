@@ -0,0 +1,66 @@
+package nitrous.lcd;
+
+/**
+ * Definitions for which frames the LCD renders.
+ * <p/>
+ * A skipped frame is neither drawn nor blitted, and the display keeps showing the last rendered frame. Everything
+ * the game can observe carries on as usual: LY, STAT, LYC coincidence, HDMA transfers and the V-Blank and LCDC
+ * interrupts happen exactly as they would on a rendered frame, so skipping changes how a game looks, never how it
+ * runs.
+ *
+ * @author Tudor
+ */
+public enum FrameSkip
+{
+    /**
+     * Every frame is rendered.
+     */
+    NONE("Off", 0),
+
+    /**
+     * Every other frame is rendered.
+     */
+    FIXED_1("1", 1),
+
+    /**
+     * One frame in three is rendered.
+     */
+    FIXED_2("2", 2),
+
+    /**
+     * One frame in four is rendered.
+     */
+    FIXED_3("3", 3),
+
+    /**
+     * Frames are skipped while emulation falls behind real time, and rendered again once it catches up.
+     */
+    AUTO("Auto", 0),
+
+    /**
+     * Frames are only rendered when they can be seen: while the display is showing, or a scanline sink is set.
+     */
+    PRESENT_ONLY("When visible", 0);
+
+    /**
+     * Name of the policy as displayed in the GUI.
+     */
+    public final String name;
+
+    /**
+     * The number of frames skipped after each rendered frame, for fixed policies.
+     */
+    public final int interval;
+
+    /**
+     * Creates a FrameSkip.
+     *
+     * @param name     The name of the policy as shown to the user in the GUI.
+     * @param interval The number of frames to skip after each rendered frame, or 0 if not fixed.
+     */
+    FrameSkip(String name, int interval)
+    {
+        this.name = name;
+        this.interval = interval;
+    }
+}
@@ -25,7 +25,27 @@ public enum Interpolator
     /**
      * Similar effect to BILINEAR, but fetches more samples per pixel (looks better, but is slower).
      */
-    BICUBIC("Bicubic");
+    BICUBIC("Bicubic"),
+
+    /**
+     * Fills in the corners of diagonal edges at 2x, with no blending (see {@link PixelScaler#SCALE2X}).
+     */
+    SCALE2X("Scale2x", PixelScaler.SCALE2X),
+
+    /**
+     * Like SCALE2X, at 3x (see {@link PixelScaler#SCALE3X}).
+     */
+    SCALE3X("Scale3x", PixelScaler.SCALE3X),
+
+    /**
+     * Rounds off diagonal edges at 2x, blending them a little (see {@link PixelScaler#HQ2X}).
+     */
+    HQ2X("HQ2x", PixelScaler.HQ2X),
+
+    /**
+     * Follows edges through a wider neighbourhood at 2x, giving smoother diagonals (see {@link PixelScaler#XBR2X}).
+     */
+    XBR2X("xBR", PixelScaler.XBR2X);
 
     /**
      * Name of the interpolation function as displayed in the GUI.
@@ -33,12 +53,30 @@ public enum Interpolator
     public final String name;
 
     /**
-     * Creates an Interpolator.
+     * The pixel-art scaler that magnifies frames before they are stretched to the display, or null to stretch them
+     * straight away.
+     */
+    public final PixelScaler scaler;
+
+    /**
+     * Creates an Interpolator which stretches frames straight away.
      *
      * @param name The name of the Interpolator as shown to the user in the GUI.
      */
     Interpolator(String name)
+    {
+        this(name, null);
+    }
+
+    /**
+     * Creates an Interpolator.
+     *
+     * @param name   The name of the Interpolator as shown to the user in the GUI.
+     * @param scaler The scaler to magnify frames with first, or null for none.
+     */
+    Interpolator(String name, PixelScaler scaler)
     {
         this.name = name;
+        this.scaler = scaler;
     }
 }
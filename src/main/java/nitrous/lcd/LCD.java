@@ -2,8 +2,8 @@ package nitrous.lcd;
 
 import nitrous.cpu.Emulator;
 import nitrous.cpu.R.*;
-import nitrous.Settings;
 import nitrous.mbc.Memory;
+import nitrous.mbc.MemoryStats;
 import nitrous.renderer.IRenderManager;
 
 import java.awt.*;
@@ -11,6 +11,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.peer.ComponentPeer;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,23 +28,33 @@ import static nitrous.cpu.R.*;
 public class LCD
 {
     /**
-     * An array of blank values matching in size with the dimensions of screenBuffer, used to very quickly
-     * clear the contents of the previous frame via {@link System#arraycopy}.
+     * The size of the LCD's region of a {@link nitrous.MachineState}, in bytes.
      */
-    private static final int[] BLANK = new int[W * H];
+    public static final int STATE_SIZE = 0x90;
 
     /**
-     * Draw layer priority constants.
+     * Draw layer priority constants, as stored in the scanline's priority plane.
      *
      * We can only draw over pixels with equal or greater priority.
      */
-    public static final int P_0 = 0 << 24;
-    public static final int P_1 = 1 << 24;
-    public static final int P_2 = 2 << 24;
-    public static final int P_3 = 3 << 24;
-    public static final int P_4 = 4 << 24;
-    public static final int P_5 = 5 << 24;
-    public static final int P_6 = 6 << 24;
+    public static final int P_0 = 0;
+    public static final int P_1 = 1;
+    public static final int P_2 = 2;
+    public static final int P_3 = 3;
+    public static final int P_4 = 4;
+    public static final int P_5 = 5;
+    public static final int P_6 = 6;
+
+    /**
+     * Colour indices of the scanline planes: background and window palette entries come first, 4 per palette, then
+     * sprite palette entries from {@link #SPRITE_COLORS}, and finally {@link #BLANK_COLOR}.
+     */
+    public static final int SPRITE_COLORS = 32;
+
+    /**
+     * The colour index of pixels with the background disabled, which are always black.
+     */
+    public static final int BLANK_COLOR = 64;
 
     /**
      * The Emulator on which to operate.
@@ -51,14 +62,30 @@ public class LCD
     protected final Emulator core;
 
     /**
-     * A buffer to hold the current rendered frame.
+     * A buffer to hold the frame being rendered.
+     * <p/>
+     * The data is stored in RGB format, which is packed as 0x00RRGGBB. Every pixel of a scanline is written whenever
+     * it is drawn, so the buffer is never cleared.
      * <p/>
-     * The data is stored in RGB format, which is packed as 0x00RRGGBB. This leaves us with 2 bytes of unused data in
-     * at the front, which we use to hold current pixel priorities. That is, our format for this buffer is
-     * 0xPPRRGGBB. This does not impact any drawing of this image, but if provides a quick way to determine tile
-     * priorities in internal code.
+     * Only created once a scanline is first drawn, so headless sessions never allocate it. With a display, this is
+     * the back buffer of a {@link FrameExchange}, and is replaced by another each time a frame is presented.
+     */
+    public BufferedImage screenBuffer;
+
+    /**
+     * Which scanlines were drawn into screenBuffer since the last frame was presented.
+     */
+    private final boolean[] drawnLines = new boolean[H];
+
+    /**
+     * Hands completed frames to the presenter; null until the first frame is presented.
+     */
+    private volatile FrameExchange<BufferedImage> frames;
+
+    /**
+     * Blits completed frames onto the display; null until the first frame is presented.
      */
-    public final BufferedImage screenBuffer = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+    private volatile FramePresenter presenter;
 
     /**
      * Background palettes. On CGB, 0-7 are used. On GB, only 0 is used.
@@ -81,10 +108,53 @@ public class LCD
     private final byte[] gbcSpritePaletteMemory = new byte[0x40];
 
     /**
-     * Stores number of sprites drawn per each of the 144 scanlines this frame. Actual Gameboy hardware can
-     * only draw 10 sprites/line, so we artificially introduce this limitation using this array.
+     * Decoded tile data, kept current by the memory controller.
+     */
+    public final TileCache tiles;
+
+    /**
+     * The sprites on each scanline, kept current by the memory controller, which invalidates it whenever OAM is
+     * written.
+     */
+    public final SpriteIndex sprites;
+
+    /**
+     * Draws scanlines from live memory.
+     */
+    private final ScanlineRenderer renderer;
+
+    /**
+     * Draws scanlines on a thread of its own, if parallel rendering is on; otherwise null. Only touched on the
+     * emulation thread.
+     */
+    private RenderWorker renderWorker;
+
+    /**
+     * Whether scanlines should be drawn on a thread of their own. Takes effect from the next frame.
      */
-    private final int[] spritesDrawnPerLine = new int[144];
+    private volatile boolean parallelRendering;
+
+    /**
+     * A colour correction waiting to be applied at the start of the next frame, or null.
+     */
+    private volatile ColorCorrection pendingCorrection;
+
+    /**
+     * The RGB value of each colour index: the 4 colours of each of the 8 background palettes, then of the 8 sprite
+     * palettes, then black for {@link #BLANK_COLOR}. Resolved whenever a palette register or palette memory is
+     * written, rather than for every pixel.
+     */
+    private final int[] resolvedColors = new int[BLANK_COLOR + 1];
+
+    /**
+     * The RGB value of every 15-bit CGB colour, from the colour correction in use; null on the DMG.
+     */
+    private int[] gbcColors;
+
+    /**
+     * The value of each colour index in the scanline sink's pixel format.
+     */
+    private final int[] lineEncoded = new int[BLANK_COLOR + 1];
 
     /**
      * A counter for the number of cycles elapsed since the last LCD event.
@@ -106,6 +176,153 @@ public class LCD
      */
     private long lastCoreCycle;
 
+    /**
+     * The cycles in a frame: 154 scanlines of 456 cycles each.
+     */
+    private static final long FRAME_CYCLES = 154 * 456;
+
+    /**
+     * The most frames automatic frame skipping skips in a row, so the display still updates when emulation can't
+     * keep up at all.
+     */
+    private static final int MAX_AUTO_SKIP = 5;
+
+    /**
+     * Which frames are rendered.
+     */
+    private volatile FrameSkip frameSkip = FrameSkip.NONE;
+
+    /**
+     * Whether the current frame is being rendered.
+     */
+    private boolean renderingFrame = true;
+
+    /**
+     * The number of frames skipped since the last rendered frame.
+     */
+    private int skippedInRow = 0;
+
+    /**
+     * The timestamp the current frame started at, in nanoseconds, or -1 if not being measured.
+     */
+    private long frameStartTime = -1;
+
+    /**
+     * A moving average of the real time each frame has taken, in nanoseconds.
+     */
+    private long averageFrameTime = 0;
+
+    /**
+     * The first scanline of the frame not yet drawn.
+     */
+    private int renderedLines = 0;
+
+    /**
+     * The scanline up to which the frame should have been drawn, exclusive. Lines from {@link #renderedLines} up to
+     * it are pending, and drawn by {@link #catchUp()}.
+     */
+    private int pendingLines = 0;
+
+    /**
+     * The number of frames rendered.
+     */
+    private long framesRendered = 0;
+
+    /**
+     * The number of frames skipped.
+     */
+    private long framesSkipped = 0;
+
+    /**
+     * The number of rendered frames identical to the one before, which were not presented again. Only written by
+     * whichever thread draws scanlines.
+     */
+    private volatile long framesUnchanged = 0;
+
+    /**
+     * Whether any scanline drawn since the last frame was completed differs from the last frame.
+     */
+    private boolean frameChanged = true;
+
+    /**
+     * The pixels of the frame published last, which drawn scanlines are compared with; or null.
+     */
+    private int[] publishedPixels;
+
+    /**
+     * A hash of each scanline last output, for telling whether it changed when there is no screenBuffer to compare
+     * with.
+     */
+    private final long[] lineHashes = new long[H];
+
+    /**
+     * Interface for a listener called once per frame, as the LCD enters V-Blank.
+     * <p/>
+     * Listeners run on the emulation thread, while the game is stopped at the end of the frame, so they can read
+     * memory consistently; they should return quickly.
+     */
+    public interface VBlankListener
+    {
+        /**
+         * Method called at the start of V-Blank.
+         */
+        void vblank();
+    }
+
+    /**
+     * Registered {@link VBlankListener} instances. Replaced rather than modified, so it can be iterated without
+     * locking or allocating.
+     */
+    private volatile VBlankListener[] vblankListeners = new VBlankListener[0];
+
+    /**
+     * Interface for a consumer of rendered scanlines, in a pixel format of its choosing.
+     * <p/>
+     * Sinks are called on the emulation thread as each scanline is drawn, and must copy what they need before
+     * returning; the arrays are reused for the next scanline. Scanlines are drawn in order, but lazily (see
+     * {@link #catchUp()}), so several may arrive in a row some time after the LCD reached them. With parallel
+     * rendering on (see {@link #setParallelRendering}), sinks are called on the render thread instead, up to a frame
+     * after the emulation thread passed the scanline.
+     * <p/>
+     * To receive whole frames instead, set a {@link FrameCapture}.
+     */
+    public interface ScanlineSink
+    {
+        /**
+         * Retrieves the format the sink wants pixels in. Called once per scanline, so it may change between them.
+         *
+         * @return The pixel format.
+         */
+        PixelFormat getPixelFormat();
+
+        /**
+         * Method called with each scanline drawn.
+         *
+         * @param scanline The scanline, 0-143.
+         * @param indices  The colour index of each of the W pixels.
+         * @param colors   The value of each colour index in the sink's pixel format; a pixel's value is
+         *                 <code>colors[indices[x]]</code>. For {@link PixelFormat#INDEXED}, the RGB value.
+         */
+        void scanline(int scanline, byte[] indices, int[] colors);
+
+        /**
+         * Method called after the last scanline of each rendered frame.
+         * <p/>
+         * Many games show the same frame for long stretches, in menus, text boxes and pause screens; a sink which
+         * encodes or sends whole frames can skip those which are unchanged.
+         *
+         * @param changed Whether any pixel differs from the frame before.
+         */
+        default void frame(boolean changed)
+        {
+        }
+    }
+
+    /**
+     * The sink scanlines are output to, besides screenBuffer; or null.
+     */
+    private volatile ScanlineSink scanlineSink;
+
     /**
      * The current renderer to use when updating the LCD display.
      */
@@ -124,6 +341,13 @@ public class LCD
     public LCD(Emulator core)
     {
         this.core = core;
+        this.gbcColors = core.cartridge.isColorGB ? ColorCorrection.NONE.getTable() : null;
+
+        // Compact sessions do without mirrored tiles, and flip X when reading instead
+        tiles = new TileCache(core.cartridge.isColorGB ? 2 : 1, !core.compact);
+        sprites = new SpriteIndex(!core.cartridge.isColorGB);
+        renderer = new ScanlineRenderer(core.cartridge.isColorGB, tiles, sprites, core.mmu.registers, core.mmu.vram,
+                core.mmu.oam);
         initializePalettes();
     }
 
@@ -142,8 +366,8 @@ public class LCD
             for (int i = 0; i < bgPalettes.length; i++) bgPalettes[i] = new GBCPalette(new int[4]);
 
             // And "load" them from RAM
-            loadPalettesFromMemory(gbcSpritePaletteMemory, spritePalettes);
-            loadPalettesFromMemory(gbcBackgroundPaletteMemory, bgPalettes);
+            loadPalettesFromMemory(gbcSpritePaletteMemory, spritePalettes, SPRITE_COLORS);
+            loadPalettesFromMemory(gbcBackgroundPaletteMemory, bgPalettes, 0);
         } else
         {
             /**
@@ -163,35 +387,48 @@ public class LCD
             bgPalettes[0] = new DMGPalette(this, colors.bg, R_BGP);
             spritePalettes[0] = new DMGPalette(this, colors.obj0, R_OBP0);
             spritePalettes[1] = new DMGPalette(this, colors.obj1, R_OBP1);
+            loadPalettesFromRegisters();
         }
     }
 
+    /**
+     * Resolves all three DMG palettes from their registers.
+     */
+    private void loadPalettesFromRegisters()
+    {
+        setDMGPalette(R_BGP, core.mmu.registers[R_BGP]);
+        setDMGPalette(R_OBP0, core.mmu.registers[R_OBP0]);
+        setDMGPalette(R_OBP1, core.mmu.registers[R_OBP1]);
+    }
+
     /**
      * Reloads all Gameboy Color palettes.
      *
-     * @param from Palette RAM to load from.
-     * @param to   Reference to an array of IPalettes to populate.
+     * @param from   Palette RAM to load from.
+     * @param to     Reference to an array of IPalettes to populate.
+     * @param offset The colour index of the first palette's first colour.
      */
-    private void loadPalettesFromMemory(byte[] from, IPalette[] to)
+    private void loadPalettesFromMemory(byte[] from, IPalette[] to, int offset)
     {
         // 8 palettes
         for (int i = 0; i < 8; i++)
         {
-            // 4 bytes per palette
+            // 4 colours per palette
             for (int j = 0; j < 4; ++j)
-                updatePaletteByte(from, to[i], i, j);
+                updatePaletteByte(from, to[i], offset, i, j);
         }
     }
 
     /**
      * Performs an update to a byte of palette RAM.
      *
-     * @param from The palette RAM to read from.
-     * @param to   Reference to an array of IPalettes to update.
-     * @param i    The palette index being updated.
-     * @param j    The byte index of the palette being updated.
+     * @param from   The palette RAM to read from.
+     * @param to     Reference to the IPalette to update.
+     * @param offset The colour index of the first palette's first colour.
+     * @param i      The palette index being updated.
+     * @param j      The colour index of the palette being updated.
      */
-    private void updatePaletteByte(byte[] from, IPalette to, int i, int j)
+    private void updatePaletteByte(byte[] from, IPalette to, int offset, int i, int j)
     {
         /**
          * This register allows to read/write data to the CGBs Background Palette Memory, addressed through Register FF68.
@@ -205,15 +442,60 @@ public class LCD
         // Read an RGB value from RAM
         int data = ((from[i * 8 + j * 2 + 1] & 0xff) << 8) | (from[i * 8 + j * 2] & 0xff);
 
-        // Extract components
-        int red = (data & 0x1f);
-        int green = (data >> 5) & 0x1f;
-        int blue = (data >> 10) & 0x1f;
+        // Convert each component from [0, 1Fh] to [0, FFh], through the colour correction's table
+        int color = gbcColors[data & 0x7FFF];
+        ((GBCPalette) to).colors[j] = color;
+        resolvedColors[offset + i * 4 + j] = color;
+        if (renderWorker != null) renderWorker.record(RenderWorker.COLOR, offset + i * 4 + j, color);
+    }
+
+    /**
+     * Updates a DMG palette register. Internal function for use in a Memory controller.
+     *
+     * @param reg  The register written to, one of R_BGP, R_OBP0 or R_OBP1.
+     * @param data The data written.
+     */
+    public void setDMGPalette(int reg, int data)
+    {
+        // The CGB's palettes come from palette memory instead
+        if (core.cartridge.isColorGB) return;
+
+        catchUp();
+
+        DMGPalette palette = (DMGPalette) (reg == R_BGP ? bgPalettes[0] : spritePalettes[reg == R_OBP0 ? 0 : 1]);
+        int offset = reg == R_BGP ? 0 : reg == R_OBP0 ? SPRITE_COLORS : SPRITE_COLORS + 4;
+
+        // a palette color is defined in the byte form 33221100: to get any color n, we shift right by 2n and mask with 0x3
+        for (int n = 0; n < 4; n++)
+        {
+            resolvedColors[offset + n] = palette.colors[(data >> (n * 2)) & 0x3];
+            if (renderWorker != null) renderWorker.record(RenderWorker.COLOR, offset + n, resolvedColors[offset + n]);
+        }
+    }
+
+    /**
+     * Selects how CGB colours are converted to RGB. The current palettes are converted again at the start of the next
+     * frame, on the emulation thread, so this may be called from any thread.
+     *
+     * @param correction The colour correction to use.
+     */
+    public void setColorCorrection(ColorCorrection correction)
+    {
+        if (!core.cartridge.isColorGB) return;
 
-        // Convert from [0, 1Fh] to [0, FFh], and recombine
-        ((GBCPalette) to).colors[j] = (((int) (red / 31f * 255 + 0.5) & 0xFF) << 16) |
-                (((int) (green / 31f * 255 + 0.5) & 0xFF) << 8) |
-                ((int) (blue / 31f * 255 + 0.5) & 0xFF);
+        pendingCorrection = correction;
+    }
+
+    /**
+     * Converts the current palettes again with a new colour correction.
+     *
+     * @param correction The colour correction to use.
+     */
+    private void applyColorCorrection(ColorCorrection correction)
+    {
+        gbcColors = correction.getTable();
+        loadPalettesFromMemory(gbcSpritePaletteMemory, spritePalettes, SPRITE_COLORS);
+        loadPalettesFromMemory(gbcBackgroundPaletteMemory, bgPalettes, 0);
     }
 
     /**
@@ -224,9 +506,10 @@ public class LCD
      */
     public void setBackgroundPalette(int reg, int data)
     {
+        catchUp();
         gbcBackgroundPaletteMemory[reg] = (byte) data;
         int palette = reg >> 3;
-        updatePaletteByte(gbcBackgroundPaletteMemory, bgPalettes[palette], palette, (reg >> 1) & 0x3);
+        updatePaletteByte(gbcBackgroundPaletteMemory, bgPalettes[palette], 0, palette, (reg >> 1) & 0x3);
     }
 
     /**
@@ -237,9 +520,10 @@ public class LCD
      */
     public void setSpritePalette(int reg, int data)
     {
+        catchUp();
         gbcSpritePaletteMemory[reg] = (byte) data;
         int palette = reg >> 3;
-        updatePaletteByte(gbcSpritePaletteMemory, spritePalettes[palette], palette, (reg >> 1) & 0x3);
+        updatePaletteByte(gbcSpritePaletteMemory, spritePalettes[palette], SPRITE_COLORS, palette, (reg >> 1) & 0x3);
     }
 
     /**
@@ -270,8 +554,27 @@ public class LCD
             // draw the scanline
             boolean displayEnabled = displayEnabled();
 
-            // We may be running headlessly, so we must check before drawing
-            if (displayEnabled && core.display != null) draw(LY);
+            // Decide whether the frame about to start is rendered
+            if (LY == 0)
+            {
+                startFrame();
+                renderingFrame = shouldRender();
+                renderedLines = pendingLines = 0;
+            }
+
+            // We may be running headlessly, so we must check before drawing. Rather than drawing the scanline now, we
+            // only mark it pending, and draw all pending lines at once when something they depend on is about to
+            // change, or the frame ends
+            boolean hasOutput = core.display != null || scanlineSink != null;
+            if (displayEnabled && renderingFrame && hasOutput)
+            {
+                if (LY < H) pendingLines = LY + 1;
+            } else
+            {
+                // This line isn't drawn, so neither can a later catch up draw it
+                catchUp();
+                renderedLines = pendingLines = LY + 1;
+            }
 
             // Increment LY, and wrap at 154 lines
             core.mmu.registers[R_LY] = (byte) (((LY + 1) % 154) & 0xff);
@@ -287,7 +590,15 @@ public class LCD
                 if (currentVBlankCount == 60)
                 {
                     System.out.println("Took " + ((System.nanoTime() - lastSecondTime) / 1_000_000_000.0) +
-                            " seconds for 60 frames - " + (core.cycle - lastCoreCycle) / 60 + " clks/frames");
+                            " seconds for 60 frames - " + (core.cycle - lastCoreCycle) / 60 + " clks/frames - " +
+                            framesRendered + " rendered, " + framesSkipped + " skipped, " + framesUnchanged +
+                            " unchanged, " + getFramesDropped() + " dropped, " + getFramesDuplicated() +
+                            " duplicated");
+                    if (MemoryStats.ENABLED)
+                    {
+                        core.mmu.stats.print(System.out);
+                        core.mmu.stats.reset();
+                    }
                     lastCoreCycle = core.cycle;
                     currentVBlankCount = 0;
                     lastSecondTime = System.nanoTime();
@@ -356,28 +667,20 @@ public class LCD
             // use 143 here as we've just finished processing line 143 and will start 144
             if (LY == 143)
             {
-                // Our renderer may have been invalidated, or we may be running headlessly
-                Graphics2D graphics = currentRenderer != null ? currentRenderer.getGraphics() : null;
+                // The frame is over, so whatever is still pending must be drawn now
+                catchUp();
 
-                // If we actually have a display, we should draw
-                if (graphics != null)
+                // A skipped frame leaves the last one up, as does one that was never drawn because the display is
+                // disabled or there's nothing to draw to; neither counts as unchanged
+                boolean drawn = displayEnabled && renderingFrame && hasOutput;
+                if (renderWorker != null)
                 {
-                    // Set the user's preferred interpolation method
-                    switch (Settings.getInterpolator())
-                    {
-                        case NEAREST:
-                            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-                            break;
-                        case BILINEAR:
-                            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                            break;
-                        case BICUBIC:
-                            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                            break;
-                    }
-
-                    // Blit the our buffer onto the display. The top bytes we use for tile priority won't show up.
-                    graphics.drawImage(screenBuffer, 0, 0, core.display.getWidth(), core.display.getHeight(), null);
+                    // The worker finishes drawing the frame while we carry on with the next
+                    renderWorker.record(RenderWorker.PRESENT, 0, drawn ? 1 : 0);
+                    renderWorker.submit();
+                } else if (drawn)
+                {
+                    present();
                 }
 
                 // Trigger interrupts if the display is enabled
@@ -392,408 +695,580 @@ public class LCD
                         core.setInterruptTriggered(LCDC_BIT);
                     }
                 }
+
+                // A frame is complete, whether or not it was displayed
+                if (displayEnabled && hasOutput)
+                {
+                    if (renderingFrame) framesRendered++;
+                    else framesSkipped++;
+                }
+                if (MemoryStats.ENABLED) core.mmu.stats.frames++;
+                VBlankListener[] listeners = vblankListeners;
+                for (VBlankListener listener : listeners)
+                    listener.vblank();
             }
         }
     }
 
     /**
-     * Initializes renderers to draw on the current Emulator display.
+     * Completes a frame which was drawn, with the display enabled and somewhere to draw it to. Publishes screenBuffer
+     * for the presenter thread to blit onto the display, and starts drawing the next frame into another buffer, unless
+     * there is no display or the frame is identical to the last.
+     * <p/>
+     * The emulation thread never blits itself, so a slow blit or a renderer recovering a lost surface can't stall it.
      */
-    @SuppressWarnings("deprecation")
-    public void initializeRenderers()
+    void present()
     {
-        renderers = Collections.unmodifiableList(new ArrayList<IRenderManager>()
-        {{
-            for (Class<? extends IRenderManager> rendererClass : IRenderManager.RENDERERS)
+        boolean changed = frameChanged;
+        frameChanged = false;
+        if (!changed) framesUnchanged++;
+
+        ScanlineSink sink = scanlineSink;
+        if (sink != null) sink.frame(changed);
+
+        // We may be running headlessly, or nothing may have been drawn yet
+        if (core.display == null || screenBuffer == null) return;
+
+        if (presenter == null)
+        {
+            frames = new FrameExchange<>(screenBuffer, new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB),
+                    new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB));
+            presenter = new FramePresenter(this, frames);
+            presenter.start();
+        }
+
+        // An unchanged frame needn't be blitted and scaled again; the next is drawn into the same buffer
+        presenter.completed();
+        if (!changed)
+        {
+            Arrays.fill(drawnLines, false);
+            return;
+        }
+
+        // Scanlines not drawn this frame, while the display was disabled, still show what they showed last frame
+        BufferedImage last = frames.getPublished();
+        if (last != null)
+        {
+            int[] from = ((DataBufferInt) last.getRaster().getDataBuffer()).getData(0);
+            int[] to = ((DataBufferInt) screenBuffer.getRaster().getDataBuffer()).getData(0);
+            for (int line = 0; line < H; line++)
             {
-                IRenderManager renderer;
-                try
-                {
-                    System.err.println(rendererClass);
-                    // Look up peer reflectively since Container#getPeer is removed in
-                    // Java 9; this is still "illegal access" as far as the JRE cares,
-                    // but it should work till Java 10 at least.
-                    Field peer = Component.class.getDeclaredField("peer");
-                    peer.setAccessible(true);
-                    renderer = rendererClass.getDeclaredConstructor(ComponentPeer.class).newInstance(peer.get(core.display));
-                } catch (ReflectiveOperationException ignored)
-                {
-                    // #error failure means we try the next renderer
-                    continue;
-                }
-                if (renderer.getGraphics() != null)
-                {
-                    add(renderer);
-                    if (currentRenderer == null)
-                    {
-                        System.out.println("Using " + renderer);
-                        currentRenderer = renderer;
-                    }
-                } else
-                {
-                    System.err.println(renderer + " failed to produce a Graphics2D");
-                }
+                if (!drawnLines[line]) System.arraycopy(from, line * W, to, line * W, W);
             }
-        }});
+        }
+        Arrays.fill(drawnLines, false);
+
+        screenBuffer = frames.publish();
+        publishedPixels = ((DataBufferInt) frames.getPublished().getRaster().getDataBuffer()).getData(0);
+        presenter.wake();
     }
 
     /**
-     * Draws a scanline.
+     * Retrieves the number of completed frames replaced by a newer one before the presenter got to blit them.
      *
-     * @param scanline The scanline to draw.
+     * @return The number of frames dropped.
      */
-    public void draw(int scanline)
+    public long getFramesDropped()
     {
-        // Don't even bother if the display is not enabled
-        if (!displayEnabled()) return;
-
-        // We still receive these calls for scanlines in vblank, but we can just ignore them
-        if (scanline >= 144 || scanline < 0) return;
+        FrameExchange<BufferedImage> frames = this.frames;
+        return frames != null ? frames.getDropped() : 0;
+    }
 
-        // Reset our sprite counter
-        spritesDrawnPerLine[scanline] = 0;
+    /**
+     * Retrieves the number of times the presenter blitted the last frame again, because no new one came in time.
+     *
+     * @return The number of frames duplicated.
+     */
+    public long getFramesDuplicated()
+    {
+        FramePresenter presenter = this.presenter;
+        return presenter != null ? presenter.getDuplicated() : 0;
+    }
 
-        /**
-         * Obtain the backing array for the BufferedImage screenBuffer. In theory, we could use BufferedImage.setRGB
-         * to draw, but this would be significantly more expensive than an array lookup.
-         */
-        DataBufferInt dbb = (DataBufferInt) screenBuffer.getRaster().getDataBuffer();
-        int[] data = dbb.getData(0);
+    /**
+     * Retrieves the number of times the presenter blitted the last frame again to repair the display, because the
+     * renderer changed or no new frame was published for a while.
+     *
+     * @return The number of frames refreshed.
+     */
+    public long getFramesRefreshed()
+    {
+        FramePresenter presenter = this.presenter;
+        return presenter != null ? presenter.getRefreshed() : 0;
+    }
 
-        // If we've reached the start of a frame, clear the current buffer
-        if (scanline == 0)
-            System.arraycopy(BLANK, 0, data, 0, data.length);
+    /**
+     * Retrieves the number of rendered frames identical to the one before, which were not presented again. Divided
+     * by {@link #getFramesRendered()}, this gives the share of presentation work saved.
+     *
+     * @return The number of unchanged frames.
+     */
+    public long getFramesUnchanged()
+    {
+        return framesUnchanged;
+    }
 
-        // Draw the background if it's enabled
-        if (backgroundEnabled())
-            drawBackgroundTiles(data, scanline);
+    /**
+     * Retrieves the number of completed frames the presenter blitted, not counting duplicates.
+     *
+     * @return The number of frames presented.
+     */
+    public long getFramesPresented()
+    {
+        FramePresenter presenter = this.presenter;
+        return presenter != null ? presenter.getPresented() : 0;
+    }
 
-        // If sprites are enabled, draw them.
-        if (spritesEnabled())
-            drawSprites(data, scanline);
+    /**
+     * Applies settings changed from other threads since the last frame, before a new one starts.
+     */
+    private void startFrame()
+    {
+        ColorCorrection correction = pendingCorrection;
+        if (correction != null)
+        {
+            pendingCorrection = null;
+            applyColorCorrection(correction);
+        }
 
-        // If the window appears in this scanline, draw it
-        if (windowEnabled() && scanline >= getWindowPosY() && getWindowPosX() < W && getWindowPosY() >= 0)
-            drawWindow(data, scanline);
+        boolean parallel = parallelRendering;
+        if (parallel && renderWorker == null)
+        {
+            renderWorker = new RenderWorker(this, core.cartridge.isColorGB, !core.compact,
+                    new RenderWorker.Snapshot(core.mmu, resolvedColors));
+            renderWorker.start();
+        } else if (!parallel && renderWorker != null)
+        {
+            // Whatever the worker still has queued must reach the display before we draw here again
+            renderWorker.close();
+            renderWorker = null;
+        }
     }
 
     /**
-     * Attempt to draw background tiles.
+     * Registers a listener to be called at the start of every V-Blank period.
      *
-     * @param data     The raster to write to.
-     * @param scanline The current scanline.
+     * @param listener The listener to add.
      */
-    private void drawBackgroundTiles(int[] data, int scanline)
+    public synchronized void addVBlankListener(VBlankListener listener)
     {
-        // Local reference to save time
-        byte[] vram = core.mmu.vram;
-
-        int tileDataOffset = getTileDataOffset();
-
-        // The background is scrollable
-        int scrollY = getScrollY();
-        int scrollX = getScrollX();
+        VBlankListener[] listeners = Arrays.copyOf(vblankListeners, vblankListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        vblankListeners = listeners;
+    }
 
-        int y = (scanline + getScrollY() % 8) / 8;
+    /**
+     * Removes a V-Blank listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public synchronized void removeVBlankListener(VBlankListener listener)
+    {
+        List<VBlankListener> listeners = new ArrayList<>(Arrays.asList(vblankListeners));
+        listeners.remove(listener);
+        vblankListeners = listeners.toArray(new VBlankListener[listeners.size()]);
+    }
 
-        // Determine the offset into the VRAM tile bank
-        int offset = getBackgroundTileMapOffset();
+    /**
+     * Sets the sink every scanline is output to as it is drawn.
+     * <p/>
+     * Scanlines are drawn for a session without a display as long as a sink is set, in which case screenBuffer is
+     * left alone and the sink receives the only output.
+     *
+     * @param sink The sink, or null for none.
+     */
+    public void setScanlineSink(ScanlineSink sink)
+    {
+        scanlineSink = sink;
+    }
 
-        /**
-         * BG Map Tile Numbers
-         * <pre>
-         *      An area of VRAM known as Background Tile Map contains the numbers of tiles to
-         *      be displayed. It is organized as 32 rows of 32 bytes each. Each byte contains a number
-         *      of a tile to be displayed. Tile patterns are taken from the Tile Data Table located either
-         *      at $8000-8FFF or $8800-97FF. In the first case, patterns are numbered with
-         *      unsigned numbers from 0 to 255 (i.e. pattern #0 lies at address $8000). In the second case,
-         *      patterns have signed numbers from -128 to 127 (i.e. pattern #0 lies at address $9000).
-         *      The Tile Data Table address for the background can be selected via LCDC register.
-         * </pre>
-         *
-         * @{see http://bgb.bircd.org/pandocs.htm#vrambackgroundmaps}
-         */
+    /**
+     * Draws the scanlines the LCD has passed since the last catch up.
+     * <p/>
+     * Scanlines are drawn lazily: the LCD only marks each one as pending when it reaches it, and pending lines are
+     * drawn in one go, either at the end of the frame or just before anything they depend on changes. Whatever
+     * writes to LCDC, the scroll and window registers, palettes, vram or OAM must call this first, so each line is
+     * still drawn exactly as it would have been when the LCD reached it. Frames without raster effects are then drawn
+     * in a single burst, and games which do change things between lines still see every line drawn with the state
+     * it had.
+     * <p/>
+     * Must be called on the emulation thread.
+     */
+    public void catchUp()
+    {
+        // This is called on every vram write, so keep the common case small enough to inline there
+        if (renderedLines < pendingLines) drawPending();
+    }
 
-        // 20 8x8 tiles fit in a 160px-wide screen
-        for (int x = 0; x < 21; x++)
+    /**
+     * Draws the pending scanlines, or has the render worker draw them.
+     */
+    private void drawPending()
+    {
+        int line = renderedLines, end = pendingLines;
+        renderedLines = end;
+        if (renderWorker != null)
         {
-            int addressBase = offset + ((y + scrollY / 8) % 32 * 32) + ((x + scrollX / 8) % 32);
-            // add 256 to jump into second tile pattern table
-            int tile = tileDataOffset == 0 ? vram[addressBase] & 0xff : vram[addressBase] + 256;
+            renderWorker.record(RenderWorker.DRAW, line, end);
+            return;
+        }
+        while (line < end)
+            draw(line++);
+    }
 
-            // Tile attributes
-            int gbcVramBank = 0;
-            int gbcPalette = 0;
-            boolean flipX = false;
-            boolean flipY = false;
+    /**
+     * Prepares for a write to an I/O register which scanlines are drawn from. Internal function for use in a Memory
+     * controller, which must call it before the write.
+     *
+     * @param reg  The register written to.
+     * @param data The data written.
+     */
+    public void beforeRegisterWrite(int reg, int data)
+    {
+        catchUp();
+        if (renderWorker != null) renderWorker.record(RenderWorker.REGISTER, reg, data);
+    }
 
-            /**
-             * BG Map Attributes (CGB Mode only)
-             * <pre>
-             *      In CGB Mode, an additional map of 32x32 bytes is stored in VRAM Bank 1 (each byte defines attributes for the corresponding tile-number map entry in VRAM Bank 0):
-             *
-             *      Bit 0-2  Background Palette number  (BGP0-7)
-             *      Bit 3    Tile VRAM Bank number      (0=Bank 0, 1=Bank 1)
-             *      Bit 4    Not used
-             *      Bit 5    Horizontal Flip            (0=Normal, 1=Mirror horizontally)
-             *      Bit 6    Vertical Flip              (0=Normal, 1=Mirror vertically)
-             *      Bit 7    BG-to-OAM Priority         (0=Use OAM priority bit, 1=BG Priority)
-             * </pre>
-             *
-             * @{see http://bgb.bircd.org/pandocs.htm#vrambackgroundmaps}
-             */
-            if (core.cartridge.isColorGB)
-            {
-                int attribs = vram[Memory.VRAM_PAGESIZE + addressBase];
+    /**
+     * Prepares for a write to vram. Internal function for use in a Memory controller, which must call it before the
+     * write.
+     *
+     * @param index The index into vram, including the bank offset.
+     * @param data  The data written.
+     */
+    public void beforeVramWrite(int index, int data)
+    {
+        catchUp();
+        if (renderWorker != null) renderWorker.record(RenderWorker.VRAM, index, data);
+    }
 
-                if ((attribs & 0x8) != 0) gbcVramBank = 1;
-                flipX = (attribs & 0x20) != 0;
-                flipY = (attribs & 0x40) != 0;
-                gbcPalette = (attribs & 0x7);
-            }
+    /**
+     * Prepares for a write to OAM. Internal function for use in a Memory controller, which must call it before the
+     * write.
+     *
+     * @param index The index into OAM.
+     * @param data  The data written.
+     */
+    public void beforeOamWrite(int index, int data)
+    {
+        catchUp();
+        if (renderWorker != null) renderWorker.record(RenderWorker.OAM, index, data);
+    }
 
-            // Delegate tile drawing
-            drawTile(bgPalettes[gbcPalette],
-                    data,
-                    -(scrollX % 8) + x * 8, -(scrollY % 8) + y * 8,
-                    tile,
-                    scanline,
-                    flipX, flipY,
-                    gbcVramBank,
-                    0,
-                    false);
-        }
+    /**
+     * Notes that vram was reallocated to make room for another bank. Internal function for use in a Memory
+     * controller.
+     *
+     * @param length The new length of vram.
+     */
+    public void vramResized(int length)
+    {
+        catchUp();
+        if (renderWorker != null) renderWorker.record(RenderWorker.VRAM_BANKS, 0, length);
     }
 
     /**
-     * Attempt to draw window tiles.
+     * Sets whether scanlines are drawn on a thread of their own. Takes effect from the next frame.
+     * <p/>
+     * With parallel rendering on, the emulation thread only records what changes between scanlines, and a render
+     * thread draws from its own copy of the state while the next frame is emulated. The output is identical either
+     * way, but reaches screenBuffer and the scanline sink up to a frame later, on the render thread.
      *
-     * @param data     The raster to write to.
-     * @param scanline The current scanline.
+     * @param parallel Whether to draw on a thread of its own.
      */
-    private void drawWindow(int[] data, int scanline)
+    public void setParallelRendering(boolean parallel)
     {
-        // Local reference to save time
-        byte[] vram = core.mmu.vram;
+        parallelRendering = parallel;
+    }
 
-        int tileDataOffset = getTileDataOffset();
+    /**
+     * Determines whether scanlines are drawn on a thread of their own.
+     *
+     * @return Whether parallel rendering is on, or will be from the next frame.
+     */
+    public boolean isParallelRendering()
+    {
+        return parallelRendering;
+    }
 
-        // The window layer is offset-able from 0,0
-        int posX = getWindowPosX();
-        int posY = getWindowPosY();
+    /**
+     * Sets which frames are rendered. Takes effect from the next frame.
+     *
+     * @param frameSkip The frame skip policy.
+     */
+    public void setFrameSkip(FrameSkip frameSkip)
+    {
+        this.frameSkip = frameSkip;
+    }
 
-        int tileMapOffset = getWindowTileMapOffset();
+    /**
+     * Retrieves which frames are rendered.
+     *
+     * @return The frame skip policy.
+     */
+    public FrameSkip getFrameSkip()
+    {
+        return frameSkip;
+    }
 
-        int y = (scanline - posY) / 8;
-        for (int x = getWindowPosX() / 8; x < 21; x++)
-        {
-            // 32 tiles a row
-            int addressBase = tileMapOffset + (x + y * 32);
+    /**
+     * Retrieves the number of frames rendered while the display was enabled and there was somewhere to draw them.
+     *
+     * @return The number of frames rendered.
+     */
+    public long getFramesRendered()
+    {
+        return framesRendered;
+    }
 
-            // add 256 to jump into second tile pattern table
-            int tile = tileDataOffset == 0 ? vram[addressBase] & 0xff : vram[addressBase] + 256;
+    /**
+     * Retrieves the number of frames skipped by the frame skip policy.
+     *
+     * @return The number of frames skipped.
+     */
+    public long getFramesSkipped()
+    {
+        return framesSkipped;
+    }
 
-            int gbcVramBank = 0;
-            boolean flipX = false;
-            boolean flipY = false;
-            int gbcPalette = 0;
+    /**
+     * Decides whether the frame about to start is rendered, according to the frame skip policy.
+     *
+     * @return Whether to render the frame.
+     */
+    private boolean shouldRender()
+    {
+        FrameSkip policy = frameSkip;
+        boolean render;
+        switch (policy)
+        {
+            case AUTO:
+                render = !isBehind() || skippedInRow >= MAX_AUTO_SKIP;
+                break;
+            case PRESENT_ONLY:
+                render = scanlineSink != null || (core.display != null && core.display.isShowing());
+                break;
+            default:
+                render = skippedInRow >= policy.interval;
+                break;
+        }
 
-            /**
-             * Same rules apply here as for background tiles.
-             *
-             * @{see http://bgb.bircd.org/pandocs.htm#vrambackgroundmaps}
-             */
-            if (core.cartridge.isColorGB)
-            {
-                int attribs = vram[Memory.VRAM_PAGESIZE + addressBase];
-                if ((attribs & 0x8) != 0) gbcVramBank = 1;
-                flipX = (attribs & 0x20) != 0;
-                flipY = (attribs & 0x40) != 0;
-                gbcPalette = (attribs & 0x07);
-            }
+        // Only automatic skipping measures frames; start afresh whenever it is switched to
+        if (policy != FrameSkip.AUTO) frameStartTime = -1;
 
-            drawTile(bgPalettes[gbcPalette],
-                    data,
-                    posX + x * 8, posY + y * 8,
-                    tile,
-                    scanline,
-                    flipX, flipY,
-                    gbcVramBank,
-                    P_6,
-                    false);
-        }
+        skippedInRow = render ? 0 : skippedInRow + 1;
+        return render;
     }
 
     /**
-     * Attempt to draw a single line of a tile.
+     * Measures the real time the last frame took, and checks whether emulation is falling behind.
+     * <p/>
+     * While emulation keeps up, the emulator sleeps off the rest of each frame, so frames average exactly their
+     * emulated length. Only when frames keep taking longer is there any time to win back by skipping.
      *
-     * @param palette      The palette currently in use.
-     * @param data         An array of W * H elements, representing the LCD raster.
-     * @param x            The x-coordinate of the tile.
-     * @param y            The y-coordinate of the tile.
-     * @param tile         The tile id to draw.
-     * @param scanline     The current LCD scanline.
-     * @param flipX        Whether the tile should be flipped vertically.
-     * @param flipY        Whether the tile should be flipped horizontally.
-     * @param bank         The tile bank to use.
-     * @param basePriority The current priority for the given tile.
-     * @param sprite       Whether the tile belongs to a sprite or not.
+     * @return Whether frames have been taking longer than real time allows.
      */
-    private void drawTile(IPalette palette, int[] data, int x, int y, int tile, int scanline,
-                          boolean flipX, boolean flipY, int bank, int basePriority, boolean sprite)
+    private boolean isBehind()
     {
-        // Store a local copy to save a lot of load opcodes.
-        byte[] vram = core.mmu.vram;
-        int line = scanline - y;
-        int addressBase = Memory.VRAM_PAGESIZE * bank + tile * 16;
+        long now = System.nanoTime();
+        long elapsed = now - frameStartTime;
+        boolean measured = frameStartTime != -1;
+        frameStartTime = now;
 
-        // 8 pixel width
-        for (int px = 0; px < 8; px++)
-        {
-            // Destination pixels
-            int dx = x + px;
+        // There is no schedule to fall behind when speed isn't emulated
+        if (!measured || !core.emulateSpeed) return false;
 
-            // If we're out of bounds, continue iteration
-            if (dx < 0 || dx >= W || scanline >= H)
-                continue;
+        // The LCD runs off the base clock, even in double speed mode
+        long clockSpeed = core.isDoubleSpeed() ? core.clockSpeed / 2 : core.clockSpeed;
+        long frameTime = FRAME_CYCLES * 1_000_000_000L / clockSpeed;
 
-            // Check if our current priority should overwrite the current priority
-            int index = dx + scanline * W;
-            if (basePriority != 0 && basePriority < (data[index] & 0xFF000000))
-                continue;
+        // Ignore frames spanning a pause; they say nothing about how fast we run
+        if (elapsed > 1_000_000_000L) return false;
+        averageFrameTime += (elapsed - averageFrameTime) / 8;
 
-            /**
-             * For each line, the first byte defines the least significant bits of the
-             * color numbers for each pixel, and the second byte defines the upper bits of the color numbers.
-             * In either case, Bit 7 is the leftmost pixel, and Bit 0 the rightmost.
-             */
-            // here we handle the x and y flipping by tweaking the indexes we are accessing
-            int logicalLine = (flipY ? 7 - line : line);
-            int logicalX = (flipX ? 7 - px : px);
-
-            int address = addressBase + logicalLine * 2;
-
-            int paletteIndex =
-                    (
-                            (
-                                    (
-                                            // each tile takes up 16 bytes, and each line takes 2 bytes
-                                            vram[address + 1] & (0x80 >> logicalX)
-                                    ) >> (7 - logicalX)
-                            ) << 1 // this is the upper bit of the color number
-                    ) |
-                            (
-                                    (
-                                            vram[address] & (0x80 >> logicalX)
-                                    ) >> (7 - logicalX)
-                            ); // << 0, this is the lower bit of the color number
-
-            boolean index0 = paletteIndex == 0;
-            int priority = basePriority == 0 ? (index0 ? P_1 : P_3) : basePriority;
-            if (sprite && index0)
-                continue;
-
-            if (priority >= (data[index] & 0xFF000000))
-                data[index] = priority | palette.getColor(paletteIndex);
-        }
+        // Allow for the emulator oversleeping a little
+        return averageFrameTime > frameTime + frameTime / 16;
     }
 
     /**
-     * Attempts to draw all sprites.
+     * Writes the LCD state into a {@link nitrous.MachineState} arena.
      *
-     * @param data     The raster to write to.
-     * @param scanline The current scanline.
+     * @param state The arena, positioned at the start of the LCD region; {@link #STATE_SIZE} bytes are used.
      */
-    private void drawSprites(int[] data, int scanline)
+    public void saveState(ByteBuffer state)
     {
-        // Hold local references to save a lot of load opcodes
-        byte[] oam = core.mmu.oam;
-        boolean tall = isUsingTallSprites();
-        boolean isColorGB = core.cartridge.isColorGB;
-
-        // Actual GameBoy hardware can only handle drawing 10 sprites per line
-        // our code doesn't actually have this limitation, but we artificially introduce it by keeping
-        // track of how many sprites are drawn per line
-        for (int i = 0; i < oam.length && spritesDrawnPerLine[scanline] < 10; i += 4)
-        {
-            /**
-             * Sprite attributes reside in the Sprite Attribute Table (OAM - Object Attribute Memory) at $FE00-FE9F.
-             * Each of the 40 entries consists of four bytes with the following meanings:
-             *
-             * Byte0 - Y Position
-             * <pre>
-             *      Specifies the sprites vertical position on the screen (minus 16).
-             *      An offscreen value (for example, Y=0 or Y>=160) hides the sprite.
-             * </pre>
-             *
-             * Byte1 - X Position
-             * <pre>
-             *      Specifies the sprites horizontal position on the screen (minus 8).
-             *      An offscreen value (X=0 or X>=168) hides the sprite, but the sprite
-             *      still affects the priority ordering - a better way to hide a sprite is to set its Y-coordinate offscreen.
-             * </pre>
-             *
-             * Byte2 - Tile/Pattern Number
-             * <pre>
-             *      Specifies the sprites Tile Number (00-FF). This (unsigned) value selects a tile from memory at 8000h-8FFFh.
-             *      In CGB Mode this could be either in VRAM Bank 0 or 1, depending on Bit 3 of the following byte.
-             *      In 8x16 mode, the lower bit of the tile number is ignored. Ie. the upper 8x8 tile is "NN AND FEh", and
-             *      the lower 8x8 tile is "NN OR 01h".
-             * </pre>
-             *
-             * Byte3 - Attributes/Flags:
-             * <pre>
-             *      Bit7   OBJ-to-BG Priority (0=OBJ Above BG, 1=OBJ Behind BG color 1-3)
-             *      (Used for both BG and Window. BG color 0 is always behind OBJ)
-             *      Bit6   Y flip          (0=Normal, 1=Vertically mirrored)
-             *      Bit5   X flip          (0=Normal, 1=Horizontally mirrored)
-             *      Bit4   Palette number  **Non CGB Mode Only** (0=OBP0, 1=OBP1)
-             *      Bit3   Tile VRAM-Bank  **CGB Mode Only**     (0=Bank 0, 1=Bank 1)
-             *      Bit2-0 Palette number  **CGB Mode Only**     (OBP0-7)
-             * </pre>
-             *
-             * {@see http://bgb.bircd.org/pandocs.htm#vramspriteattributetableoam}
-             */
+        int base = state.position();
+        state.put(gbcBackgroundPaletteMemory).put(gbcSpritePaletteMemory).putLong(lcdCycles);
+        state.position(base + STATE_SIZE);
+    }
 
-            int y = oam[i] & 0xff;
+    /**
+     * Restores the LCD state from a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the LCD region.
+     */
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+        state.get(gbcBackgroundPaletteMemory).get(gbcSpritePaletteMemory);
+        lcdCycles = state.getLong();
+        state.position(base + STATE_SIZE);
 
-            // Have we exited our bounds?
-            if (!tall && !(y - 16 <= scanline && scanline < y - 8))
-                continue;
+        // Anything pending was drawn before the rest of the state was replaced; carry on from the restored line
+        renderedLines = pendingLines = core.mmu.registers[R_LY] & 0xFF;
 
-            byte attribs = oam[i + 3];
-            int vrambank = (attribs & 0b1000) != 0 && isColorGB ? 1 : 0;
-            int priority = (attribs & 0x80) != 0 ? P_2 : P_5;
+        // DMG palettes are resolved from their registers, which the memory controller has restored already, and CGB
+        // ones are decoded from palette memory
+        if (core.cartridge.isColorGB)
+        {
+            loadPalettesFromMemory(gbcSpritePaletteMemory, spritePalettes, SPRITE_COLORS);
+            loadPalettesFromMemory(gbcBackgroundPaletteMemory, bgPalettes, 0);
+        } else
+        {
+            loadPalettesFromRegisters();
+        }
 
-            int x = oam[i + 1] & 0xff;
-            int tile = oam[i + 2] & 0xff;
-            boolean flipX = (attribs & 0x20) != 0;
-            boolean flipY = (attribs & 0x40) != 0;
-            int obp = isColorGB ? (attribs & 0x7) : (attribs >> 4) & 0x1;
+        // The render worker has no way to follow the state being replaced wholesale, so it starts over from a copy
+        if (renderWorker != null) renderWorker.record(new RenderWorker.Snapshot(core.mmu, resolvedColors));
+    }
 
-            IPalette pal = spritePalettes[obp];
+    /**
+     * Estimates the heap retained by this LCD's buffers.
+     *
+     * @return The size of the frame buffer and palette memory, in bytes.
+     */
+    public long getFootprint()
+    {
+        return (screenBuffer != null ? W * H * 4 : 0) + gbcBackgroundPaletteMemory.length
+                + gbcSpritePaletteMemory.length + sprites.getFootprint() + renderer.getFootprint()
+                + (resolvedColors.length + lineEncoded.length) * 4 + tiles.getFootprint()
+                + (renderWorker != null ? renderWorker.getFootprint() : 0);
+    }
 
-            // Handle drawing double sprites
-            if (tall)
+    /**
+     * Initializes renderers to draw on the current Emulator display.
+     */
+    @SuppressWarnings("deprecation")
+    public void initializeRenderers()
+    {
+        renderers = Collections.unmodifiableList(new ArrayList<IRenderManager>()
+        {{
+            for (Class<? extends IRenderManager> rendererClass : IRenderManager.RENDERERS)
             {
-                // If we're using tall sprites we actually have to flip the order that we draw the top/bottom tiles
-                int hi = flipY ? (tile | 0x01) : (tile & 0xFE);
-                int lo = flipY ? (tile & 0xFE) : (tile | 0x01);
-                if (y - 16 <= scanline && scanline < y - 8)
+                IRenderManager renderer;
+                try
+                {
+                    System.err.println(rendererClass);
+                    // Look up peer reflectively since Container#getPeer is removed in
+                    // Java 9; this is still "illegal access" as far as the JRE cares,
+                    // but it should work till Java 10 at least.
+                    Field peer = Component.class.getDeclaredField("peer");
+                    peer.setAccessible(true);
+                    renderer = rendererClass.getDeclaredConstructor(ComponentPeer.class).newInstance(peer.get(core.display));
+                } catch (ReflectiveOperationException ignored)
                 {
-                    drawTile(pal, data, x - 8, y - 16, hi, scanline, flipX, flipY, vrambank, priority, true);
-                    spritesDrawnPerLine[scanline]++;
+                    // #error failure means we try the next renderer
+                    continue;
                 }
-                if (y - 8 <= scanline && scanline < y)
+                if (renderer.getGraphics() != null)
+                {
+                    add(renderer);
+                    if (currentRenderer == null)
+                    {
+                        System.out.println("Using " + renderer);
+                        currentRenderer = renderer;
+                    }
+                } else
                 {
-                    drawTile(pal, data, x - 8, y - 8, lo, scanline, flipX, flipY, vrambank, priority, true);
-                    spritesDrawnPerLine[scanline]++;
+                    System.err.println(renderer + " failed to produce a Graphics2D");
                 }
+            }
+        }});
+
+        // The presenter may be asleep; have it show the last frame on the new renderer right away
+        FramePresenter presenter = this.presenter;
+        if (presenter != null) presenter.wake();
+    }
+
+    /**
+     * Draws a scanline from live memory, and outputs it. {@link ScanlineBenchmark} measures how long this takes.
+     *
+     * @param scanline The scanline to draw.
+     */
+    public void draw(int scanline)
+    {
+        // Memory reallocates vram when a compact session first uses the second bank
+        renderer.vram = core.mmu.vram;
+        if (renderer.draw(scanline)) output(scanline, renderer.lineColors, resolvedColors, lineEncoded);
+    }
+
+    /**
+     * Turns the colour indices of a drawn scanline into pixels, in screenBuffer and for the scanline sink.
+     *
+     * @param scanline The current scanline.
+     * @param colors   The colour index of each pixel.
+     * @param rgb      The RGB value of each colour index, as the palettes were when the scanline was drawn.
+     * @param encoded  Scratch space for colour indices in the sink's pixel format.
+     */
+    void output(int scanline, byte[] colors, int[] rgb, int[] encoded)
+    {
+        ScanlineSink sink = scanlineSink;
+        if (sink == null || core.display != null)
+        {
+            if (screenBuffer == null)
+                screenBuffer = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+
+            /**
+             * Obtain the backing array for the BufferedImage screenBuffer. In theory, we could use BufferedImage.setRGB
+             * to draw, but this would be significantly more expensive than an array lookup.
+             */
+            DataBufferInt dbb = (DataBufferInt) screenBuffer.getRaster().getDataBuffer();
+            int[] data = dbb.getData(0);
+            int base = scanline * W;
+
+            // Compare with the frame on display while we're at it, so unchanged frames needn't be presented again
+            int[] previous = publishedPixels;
+            if (previous != null && !frameChanged)
+            {
+                int diff = 0;
+                for (int x = 0; x < W; x++)
+                {
+                    int pixel = rgb[colors[x]];
+                    diff |= pixel ^ previous[base + x];
+                    data[base + x] = pixel;
+                }
+                frameChanged = diff != 0;
             } else
             {
-                drawTile(pal, data, x - 8, y - 16, tile, scanline, flipX, flipY, vrambank, priority, true);
-                spritesDrawnPerLine[scanline]++;
+                for (int x = 0; x < W; x++)
+                    data[base + x] = rgb[colors[x]];
+                frameChanged = true;
+            }
+            drawnLines[scanline] = true;
+        } else
+        {
+            // Without a frame to compare with, remember a hash of each line instead
+            long hash = 0xCBF29CE484222325L;
+            for (int x = 0; x < W; x++)
+                hash = (hash ^ rgb[colors[x]]) * 0x100000001B3L;
+            if (hash != lineHashes[scanline])
+            {
+                lineHashes[scanline] = hash;
+                frameChanged = true;
+            }
+        }
+
+        if (sink != null)
+        {
+            PixelFormat format = sink.getPixelFormat();
+            int[] values = rgb;
+            if (format != PixelFormat.RGB && format != PixelFormat.INDEXED)
+            {
+                values = encoded;
+                for (int i = 0; i < values.length; i++)
+                    values[i] = format.encode(rgb[i]);
             }
+            sink.scanline(scanline, colors, values);
         }
     }
 
@@ -804,7 +1279,7 @@ public class LCD
      */
     public boolean displayEnabled()
     {
-        return (core.mmu.registers[R_LCDC] & LCDC.CONTROL_OPERATION_BIT) != 0;
+        return renderer.displayEnabled();
     }
 
     /**
@@ -814,7 +1289,7 @@ public class LCD
      */
     public boolean backgroundEnabled()
     {
-        return (core.mmu.registers[R_LCDC] & LCDC.BGWINDOW_DISPLAY_BIT) != 0;
+        return renderer.backgroundEnabled();
     }
 
     /**
@@ -824,9 +1299,7 @@ public class LCD
      */
     public int getWindowTileMapOffset()
     {
-        if ((core.mmu.registers[R_LCDC] & LCDC.WINDOW_TILE_MAP_DISPLAY_SELECT_BIT) != 0)
-            return 0x1c00;
-        return 0x1800;
+        return renderer.getWindowTileMapOffset();
     }
 
     /**
@@ -836,9 +1309,7 @@ public class LCD
      */
     public int getBackgroundTileMapOffset()
     {
-        if ((core.mmu.registers[R_LCDC] & LCDC.BG_TILE_MAP_DISPLAY_SELECT_BIT) != 0)
-            return 0x1c00;
-        return 0x1800;
+        return renderer.getBackgroundTileMapOffset();
     }
 
     /**
@@ -848,7 +1319,7 @@ public class LCD
      */
     public boolean isUsingTallSprites()
     {
-        return (core.mmu.registers[R_LCDC] & LCDC.SPRITE_SIZE_BIT) != 0;
+        return renderer.isUsingTallSprites();
     }
 
     /**
@@ -858,7 +1329,7 @@ public class LCD
      */
     public boolean spritesEnabled()
     {
-        return (core.mmu.registers[R_LCDC] & LCDC.SPRITE_DISPLAY_BIT) != 0;
+        return renderer.spritesEnabled();
     }
 
     /**
@@ -868,7 +1339,7 @@ public class LCD
      */
     public boolean windowEnabled()
     {
-        return (core.mmu.registers[R_LCDC] & LCDC.WINDOW_DISPLAY_BIT) != 0;
+        return renderer.windowEnabled();
     }
 
     /**
@@ -880,9 +1351,7 @@ public class LCD
      */
     public int getTileDataOffset()
     {
-        if ((core.mmu.registers[R_LCDC] & LCDC.BGWINDOW_TILE_DATA_SELECT_BIT) != 0)
-            return 0;
-        return 0x0800;
+        return renderer.getTileDataOffset();
     }
 
     /**
@@ -892,7 +1361,7 @@ public class LCD
      */
     public int getScrollX()
     {
-        return (core.mmu.registers[R_SCX] & 0xFF);
+        return renderer.getScrollX();
     }
 
     /**
@@ -902,7 +1371,7 @@ public class LCD
      */
     public int getScrollY()
     {
-        return (core.mmu.registers[R_SCY] & 0xff);
+        return renderer.getScrollY();
     }
 
     /**
@@ -912,7 +1381,7 @@ public class LCD
      */
     public int getWindowPosX()
     {
-        return (core.mmu.registers[R_WX] & 0xFF) - 7;
+        return renderer.getWindowPosX();
     }
 
     /**
@@ -922,6 +1391,6 @@ public class LCD
      */
     public int getWindowPosY()
     {
-        return (core.mmu.registers[R_WY] & 0xFF);
+        return renderer.getWindowPosY();
     }
 }
@@ -0,0 +1,68 @@
+package nitrous.lcd;
+
+/**
+ * The pixel formats a {@link LCD.ScanlineSink} can receive scanlines in.
+ * <p/>
+ * The LCD renders each scanline as colour indices, and encodes only the line's 65 possible colours into the sink's
+ * format, so a sink can write its own format directly without converting from RGB itself.
+ *
+ * @author Tudor
+ */
+public enum PixelFormat
+{
+    /**
+     * 32-bit 0x00RRGGBB, as used by {@link java.awt.image.BufferedImage#TYPE_INT_RGB}.
+     */
+    RGB(4),
+
+    /**
+     * 32-bit 0xAARRGGBB with opaque alpha; stored little-endian, its bytes are blue, green, red and alpha, as most
+     * native framebuffers expect.
+     */
+    BGRA(4),
+
+    /**
+     * 16-bit RGB565, red in the top 5 bits.
+     */
+    RGB565(2),
+
+    /**
+     * 8-bit colour indices, as rendered. Sinks copy the indices themselves, and receive the colours as
+     * {@link #RGB} to use as the line's palette.
+     */
+    INDEXED(1);
+
+    /**
+     * The size of an encoded pixel, in bytes.
+     */
+    public final int bytesPerPixel;
+
+    /**
+     * Creates a new PixelFormat.
+     *
+     * @param bytesPerPixel The size of an encoded pixel, in bytes.
+     */
+    PixelFormat(int bytesPerPixel)
+    {
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    /**
+     * Encodes a colour in this format.
+     *
+     * @param rgb The colour, as 0x00RRGGBB.
+     * @return The encoded pixel, in the low bits.
+     */
+    public int encode(int rgb)
+    {
+        switch (this)
+        {
+            case BGRA:
+                return 0xFF000000 | rgb;
+            case RGB565:
+                return ((rgb >> 8) & 0xF800) | ((rgb >> 5) & 0x07E0) | ((rgb >> 3) & 0x001F);
+            default:
+                return rgb & 0xFFFFFF;
+        }
+    }
+}
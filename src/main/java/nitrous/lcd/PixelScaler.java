@@ -0,0 +1,292 @@
+package nitrous.lcd;
+
+/**
+ * Software scalers for pixel art, which magnify a frame by a whole factor while keeping its edges sharp.
+ * <p/>
+ * Unlike bilinear or bicubic interpolation, which blur every edge alike, these look at each pixel's neighbours to
+ * tell which edges are meant to be diagonal lines and smooth only those. They work on the colour indices a
+ * {@link ColorTable} numbers, so that telling two neighbours apart is a table lookup rather than a colour
+ * conversion. Each scales a band of rows at a time, independently of the others, so a {@link FrameScaler} can
+ * spread a frame's rows across threads.
+ * <p/>
+ * Throughput on a single core, as measured by {@link ScalerBenchmark}, in frames per second:
+ * <pre>
+ *     Scale2x   2x   10000-14000
+ *     Scale3x   3x    8000
+ *     HQ2x      2x    3800
+ *     xBR       2x    3600
+ * </pre>
+ * For comparison, Java2D's bilinear interpolation manages about 1600 frames per second at 2x and 400 at 4x, and its
+ * bicubic interpolation 320 at 2x and only 80 at 4x. Only the display's final stretch is left to Java2D, and it is
+ * nearest-neighbour whenever the display is a whole multiple of the scaled frame.
+ *
+ * @author Tudor
+ */
+public enum PixelScaler
+{
+    /**
+     * Scale2x (AdvMAME2x): fills in the corners of diagonal edges, with no blending.
+     */
+    SCALE2X(2)
+            {
+                @Override
+                void scale(ColorTable table, int[] src, int stride, int[] dst, int width, int from, int to)
+                {
+                    int[] colors = table.colors;
+                    int out = width * 2;
+                    for (int y = from; y < to; y++)
+                    {
+                        int p = (y + PAD) * stride + PAD;
+                        int q = y * 2 * out;
+                        for (int x = 0; x < width; x++, p++, q += 2)
+                        {
+                            int b = src[p - stride], d = src[p - 1], e = src[p], f = src[p + 1], h = src[p + stride];
+                            int ce = colors[e];
+                            if (b != h && d != f)
+                            {
+                                dst[q] = d == b ? colors[d] : ce;
+                                dst[q + 1] = b == f ? colors[f] : ce;
+                                dst[q + out] = d == h ? colors[d] : ce;
+                                dst[q + out + 1] = h == f ? colors[f] : ce;
+                            } else
+                            {
+                                dst[q] = dst[q + 1] = dst[q + out] = dst[q + out + 1] = ce;
+                            }
+                        }
+                    }
+                }
+            },
+
+    /**
+     * Scale3x (AdvMAME3x): Scale2x's rules extended to thirds, so edges step more finely.
+     */
+    SCALE3X(3)
+            {
+                @Override
+                void scale(ColorTable table, int[] src, int stride, int[] dst, int width, int from, int to)
+                {
+                    int[] colors = table.colors;
+                    int out = width * 3;
+                    for (int y = from; y < to; y++)
+                    {
+                        int p = (y + PAD) * stride + PAD;
+                        int q = y * 3 * out;
+                        for (int x = 0; x < width; x++, p++, q += 3)
+                        {
+                            int a = src[p - stride - 1], b = src[p - stride], c = src[p - stride + 1];
+                            int d = src[p - 1], e = src[p], f = src[p + 1];
+                            int g = src[p + stride - 1], h = src[p + stride], i = src[p + stride + 1];
+                            int ce = colors[e];
+                            int q1 = q + out, q2 = q1 + out;
+                            if (b != h && d != f)
+                            {
+                                dst[q] = d == b ? colors[d] : ce;
+                                dst[q + 1] = (d == b && e != c) || (b == f && e != a) ? colors[b] : ce;
+                                dst[q + 2] = b == f ? colors[f] : ce;
+                                dst[q1] = (d == b && e != g) || (d == h && e != a) ? colors[d] : ce;
+                                dst[q1 + 1] = ce;
+                                dst[q1 + 2] = (b == f && e != i) || (h == f && e != c) ? colors[f] : ce;
+                                dst[q2] = d == h ? colors[d] : ce;
+                                dst[q2 + 1] = (d == h && e != i) || (h == f && e != g) ? colors[h] : ce;
+                                dst[q2 + 2] = h == f ? colors[f] : ce;
+                            } else
+                            {
+                                dst[q] = dst[q + 1] = dst[q + 2] = ce;
+                                dst[q1] = dst[q1 + 1] = dst[q1 + 2] = ce;
+                                dst[q2] = dst[q2 + 1] = dst[q2 + 2] = ce;
+                            }
+                        }
+                    }
+                }
+            },
+
+    /**
+     * In the style of HQ2x: neighbours are told apart by their YUV difference rather than exact colour, and the
+     * corners of each pixel are blended towards whichever neighbours it borders on.
+     */
+    HQ2X(2)
+            {
+                @Override
+                void scale(ColorTable table, int[] src, int stride, int[] dst, int width, int from, int to)
+                {
+                    int[] colors = table.colors;
+                    int out = width * 2;
+                    for (int y = from; y < to; y++)
+                    {
+                        int p = (y + PAD) * stride + PAD;
+                        int q = y * 2 * out;
+                        for (int x = 0; x < width; x++, p++, q += 2)
+                        {
+                            int a = src[p - stride - 1], b = src[p - stride], c = src[p - stride + 1];
+                            int d = src[p - 1], e = src[p], f = src[p + 1];
+                            int g = src[p + stride - 1], h = src[p + stride], i = src[p + stride + 1];
+                            dst[q] = hqCorner(table, colors, e, b, d, a);
+                            dst[q + 1] = hqCorner(table, colors, e, b, f, c);
+                            dst[q + out] = hqCorner(table, colors, e, h, d, g);
+                            dst[q + out + 1] = hqCorner(table, colors, e, h, f, i);
+                        }
+                    }
+                }
+            },
+
+    /**
+     * A lite take on xBR: each corner weighs the colour distances along both diagonals of a 5x5 neighbourhood to
+     * decide which way an edge runs, and blends across it only if it runs through the corner.
+     */
+    XBR2X(2)
+            {
+                @Override
+                void scale(ColorTable table, int[] src, int stride, int[] dst, int width, int from, int to)
+                {
+                    int[] colors = table.colors;
+                    int out = width * 2;
+                    for (int y = from; y < to; y++)
+                    {
+                        int p = (y + PAD) * stride + PAD;
+                        int q = y * 2 * out;
+                        for (int x = 0; x < width; x++, p++, q += 2)
+                        {
+                            dst[q] = xbrCorner(table, colors, src, p, -1, -stride);
+                            dst[q + 1] = xbrCorner(table, colors, src, p, 1, -stride);
+                            dst[q + out] = xbrCorner(table, colors, src, p, -1, stride);
+                            dst[q + out + 1] = xbrCorner(table, colors, src, p, 1, stride);
+                        }
+                    }
+                }
+            };
+
+    /**
+     * The width of the border around the indices scalers read, so that no neighbour lookup needs bounds checks.
+     */
+    static final int PAD = 2;
+
+    /**
+     * The factor the scaler magnifies by.
+     */
+    public final int factor;
+
+    /**
+     * Creates a new PixelScaler.
+     *
+     * @param factor The factor it magnifies by.
+     */
+    PixelScaler(int factor)
+    {
+        this.factor = factor;
+    }
+
+    /**
+     * Scales a band of rows.
+     *
+     * @param table  The table the frame was indexed with.
+     * @param src    The frame's colour indices, with a border of {@link #PAD}.
+     * @param stride The length of a row of indices, border included.
+     * @param dst    The scaled frame, as RGB, row by row.
+     * @param width  The width of the frame, unscaled.
+     * @param from   The first row to scale, unscaled.
+     * @param to     The row to stop before, unscaled.
+     */
+    abstract void scale(ColorTable table, int[] src, int stride, int[] dst, int width, int from, int to);
+
+    /**
+     * Works out one corner of an HQ2x-style pixel.
+     *
+     * @param table  The table the frame was indexed with.
+     * @param colors The RGB value of each index.
+     * @param e      The pixel.
+     * @param v      Its neighbour above or below, on the corner's side.
+     * @param h      Its neighbour to the left or right, on the corner's side.
+     * @param diag   Its diagonal neighbour at the corner.
+     * @return The corner's colour.
+     */
+    private static int hqCorner(ColorTable table, int[] colors, int e, int v, int h, int diag)
+    {
+        boolean dv = table.different(e, v);
+        boolean dh = table.different(e, h);
+        if (dv && dh)
+        {
+            // An edge runs diagonally past the corner; round it off, more so where it's a line of one colour
+            return table.different(v, h) ? mix211(colors[e], colors[v], colors[h])
+                    : mix31(colors[e], mix11(colors[v], colors[h]));
+        }
+        if (dv) return mix31(colors[e], colors[v]);
+        if (dh) return mix31(colors[e], colors[h]);
+        return table.different(e, diag) ? mix31(colors[e], colors[diag]) : colors[e];
+    }
+
+    /**
+     * Works out one corner of an xBR-lite pixel.
+     *
+     * @param table  The table the frame was indexed with.
+     * @param colors The RGB value of each index.
+     * @param src    The frame's colour indices.
+     * @param p      The position of the pixel.
+     * @param dx     The step towards the corner horizontally, 1 or -1.
+     * @param dy     The step towards the corner vertically, a row forwards or backwards.
+     * @return The corner's colour.
+     */
+    private static int xbrCorner(ColorTable table, int[] colors, int[] src, int p, int dx, int dy)
+    {
+        // Named as for the bottom-right corner, with f to the right, h below and i diagonally between them
+        int e = src[p];
+        int f = src[p + dx], h = src[p + dy];
+        if (e == f || e == h) return colors[e];
+
+        int i = src[p + dx + dy];
+        int b = src[p - dy], d = src[p - dx];
+        int c = src[p + dx - dy], g = src[p - dx + dy];
+        int f4 = src[p + dx * 2], h5 = src[p + dy * 2];
+        int i4 = src[p + dx * 2 + dy], i5 = src[p + dx + dy * 2];
+
+        // Weigh an edge along the corner's anti-diagonal against one crossing it
+        int along = table.distance(e, c) + table.distance(e, g) + table.distance(i, f4) + table.distance(i, h5)
+                + 4 * table.distance(h, f);
+        int across = table.distance(h, d) + table.distance(h, i5) + table.distance(f, i4) + table.distance(f, b)
+                + 4 * table.distance(e, i);
+        if (along >= across) return colors[e];
+
+        int towards = table.distance(e, f) <= table.distance(e, h) ? f : h;
+        return mix11(colors[e], colors[towards]);
+    }
+
+    /**
+     * Blends two colours equally.
+     *
+     * @param a One colour.
+     * @param b The other.
+     * @return The blend.
+     */
+    private static int mix11(int a, int b)
+    {
+        return ((a & 0xFEFEFE) >> 1) + ((b & 0xFEFEFE) >> 1);
+    }
+
+    /**
+     * Blends three parts of one colour with one of another.
+     *
+     * @param a The main colour.
+     * @param b The other.
+     * @return The blend.
+     */
+    private static int mix31(int a, int b)
+    {
+        int rb = ((a & 0xFF00FF) * 3 + (b & 0xFF00FF)) >> 2;
+        int g = ((a & 0x00FF00) * 3 + (b & 0x00FF00)) >> 2;
+        return (rb & 0xFF00FF) | (g & 0x00FF00);
+    }
+
+    /**
+     * Blends two parts of one colour with one each of two others.
+     *
+     * @param a The main colour.
+     * @param b Another.
+     * @param c A third.
+     * @return The blend.
+     */
+    private static int mix211(int a, int b, int c)
+    {
+        int rb = ((a & 0xFF00FF) * 2 + (b & 0xFF00FF) + (c & 0xFF00FF)) >> 2;
+        int g = ((a & 0x00FF00) * 2 + (b & 0x00FF00) + (c & 0x00FF00)) >> 2;
+        return (rb & 0xFF00FF) | (g & 0x00FF00);
+    }
+}
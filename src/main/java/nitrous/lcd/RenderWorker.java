@@ -0,0 +1,438 @@
+package nitrous.lcd;
+
+import nitrous.mbc.Memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Draws scanlines on a thread of its own, while the emulation thread carries on with the next frame.
+ * <p/>
+ * The worker keeps private copies of everything scanlines are drawn from: the LCD registers, vram, OAM and the
+ * resolved palette colours. The emulation thread never shares those with it; instead, it records every change it
+ * makes to them into a log, in between the scanlines the LCD asks to be drawn. Replaying the log in order brings the
+ * copies to exactly the state the live memory had when each scanline was drawn, so the worker's output is identical
+ * to drawing on the emulation thread.
+ * <p/>
+ * The log is handed over one frame at a time, through a pair of {@link Job jobs}: while the worker replays one, the
+ * emulation thread fills the other. Should the worker fall a frame behind, the emulation thread waits for it at the
+ * end of the next frame, so drawing can never lag by more than a frame.
+ *
+ * @author Tudor
+ */
+class RenderWorker extends Thread
+{
+    /**
+     * Records a write to an I/O register: the register, and the value written.
+     */
+    static final int REGISTER = 0;
+
+    /**
+     * Records a write to vram: the index into vram, including the bank offset, and the value written.
+     */
+    static final int VRAM = 1;
+
+    /**
+     * Records a write to OAM: the index into OAM, and the value written.
+     */
+    static final int OAM = 2;
+
+    /**
+     * Records a change to a resolved palette colour: the colour index, and its RGB value.
+     */
+    static final int COLOR = 3;
+
+    /**
+     * Records vram being reallocated: the new length.
+     */
+    static final int VRAM_BANKS = 4;
+
+    /**
+     * Draws a run of scanlines: the first, and the one after the last.
+     */
+    static final int DRAW = 5;
+
+    /**
+     * Ends a frame: whether it is to be presented on the display.
+     */
+    static final int PRESENT = 6;
+
+    /**
+     * Replaces every copy with a snapshot, after a state was loaded: the snapshot's index in the job.
+     */
+    static final int SNAPSHOT = 7;
+
+    /**
+     * A frame's worth of log.
+     * <p/>
+     * Entries are pairs of ints: the first holds the operation in its top byte and an index in the rest, the second a
+     * value.
+     */
+    static class Job
+    {
+        /**
+         * The log entries.
+         */
+        int[] log = new int[0x1000];
+
+        /**
+         * The number of ints of the log in use.
+         */
+        int size;
+
+        /**
+         * The snapshots referred to by {@link #SNAPSHOT} entries.
+         */
+        final List<Snapshot> snapshots = new ArrayList<>();
+
+        /**
+         * Appends an entry to the log.
+         *
+         * @param op    The operation.
+         * @param index The index, 0-FFFFFFh.
+         * @param value The value.
+         */
+        void record(int op, int index, int value)
+        {
+            if (size + 2 > log.length) log = Arrays.copyOf(log, log.length * 2);
+            log[size] = (op << 24) | index;
+            log[size + 1] = value;
+            size += 2;
+        }
+
+        /**
+         * Empties the log, once it has been replayed.
+         */
+        void clear()
+        {
+            size = 0;
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * Copies of everything scanlines are drawn from, taken at a point in time.
+     */
+    static class Snapshot
+    {
+        /**
+         * The I/O registers.
+         */
+        final byte[] registers;
+
+        /**
+         * The contents of vram.
+         */
+        final byte[] vram;
+
+        /**
+         * The contents of OAM.
+         */
+        final byte[] oam;
+
+        /**
+         * The RGB value of each colour index.
+         */
+        final int[] colors;
+
+        /**
+         * Creates a new Snapshot.
+         *
+         * @param mmu    The memory to copy.
+         * @param colors The resolved colours to copy.
+         */
+        Snapshot(Memory mmu, int[] colors)
+        {
+            registers = mmu.registers.clone();
+            vram = mmu.vram.clone();
+            oam = mmu.oam.clone();
+            this.colors = colors.clone();
+        }
+    }
+
+    /**
+     * The LCD scanlines are output through.
+     */
+    private final LCD lcd;
+
+    /**
+     * Jobs waiting to be replayed.
+     */
+    private final BlockingQueue<Job> full = new ArrayBlockingQueue<>(2);
+
+    /**
+     * Jobs replayed, and ready to be filled again.
+     */
+    private final BlockingQueue<Job> free = new ArrayBlockingQueue<>(2);
+
+    /**
+     * The job the emulation thread is filling. Only touched on the emulation thread.
+     */
+    private Job current = new Job();
+
+    /**
+     * The worker's copy of the I/O registers.
+     */
+    private final byte[] registers;
+
+    /**
+     * The worker's copy of OAM.
+     */
+    private final byte[] oam;
+
+    /**
+     * The worker's copy of vram.
+     */
+    private byte[] vram;
+
+    /**
+     * The worker's copy of the RGB value of each colour index.
+     */
+    private final int[] resolvedColors;
+
+    /**
+     * The value of each colour index in the scanline sink's pixel format.
+     */
+    private final int[] lineEncoded = new int[LCD.BLANK_COLOR + 1];
+
+    /**
+     * Decoded tile data, matching {@link #vram}.
+     */
+    private final TileCache tiles;
+
+    /**
+     * The sprites on each scanline, matching {@link #oam}.
+     */
+    private final SpriteIndex sprites;
+
+    /**
+     * Draws from the worker's copies.
+     */
+    private final ScanlineRenderer renderer;
+
+    /**
+     * Creates a new RenderWorker, starting from a snapshot of the state scanlines are drawn from.
+     *
+     * @param lcd       The LCD to output scanlines through.
+     * @param isColorGB Whether a CGB game is being drawn.
+     * @param flipped   Whether to keep mirrored tiles, as the LCD's own tile cache does.
+     * @param start     The state to start from.
+     */
+    RenderWorker(LCD lcd, boolean isColorGB, boolean flipped, Snapshot start)
+    {
+        super("Render-Worker-Thread");
+        setDaemon(true);
+
+        this.lcd = lcd;
+        registers = start.registers;
+        vram = start.vram;
+        oam = start.oam;
+        resolvedColors = start.colors;
+
+        tiles = new TileCache(isColorGB ? 2 : 1, flipped);
+        tiles.rebuild(vram);
+        sprites = new SpriteIndex(!isColorGB);
+        renderer = new ScanlineRenderer(isColorGB, tiles, sprites, registers, vram, oam);
+
+        free.add(new Job());
+    }
+
+    /**
+     * Appends an entry to the log of the frame being filled. Must be called on the emulation thread.
+     *
+     * @param op    The operation.
+     * @param index The index, 0-FFFFFFh.
+     * @param value The value.
+     */
+    void record(int op, int index, int value)
+    {
+        current.record(op, index, value);
+    }
+
+    /**
+     * Appends a snapshot to the log of the frame being filled. Must be called on the emulation thread.
+     *
+     * @param snapshot The snapshot to replace the worker's copies with.
+     */
+    void record(Snapshot snapshot)
+    {
+        current.record(SNAPSHOT, current.snapshots.size(), 0);
+        current.snapshots.add(snapshot);
+    }
+
+    /**
+     * Hands the log filled so far to the worker, and starts filling the other job, waiting for the worker to finish
+     * with it first if need be. Must be called on the emulation thread.
+     * <p/>
+     * The hand-off can't be interrupted half way, or the emulation thread could keep logging into a job the worker is
+     * replaying; an interrupt is only re-asserted once the next job is in hand.
+     */
+    void submit()
+    {
+        boolean interrupted = putUninterruptibly(current);
+        while (true)
+        {
+            try
+            {
+                current = free.take();
+                break;
+            } catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Hands the log filled so far to the worker, waits for it to replay everything, and stops the worker. Must be
+     * called on the emulation thread.
+     */
+    void close()
+    {
+        boolean interrupted = putUninterruptibly(current);
+
+        // Both jobs come back once everything has been replayed
+        for (int returned = 0; returned < 2; )
+        {
+            try
+            {
+                free.take();
+                returned++;
+            } catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        interrupt();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queues a job for the worker, retrying until it succeeds even if the calling thread is interrupted.
+     *
+     * @param job The job to queue.
+     * @return Whether the calling thread was interrupted meanwhile; the interrupt is cleared, and should be re-asserted
+     * once the caller is done waiting.
+     */
+    private boolean putUninterruptibly(Job job)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                full.put(job);
+                return interrupted;
+            } catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            Job job;
+            try
+            {
+                job = full.take();
+            } catch (InterruptedException ignored)
+            {
+                // #error we were stopped by close(), which has already waited for every job
+                return;
+            }
+
+            try
+            {
+                replay(job);
+            } catch (RuntimeException e)
+            {
+                // #error drop the rest of the frame, rather than leave the emulation thread waiting on it forever
+                e.printStackTrace();
+            } finally
+            {
+                job.clear();
+                free.add(job);
+            }
+        }
+    }
+
+    /**
+     * Replays a job's log against the worker's copies.
+     *
+     * @param job The job.
+     */
+    private void replay(Job job)
+    {
+        int[] log = job.log;
+        for (int i = 0; i < job.size; i += 2)
+        {
+            int index = log[i] & 0xFFFFFF;
+            int value = log[i + 1];
+            switch (log[i] >>> 24)
+            {
+                case REGISTER:
+                    registers[index] = (byte) value;
+                    break;
+                case VRAM:
+                    vram[index] = (byte) value;
+                    tiles.update(vram, index);
+                    break;
+                case OAM:
+                    oam[index] = (byte) value;
+                    sprites.invalidate();
+                    break;
+                case COLOR:
+                    resolvedColors[index] = value;
+                    break;
+                case VRAM_BANKS:
+                    vram = Arrays.copyOf(vram, value);
+                    renderer.vram = vram;
+                    break;
+                case DRAW:
+                    for (int line = index; line < value; line++)
+                    {
+                        if (renderer.draw(line))
+                            lcd.output(line, renderer.lineColors, resolvedColors, lineEncoded);
+                    }
+                    break;
+                case PRESENT:
+                    if (value != 0) lcd.present();
+                    break;
+                case SNAPSHOT:
+                {
+                    Snapshot snapshot = job.snapshots.get(index);
+                    System.arraycopy(snapshot.registers, 0, registers, 0, registers.length);
+                    System.arraycopy(snapshot.oam, 0, oam, 0, oam.length);
+                    System.arraycopy(snapshot.colors, 0, resolvedColors, 0, resolvedColors.length);
+                    vram = snapshot.vram;
+                    renderer.vram = vram;
+                    tiles.rebuild(vram);
+                    sprites.invalidate();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap retained by this worker's copies.
+     *
+     * @return The size of the copies and logs, in bytes.
+     */
+    long getFootprint()
+    {
+        return registers.length + oam.length + vram.length + (resolvedColors.length + lineEncoded.length) * 4
+                + current.log.length * 8L + tiles.getFootprint() + sprites.getFootprint() + renderer.getFootprint();
+    }
+}
@@ -0,0 +1,168 @@
+package nitrous.lcd;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+import static nitrous.cpu.R.H;
+import static nitrous.cpu.R.W;
+
+/**
+ * Measures how many frames per second each {@link PixelScaler} magnifies, against Java2D's interpolation at the same
+ * magnifications.
+ * <p/>
+ * Usage: <code>java nitrous.lcd.ScalerBenchmark [seconds]</code>, which runs each case for the given time (1 second
+ * by default) after warming it up. Frames are synthetic pixel art, in either 4 shades as on a Gameboy or 32 colours
+ * as on a Gameboy Color, and each of a pair of frames is scaled in turn. Set nox.scalerThreads to compare thread
+ * counts. Java2D is measured drawing into an image in memory, as the fallback renderer does.
+ *
+ * @author Tudor
+ */
+public class ScalerBenchmark
+{
+    /**
+     * The benchmark tool's entry point.
+     *
+     * @param argv command line arguments
+     */
+    public static void main(String[] argv)
+    {
+        long nanos = (long) ((argv.length > 0 ? Double.parseDouble(argv[0]) : 1) * 1_000_000_000L);
+
+        for (int colors : new int[]{4, 32})
+        {
+            BufferedImage[] frames = {frame(colors, 1), frame(colors, 2)};
+            System.out.println(colors + " colours:");
+
+            FrameScaler scaler = new FrameScaler();
+            for (PixelScaler algorithm : PixelScaler.values())
+            {
+                double rate = measure(nanos, i -> scaler.scale(frames[i & 1], algorithm));
+                print(algorithm.name(), algorithm.factor, rate);
+            }
+
+            for (int factor = 2; factor <= 4; factor++)
+            {
+                BufferedImage out = new BufferedImage(W * factor, H * factor, BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = out.createGraphics();
+                for (Interpolator interpolator : new Interpolator[]{Interpolator.NEAREST, Interpolator.BILINEAR,
+                        Interpolator.BICUBIC})
+                {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hint(interpolator));
+                    double rate = measure(nanos,
+                            i -> graphics.drawImage(frames[i & 1], 0, 0, out.getWidth(), out.getHeight(), null));
+                    print("Java2D " + interpolator.name(), factor, rate);
+                }
+                graphics.dispose();
+            }
+        }
+    }
+
+    /**
+     * Interface for a case to measure.
+     */
+    private interface Case
+    {
+        /**
+         * Runs the case once.
+         *
+         * @param iteration The number of times it was run before.
+         */
+        void run(int iteration);
+    }
+
+    /**
+     * Warms a case up, then runs it for a while.
+     *
+     * @param nanos How long to run it for, in nanoseconds.
+     * @param task  The case.
+     * @return The number of runs per second.
+     */
+    private static double measure(long nanos, Case task)
+    {
+        long until = System.nanoTime() + nanos / 2;
+        int i = 0;
+        while (System.nanoTime() < until) task.run(i++);
+
+        long start = System.nanoTime();
+        until = start + nanos;
+        int runs = 0;
+        long now;
+        do
+        {
+            task.run(runs++);
+        } while ((now = System.nanoTime()) < until);
+        return runs * 1e9 / (now - start);
+    }
+
+    /**
+     * Prints a result.
+     *
+     * @param name   The name of the case.
+     * @param factor The magnification.
+     * @param rate   The frames per second.
+     */
+    private static void print(String name, int factor, double rate)
+    {
+        System.out.printf("  %-18s %dx %9.0f frames/s %8.1f Mpixel/s%n", name, factor, rate,
+                rate * W * H * factor * factor / 1e6);
+    }
+
+    /**
+     * Retrieves the Java2D hint for an interpolator.
+     *
+     * @param interpolator The interpolator.
+     * @return The hint.
+     */
+    private static Object hint(Interpolator interpolator)
+    {
+        switch (interpolator)
+        {
+            case BILINEAR:
+                return RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+            case BICUBIC:
+                return RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+            default:
+                return RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        }
+    }
+
+    /**
+     * Draws a synthetic frame of pixel art: tiled blocks, diagonal lines, and filled circles on a plain background.
+     *
+     * @param colors The number of colours to use.
+     * @param seed   The seed to place shapes with.
+     * @return The frame.
+     */
+    private static BufferedImage frame(int colors, long seed)
+    {
+        Random random = new Random(seed);
+        int[] palette = new int[colors];
+        for (int i = 0; i < colors; i++)
+            palette[i] = colors == 4 ? 0x555555 * (3 - i) : random.nextInt(0x1000000);
+
+        BufferedImage frame = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < H; y++)
+        {
+            for (int x = 0; x < W; x++)
+            {
+                int color = 0;
+                if (y >= 112) color = 1 + ((x >> 3) + (y >> 3)) % Math.min(3, colors - 1);
+                else if (((x + y) & 15) == 0 || ((x - y) & 31) == 0) color = colors - 1;
+                pixels[y * W + x] = palette[color];
+            }
+        }
+
+        for (int i = 0; i < 12; i++)
+        {
+            int cx = random.nextInt(W), cy = random.nextInt(112), r = 4 + random.nextInt(12);
+            int color = palette[1 + random.nextInt(colors - 1)];
+            for (int y = Math.max(0, cy - r); y < Math.min(H, cy + r); y++)
+                for (int x = Math.max(0, cx - r); x < Math.min(W, cx + r); x++)
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) < r * r) pixels[y * W + x] = color;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,149 @@
+package nitrous.lcd;
+
+import nitrous.Cartridge;
+import nitrous.cpu.Emulator;
+import nitrous.mbc.Memory;
+
+import java.util.Random;
+
+import static nitrous.cpu.R.*;
+
+/**
+ * Measures how long {@link LCD#draw} takes to draw a scanline, on a Gameboy and on a Gameboy Color.
+ * <p/>
+ * Usage: <code>java nitrous.lcd.ScanlineBenchmark [seconds]</code>, which runs each case for the given time (1 second
+ * by default) after warming it up. Scenes are synthetic: random tiles, maps, palettes, sprites and LCDC, with random
+ * scroll and window positions, so that between them they draw every layer. Each run draws all of a frame's scanlines,
+ * from each of a handful of scenes in turn, in both normal and compact sessions. Scanlines go to an image in memory,
+ * as they do in a session without a display.
+ *
+ * @author Tudor
+ */
+public class ScanlineBenchmark
+{
+    /**
+     * The number of scenes each case cycles through.
+     */
+    private static final int SCENES = 4;
+
+    /**
+     * The benchmark tool's entry point.
+     *
+     * @param argv command line arguments
+     */
+    public static void main(String[] argv)
+    {
+        long nanos = (long) ((argv.length > 0 ? Double.parseDouble(argv[0]) : 1) * 1_000_000_000L);
+
+        for (boolean compact : new boolean[]{false, true})
+        {
+            for (boolean cgb : new boolean[]{false, true})
+            {
+                LCD[] scenes = new LCD[SCENES];
+                for (int i = 0; i < SCENES; i++)
+                    scenes[i] = scene(cgb, compact, i).lcd;
+
+                double rate = measure(nanos, i ->
+                {
+                    LCD lcd = scenes[i % SCENES];
+                    for (int line = 0; line < H; line++) lcd.draw(line);
+                });
+                System.out.printf("  %-4s %-8s %8.1f ns/scanline %9.0f frames/s%n", cgb ? "CGB" : "DMG",
+                        compact ? "compact" : "", 1e9 / (rate * H), rate);
+            }
+        }
+    }
+
+    /**
+     * Interface for a case to measure.
+     */
+    private interface Case
+    {
+        /**
+         * Runs the case once.
+         *
+         * @param iteration The number of times it was run before.
+         */
+        void run(int iteration);
+    }
+
+    /**
+     * Warms a case up, then runs it for a while.
+     *
+     * @param nanos How long to run it for, in nanoseconds.
+     * @param task  The case.
+     * @return The number of runs per second.
+     */
+    private static double measure(long nanos, Case task)
+    {
+        long until = System.nanoTime() + nanos / 2;
+        int i = 0;
+        while (System.nanoTime() < until) task.run(i++);
+
+        long start = System.nanoTime();
+        until = start + nanos;
+        int runs = 0;
+        long now;
+        do
+        {
+            task.run(runs++);
+        } while ((now = System.nanoTime()) < until);
+        return runs * 1e9 / (now - start);
+    }
+
+    /**
+     * Sets up a synthetic scene on a new emulator.
+     *
+     * @param cgb     Whether to emulate a Gameboy Color.
+     * @param compact Whether to run a compact session.
+     * @param seed    The seed to fill memory and registers with.
+     * @return The emulator.
+     */
+    private static Emulator scene(boolean cgb, boolean compact, long seed)
+    {
+        // A bare ROM with a battery-backed MBC5, flagged for the Gameboy Color if asked to be
+        byte[] rom = new byte[Cartridge.BANK_SIZE * 4];
+        rom[0x147] = 0x1B;
+        rom[0x148] = 1;
+        rom[0x149] = 2;
+        if (cgb) rom[0x143] = (byte) 0x80;
+        Emulator core = new Emulator(new Cartridge(rom), compact);
+
+        Random random = new Random(seed);
+        Memory mmu = core.mmu;
+        for (int bank = 0; bank < (cgb ? 2 : 1); bank++)
+        {
+            if (cgb) mmu.setIO(R_VRAM_BANK, bank);
+            for (int addr = 0x8000; addr < 0xA000; addr++) mmu.setAddress(addr, random.nextInt(256));
+        }
+        if (cgb)
+        {
+            mmu.setIO(R_VRAM_BANK, 0);
+
+            // Fill background and sprite palette memory through BCPS/BCPD and OCPS/OCPD, auto-incrementing
+            mmu.setIO(0x68, 0x80);
+            for (int i = 0; i < 64; i++) mmu.setIO(0x69, random.nextInt(256));
+            mmu.setIO(0x6A, 0x80);
+            for (int i = 0; i < 64; i++) mmu.setIO(0x6B, random.nextInt(256));
+        }
+
+        // Sprites, then moved so that they are mostly on screen
+        for (int addr = 0xFE00; addr < 0xFEA0; addr++) mmu.setAddress(addr, random.nextInt(256));
+        for (int i = 0; i < 40; i++)
+        {
+            mmu.setAddress(0xFE00 + i * 4, 8 + random.nextInt(160));
+            mmu.setAddress(0xFE01 + i * 4, random.nextInt(176));
+        }
+
+        // Display on, with the rest of LCDC random, so that scenes differ in which layers they draw
+        mmu.setIO(R_LCDC, 0x80 | random.nextInt(128));
+        mmu.setIO(R_SCY, random.nextInt(256));
+        mmu.setIO(R_SCX, random.nextInt(256));
+        mmu.setIO(R_WY, random.nextInt(150));
+        mmu.setIO(R_WX, random.nextInt(170));
+        mmu.setIO(R_BGP, random.nextInt(256));
+        mmu.setIO(R_OBP0, random.nextInt(256));
+        mmu.setIO(R_OBP1, random.nextInt(256));
+        return core;
+    }
+}
@@ -0,0 +1,558 @@
+package nitrous.lcd;
+
+import nitrous.cpu.R.*;
+import nitrous.mbc.Memory;
+
+import java.util.Arrays;
+
+import static nitrous.cpu.R.*;
+import static nitrous.lcd.LCD.*;
+
+/**
+ * Draws scanlines into a priority plane and a colour index plane, from whichever LCD registers, vram and OAM it is
+ * given.
+ * <p/>
+ * The LCD draws from live memory with one of these. A {@link RenderWorker} draws from its own copies with another,
+ * so the same code renders on either thread, and both produce identical scanlines.
+ *
+ * @author Tudor
+ */
+class ScanlineRenderer
+{
+    /**
+     * The priority of each pixel of the scanline being drawn, one of the P_ constants.
+     */
+    final byte[] linePriority = new byte[W];
+
+    /**
+     * The colour index of each pixel of the scanline being drawn.
+     */
+    final byte[] lineColors = new byte[W];
+
+    /**
+     * Decoded tile data, matching {@link #vram}.
+     */
+    private final TileCache tiles;
+
+    /**
+     * The sprites on each scanline, matching {@link #oam}.
+     */
+    private final SpriteIndex sprites;
+
+    /**
+     * Whether a CGB game is being drawn.
+     */
+    private final boolean isColorGB;
+
+    /**
+     * The I/O registers, of which LCDC, SCX, SCY, WX and WY are read.
+     */
+    byte[] registers;
+
+    /**
+     * The contents of vram, both banks if the second is in use.
+     */
+    byte[] vram;
+
+    /**
+     * The contents of OAM.
+     */
+    byte[] oam;
+
+    /**
+     * Creates a new ScanlineRenderer.
+     *
+     * @param isColorGB Whether a CGB game is being drawn.
+     * @param tiles     Decoded tile data, kept current with vram by the owner.
+     * @param sprites   The sprite index, invalidated by the owner whenever OAM changes.
+     * @param registers The I/O registers.
+     * @param vram      The contents of vram.
+     * @param oam       The contents of OAM.
+     */
+    ScanlineRenderer(boolean isColorGB, TileCache tiles, SpriteIndex sprites, byte[] registers, byte[] vram,
+                     byte[] oam)
+    {
+        this.isColorGB = isColorGB;
+        this.tiles = tiles;
+        this.sprites = sprites;
+        this.registers = registers;
+        this.vram = vram;
+        this.oam = oam;
+    }
+
+    /**
+     * Estimates the heap retained by the scanline planes.
+     *
+     * @return The size of the planes, in bytes.
+     */
+    long getFootprint()
+    {
+        return linePriority.length + lineColors.length;
+    }
+
+    /**
+     * Draws a scanline.
+     * <p/>
+     * The line is built from horizontal spans: the background up to where the window starts, then the window to the
+     * right edge, each fetched a tile row at a time and clipped to the screen up front. Sprites are then composited
+     * over just the pixels they cover, left of the window, which always draws over them.
+     * <p/>
+     * Layers are drawn into {@link #linePriority} and {@link #lineColors}, rather than pixels; the owner turns the
+     * colour indices into pixels once the line is complete.
+     *
+     * @param scanline The scanline to draw.
+     * @return Whether the scanline was drawn; it isn't while the display is disabled, or in V-Blank.
+     */
+    public boolean draw(int scanline)
+    {
+        // Don't even bother if the display is not enabled
+        if (!displayEnabled()) return false;
+
+        // We still receive these calls for scanlines in vblank, but we can just ignore them
+        if (scanline >= 144 || scanline < 0) return false;
+
+        // Every pixel from here to the right edge belongs to the window, if it appears in this scanline
+        int windowStart = W;
+        if (windowEnabled() && scanline >= getWindowPosY() && getWindowPosX() < W && getWindowPosY() >= 0)
+        {
+            int posX = getWindowPosX();
+            windowStart = Math.min(W, Math.max(0, posX + posX / 8 * 8));
+        }
+
+        // Draw the background if it's enabled, otherwise leave a blank span
+        if (backgroundEnabled())
+        {
+            drawBackground(scanline, windowStart);
+        } else
+        {
+            Arrays.fill(lineColors, 0, windowStart, (byte) BLANK_COLOR);
+            Arrays.fill(linePriority, 0, windowStart, (byte) P_0);
+        }
+
+        if (windowStart < W)
+            drawWindow(scanline, windowStart);
+
+        // If sprites are enabled, draw them.
+        if (spritesEnabled())
+            drawSprites(scanline, windowStart);
+
+        return true;
+    }
+    /**
+     * Draws the span of background left of the window.
+     *
+     * @param scanline The current scanline.
+     * @param end      The x-coordinate the window starts at, or W if it isn't visible.
+     */
+    private void drawBackground(int scanline, int end)
+    {
+        // Local reference to save time
+        byte[] vram = this.vram;
+
+        int tileDataOffset = getTileDataOffset();
+
+        // The background is scrollable, and wraps around its 256x256 map
+        int scrollX = getScrollX();
+        int bgY = scanline + getScrollY();
+        int line = bgY & 7;
+
+        // Determine the offset into the VRAM tile bank, and of the map row this scanline falls in
+        int offset = getBackgroundTileMapOffset() + ((bgY >> 3) & 31) * 32;
+
+        /**
+         * BG Map Tile Numbers
+         * <pre>
+         *      An area of VRAM known as Background Tile Map contains the numbers of tiles to
+         *      be displayed. It is organized as 32 rows of 32 bytes each. Each byte contains a number
+         *      of a tile to be displayed. Tile patterns are taken from the Tile Data Table located either
+         *      at $8000-8FFF or $8800-97FF. In the first case, patterns are numbered with
+         *      unsigned numbers from 0 to 255 (i.e. pattern #0 lies at address $8000). In the second case,
+         *      patterns have signed numbers from -128 to 127 (i.e. pattern #0 lies at address $9000).
+         *      The Tile Data Table address for the background can be selected via LCDC register.
+         * </pre>
+         *
+         * @{see http://bgb.bircd.org/pandocs.htm#vrambackgroundmaps}
+         */
+
+        // One tile row per iteration; only the first and last may be partial
+        for (int x = 0; x < end; )
+        {
+            int bgX = x + scrollX;
+            int addressBase = offset + ((bgX >> 3) & 31);
+            int px = bgX & 7;
+            int count = Math.min(8 - px, end - x);
+
+            drawSpan(x, count, vram, addressBase, tileDataOffset, line, px, false);
+            x += count;
+        }
+    }
+
+    /**
+     * Draws the span of window from where it starts to the right edge.
+     *
+     * @param scanline The current scanline.
+     * @param start    The x-coordinate of the window's first visible pixel.
+     */
+    private void drawWindow(int scanline, int start)
+    {
+        // Local reference to save time
+        byte[] vram = this.vram;
+
+        int tileDataOffset = getTileDataOffset();
+
+        // The window layer is offset-able from 0,0
+        int posX = getWindowPosX();
+        int posY = getWindowPosY();
+
+        // 32 tiles a row
+        int offset = getWindowTileMapOffset() + (scanline - posY) / 8 * 32;
+        int line = (scanline - posY) & 7;
+
+        for (int x = start; x < W; )
+        {
+            int wx = x - posX;
+            int px = wx & 7;
+            int count = Math.min(8 - px, W - x);
+
+            drawSpan(x, count, vram, offset + (wx >> 3), tileDataOffset, line, px, true);
+            x += count;
+        }
+    }
+
+    /**
+     * Draws part of a row of a background or window tile into the scanline planes.
+     *
+     * @param x              The x-coordinate of the span's first pixel.
+     * @param count          The number of pixels to draw, 1-8.
+     * @param vram           The vram array.
+     * @param addressBase    The offset of the tile's entry in the tile map.
+     * @param tileDataOffset The tile data table in use.
+     * @param line           The row of the tile to draw, before any Y flipping.
+     * @param px             The column of the tile the span starts at, before any X flipping.
+     * @param window         Whether the tile belongs to the window, which is drawn over everything.
+     */
+    private void drawSpan(int x, int count, byte[] vram, int addressBase, int tileDataOffset, int line, int px,
+                          boolean window)
+    {
+        // add 256 to jump into second tile pattern table
+        int tile = tileDataOffset == 0 ? vram[addressBase] & 0xff : vram[addressBase] + 256;
+
+        // Tile attributes
+        int gbcVramBank = 0;
+        int gbcPalette = 0;
+        boolean flipX = false;
+        boolean flipY = false;
+
+        /**
+         * BG Map Attributes (CGB Mode only)
+         * <pre>
+         *      In CGB Mode, an additional map of 32x32 bytes is stored in VRAM Bank 1 (each byte defines attributes for the corresponding tile-number map entry in VRAM Bank 0):
+         *
+         *      Bit 0-2  Background Palette number  (BGP0-7)
+         *      Bit 3    Tile VRAM Bank number      (0=Bank 0, 1=Bank 1)
+         *      Bit 4    Not used
+         *      Bit 5    Horizontal Flip            (0=Normal, 1=Mirror horizontally)
+         *      Bit 6    Vertical Flip              (0=Normal, 1=Mirror vertically)
+         *      Bit 7    BG-to-OAM Priority         (0=Use OAM priority bit, 1=BG Priority)
+         * </pre>
+         *
+         * @{see http://bgb.bircd.org/pandocs.htm#vrambackgroundmaps}
+         *
+         * The attribute map is only present on CGB, and not until the game first switches to bank 1 in compact
+         * sessions. The same rules apply to window tiles.
+         */
+        if (vram.length > Memory.VRAM_PAGESIZE)
+        {
+            int attribs = vram[Memory.VRAM_PAGESIZE + addressBase];
+
+            if ((attribs & 0x8) != 0) gbcVramBank = 1;
+            flipX = (attribs & 0x20) != 0;
+            flipY = (attribs & 0x40) != 0;
+            gbcPalette = (attribs & 0x7);
+        }
+
+        // Here we handle Y flipping by choosing which row to read, and X flipping by reading the mirrored row
+        // if there is one, or reading the row backwards otherwise
+        int row = TileCache.rowOffset(gbcVramBank, tile, flipY ? 7 - line : line);
+        byte[] pixels = flipX && tiles.flipped != null ? tiles.flipped : tiles.pixels;
+        boolean mirror = flipX && tiles.flipped == null;
+
+        byte[] linePriority = this.linePriority, lineColors = this.lineColors;
+        int palette = gbcPalette * 4;
+        for (int i = 0; i < count; i++, px++)
+        {
+            // The colour index, already decoded from the tile's two bitplanes
+            int paletteIndex = pixels[row + (mirror ? 7 - px : px)];
+
+            lineColors[x + i] = (byte) (palette + paletteIndex);
+            linePriority[x + i] = (byte) (window ? P_6 : paletteIndex == 0 ? P_1 : P_3);
+        }
+    }
+
+    /**
+     * Attempts to draw all sprites.
+     *
+     * @param scanline The current scanline.
+     * @param end      The x-coordinate the window starts at, or W if it isn't visible.
+     */
+    private void drawSprites(int scanline, int end)
+    {
+        // Hold local references to save a lot of load opcodes
+        byte[] oam = this.oam;
+        boolean tall = isUsingTallSprites();
+        boolean isColorGB = this.isColorGB;
+
+        // Compact sessions only allocate the second vram bank once the game switches to it
+        boolean hasBank1 = vram.length > Memory.VRAM_PAGESIZE;
+
+        // Actual GameBoy hardware can only handle drawing 10 sprites per line, which the index already chose for us
+        SpriteIndex sprites = this.sprites;
+        sprites.validate(oam, tall);
+
+        // Draw from the lowest priority up, so higher priority sprites are drawn over lower ones
+        for (int n = sprites.getCount(scanline) - 1; n >= 0; n--)
+        {
+            /**
+             * Sprite attributes reside in the Sprite Attribute Table (OAM - Object Attribute Memory) at $FE00-FE9F.
+             * Each of the 40 entries consists of four bytes with the following meanings:
+             *
+             * Byte0 - Y Position
+             * <pre>
+             *      Specifies the sprites vertical position on the screen (minus 16).
+             *      An offscreen value (for example, Y=0 or Y>=160) hides the sprite.
+             * </pre>
+             *
+             * Byte1 - X Position
+             * <pre>
+             *      Specifies the sprites horizontal position on the screen (minus 8).
+             *      An offscreen value (X=0 or X>=168) hides the sprite, but the sprite
+             *      still affects the priority ordering - a better way to hide a sprite is to set its Y-coordinate offscreen.
+             * </pre>
+             *
+             * Byte2 - Tile/Pattern Number
+             * <pre>
+             *      Specifies the sprites Tile Number (00-FF). This (unsigned) value selects a tile from memory at 8000h-8FFFh.
+             *      In CGB Mode this could be either in VRAM Bank 0 or 1, depending on Bit 3 of the following byte.
+             *      In 8x16 mode, the lower bit of the tile number is ignored. Ie. the upper 8x8 tile is "NN AND FEh", and
+             *      the lower 8x8 tile is "NN OR 01h".
+             * </pre>
+             *
+             * Byte3 - Attributes/Flags:
+             * <pre>
+             *      Bit7   OBJ-to-BG Priority (0=OBJ Above BG, 1=OBJ Behind BG color 1-3)
+             *      (Used for both BG and Window. BG color 0 is always behind OBJ)
+             *      Bit6   Y flip          (0=Normal, 1=Vertically mirrored)
+             *      Bit5   X flip          (0=Normal, 1=Horizontally mirrored)
+             *      Bit4   Palette number  **Non CGB Mode Only** (0=OBP0, 1=OBP1)
+             *      Bit3   Tile VRAM-Bank  **CGB Mode Only**     (0=Bank 0, 1=Bank 1)
+             *      Bit2-0 Palette number  **CGB Mode Only**     (OBP0-7)
+             * </pre>
+             *
+             * {@see http://bgb.bircd.org/pandocs.htm#vramspriteattributetableoam}
+             */
+
+            int i = sprites.getSprite(scanline, n);
+            int y = oam[i] & 0xff;
+
+            byte attribs = oam[i + 3];
+            int vrambank = (attribs & 0b1000) != 0 && hasBank1 ? 1 : 0;
+            int priority = (attribs & 0x80) != 0 ? P_2 : P_5;
+
+            int x = oam[i + 1] & 0xff;
+            int tile = oam[i + 2] & 0xff;
+            boolean flipX = (attribs & 0x20) != 0;
+            boolean flipY = (attribs & 0x40) != 0;
+            int obp = isColorGB ? (attribs & 0x7) : (attribs >> 4) & 0x1;
+
+            int pal = SPRITE_COLORS + obp * 4;
+
+            // The index only lists sprites whose rows cover this scanline
+            int line = scanline - (y - 16);
+
+            // Handle drawing double sprites
+            if (tall)
+            {
+                // If we're using tall sprites we actually have to flip the order that we draw the top/bottom tiles
+                int hi = flipY ? (tile | 0x01) : (tile & 0xFE);
+                int lo = flipY ? (tile & 0xFE) : (tile | 0x01);
+                if (line < 8)
+                    drawSprite(pal, x - 8, end, hi, line, flipX, flipY, vrambank, priority);
+                else
+                    drawSprite(pal, x - 8, end, lo, line - 8, flipX, flipY, vrambank, priority);
+            } else
+            {
+                drawSprite(pal, x - 8, end, tile, line, flipX, flipY, vrambank, priority);
+            }
+        }
+    }
+
+    /**
+     * Composites a row of a sprite tile over the pixels it covers, in the scanline planes.
+     *
+     * @param palette  The colour index of the sprite palette's first colour.
+     * @param x        The x-coordinate of the tile.
+     * @param end      The x-coordinate the window starts at; the window is drawn over sprites.
+     * @param tile     The tile id to draw.
+     * @param line     The row of the tile to draw, before any Y flipping.
+     * @param flipX    Whether the tile should be flipped horizontally.
+     * @param flipY    Whether the tile should be flipped vertically.
+     * @param bank     The tile bank to use.
+     * @param priority The sprite's priority, P_2 if it is behind background colours 1-3, P_5 otherwise.
+     */
+    private void drawSprite(int palette, int x, int end, int tile, int line, boolean flipX, boolean flipY, int bank,
+                            int priority)
+    {
+        // Clip the span to the screen, and to the left of the window
+        int from = Math.max(0, -x);
+        int to = Math.min(8, end - x);
+        if (from >= to) return;
+
+        int row = TileCache.rowOffset(bank, tile, flipY ? 7 - line : line);
+        byte[] pixels = flipX && tiles.flipped != null ? tiles.flipped : tiles.pixels;
+        boolean mirror = flipX && tiles.flipped == null;
+
+        byte[] linePriority = this.linePriority, lineColors = this.lineColors;
+        for (int px = from; px < to; px++)
+        {
+            // Colour 0 is transparent for sprites
+            int paletteIndex = pixels[row + (mirror ? 7 - px : px)];
+            if (paletteIndex == 0) continue;
+
+            // We can only draw over pixels with equal or lower priority
+            int dx = x + px;
+            if (priority >= linePriority[dx])
+            {
+                lineColors[dx] = (byte) (palette + paletteIndex);
+                linePriority[dx] = (byte) priority;
+            }
+        }
+    }
+
+    /**
+     * Determines whether the display is enabled from the LCDC register.
+     *
+     * @return The enabled state.
+     */
+    public boolean displayEnabled()
+    {
+        return (registers[R_LCDC] & LCDC.CONTROL_OPERATION_BIT) != 0;
+    }
+
+    /**
+     * Determines whether the background layer is enabled from the LCDC register.
+     *
+     * @return The enabled state.
+     */
+    public boolean backgroundEnabled()
+    {
+        return (registers[R_LCDC] & LCDC.BGWINDOW_DISPLAY_BIT) != 0;
+    }
+
+    /**
+     * Determines the window tile map offset from the LCDC register.
+     *
+     * @return The offset.
+     */
+    public int getWindowTileMapOffset()
+    {
+        if ((registers[R_LCDC] & LCDC.WINDOW_TILE_MAP_DISPLAY_SELECT_BIT) != 0)
+            return 0x1c00;
+        return 0x1800;
+    }
+
+    /**
+     * Determines the background tile map offset from the LCDC register.
+     *
+     * @return The offset.
+     */
+    public int getBackgroundTileMapOffset()
+    {
+        if ((registers[R_LCDC] & LCDC.BG_TILE_MAP_DISPLAY_SELECT_BIT) != 0)
+            return 0x1c00;
+        return 0x1800;
+    }
+
+    /**
+     * Determines whether tall sprites are enabled from the LCDC register.
+     *
+     * @return The enabled state.
+     */
+    public boolean isUsingTallSprites()
+    {
+        return (registers[R_LCDC] & LCDC.SPRITE_SIZE_BIT) != 0;
+    }
+
+    /**
+     * Determines whether sprites are enabled from the LCDC register.
+     *
+     * @return The enabled state.
+     */
+    public boolean spritesEnabled()
+    {
+        return (registers[R_LCDC] & LCDC.SPRITE_DISPLAY_BIT) != 0;
+    }
+
+    /**
+     * Determines whether the window is enabled from the LCDC register.
+     *
+     * @return The enabled state.
+     */
+    public boolean windowEnabled()
+    {
+        return (registers[R_LCDC] & LCDC.WINDOW_DISPLAY_BIT) != 0;
+    }
+
+    /**
+     * Tile patterns are taken from the Tile Data Table located either at $8000-8FFF or $8800-97FF.
+     * In the first case, patterns are numbered with unsigned numbers from 0 to 255 (i.e. pattern #0 lies at address $8000).
+     * In the second case, patterns have signed numbers from -128 to 127 (i.e. pattern #0 lies at address $9000).
+     * <p/>
+     * The Tile Data Table address for the background can be selected via LCDC register.
+     */
+    public int getTileDataOffset()
+    {
+        if ((registers[R_LCDC] & LCDC.BGWINDOW_TILE_DATA_SELECT_BIT) != 0)
+            return 0;
+        return 0x0800;
+    }
+
+    /**
+     * Fetches the current background X-coordinate from the WX register.
+     *
+     * @return The signed offset.
+     */
+    public int getScrollX()
+    {
+        return (registers[R_SCX] & 0xFF);
+    }
+
+    /**
+     * Fetches the current background Y-coordinate from the SCY register.
+     *
+     * @return The signed offset.
+     */
+    public int getScrollY()
+    {
+        return (registers[R_SCY] & 0xff);
+    }
+
+    /**
+     * Fetches the current window X-coordinate from the WX register.
+     *
+     * @return The unsigned offset.
+     */
+    public int getWindowPosX()
+    {
+        return (registers[R_WX] & 0xFF) - 7;
+    }
+
+    /**
+     * Fetches the current window Y-coordinate from the WY register.
+     *
+     * @return The unsigned offset.
+     */
+    public int getWindowPosY()
+    {
+        return (registers[R_WY] & 0xFF);
+    }
+}
@@ -0,0 +1,144 @@
+package nitrous.lcd;
+
+import java.util.Arrays;
+
+import static nitrous.cpu.R.H;
+
+/**
+ * Lists the sprites on each scanline, so drawing a scanline only visits the sprites which appear on it.
+ * <p/>
+ * Like real hardware, each scanline takes the first 10 sprites in OAM whose rows cover it, whether or not they are
+ * horizontally visible. Each list is kept in priority order, highest first: on the DMG the sprite with the lower X
+ * coordinate wins, and the one earlier in OAM breaks ties; on the CGB only the OAM order counts.
+ * <p/>
+ * The lists are only rebuilt after OAM has been {@link #invalidate() invalidated} by a write or DMA transfer, or when
+ * the sprite size changes, which the LCD detects when it {@link #validate validates} the index before drawing.
+ *
+ * @author Tudor
+ */
+public class SpriteIndex
+{
+    /**
+     * The number of sprites the hardware can draw on a scanline.
+     */
+    public static final int MAX_PER_LINE = 10;
+
+    /**
+     * Whether sprites with lower X coordinates take priority, as on the DMG.
+     */
+    private final boolean xPriority;
+
+    /**
+     * The OAM offset of each listed sprite, {@link #MAX_PER_LINE} slots per scanline.
+     */
+    private final int[] sprites = new int[H * MAX_PER_LINE];
+
+    /**
+     * The number of sprites listed for each scanline.
+     */
+    private final int[] counts = new int[H];
+
+    /**
+     * Whether OAM changed since the lists were built.
+     */
+    private boolean dirty = true;
+
+    /**
+     * Whether the lists were built for 8x16 sprites.
+     */
+    private boolean tall;
+
+    /**
+     * Creates a new SpriteIndex.
+     *
+     * @param xPriority Whether sprites with lower X coordinates take priority, as on the DMG.
+     */
+    public SpriteIndex(boolean xPriority)
+    {
+        this.xPriority = xPriority;
+    }
+
+    /**
+     * Marks the lists as out of date, after OAM was written.
+     */
+    public void invalidate()
+    {
+        dirty = true;
+    }
+
+    /**
+     * Rebuilds the lists if OAM or the sprite size changed since they were built.
+     *
+     * @param oam  The contents of OAM.
+     * @param tall Whether sprites are 8x16.
+     */
+    public void validate(byte[] oam, boolean tall)
+    {
+        if (!dirty && tall == this.tall) return;
+        dirty = false;
+        this.tall = tall;
+
+        int[] sprites = this.sprites, counts = this.counts;
+        Arrays.fill(counts, 0);
+
+        int height = tall ? 16 : 8;
+        for (int i = 0; i < oam.length; i += 4)
+        {
+            // Sprite Y positions are offset by 16, so a sprite can scroll in from above
+            int top = (oam[i] & 0xFF) - 16;
+            int x = oam[i + 1] & 0xFF;
+            for (int line = Math.max(0, top); line < Math.min(H, top + height); line++)
+            {
+                int count = counts[line];
+                if (count == MAX_PER_LINE) continue;
+
+                // Insert after every sprite of higher or equal priority; earlier sprites win ties
+                int base = line * MAX_PER_LINE;
+                int slot = base + count;
+                if (xPriority)
+                {
+                    while (slot > base && (oam[sprites[slot - 1] + 1] & 0xFF) > x)
+                    {
+                        sprites[slot] = sprites[slot - 1];
+                        slot--;
+                    }
+                }
+                sprites[slot] = i;
+                counts[line] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of sprites on a scanline.
+     *
+     * @param line The scanline, 0-143.
+     * @return The number of sprites, at most {@link #MAX_PER_LINE}.
+     */
+    public int getCount(int line)
+    {
+        return counts[line];
+    }
+
+    /**
+     * Retrieves a sprite on a scanline.
+     *
+     * @param line The scanline, 0-143.
+     * @param n    The sprite's rank on the scanline; 0 is the highest priority.
+     * @return The sprite's offset into OAM.
+     */
+    public int getSprite(int line, int n)
+    {
+        return sprites[line * MAX_PER_LINE + n];
+    }
+
+    /**
+     * Estimates the heap retained by this index.
+     *
+     * @return The size of the lists, in bytes.
+     */
+    public long getFootprint()
+    {
+        return (sprites.length + counts.length) * 4;
+    }
+}
@@ -0,0 +1,118 @@
+package nitrous.lcd;
+
+import nitrous.mbc.Memory;
+
+/**
+ * Tile data from video ram, decoded into one colour index per byte.
+ * <p/>
+ * In vram, each 8-pixel row of a tile is stored as two bitplanes: the first byte holds the low bit of each pixel's
+ * colour index, the second the high bit, with bit 7 the leftmost pixel. Rather than recombining the planes for every
+ * pixel of every scanline, the LCD reads them from here, where each tile is 64 consecutive bytes, 8 per row, left to
+ * right. The cache is kept current by the memory controller, which calls {@link #update} for every write to the tile
+ * data area ($8000-$97FF) of either bank; rows are decoded through the {@link Bitplanes} tables.
+ * <p/>
+ * Optionally, a horizontally mirrored copy of every row is kept too, so X-flipped tiles are read left to right as
+ * well. Y-flipped tiles need no copy, since they only change which row is read.
+ *
+ * @author Tudor
+ */
+public class TileCache
+{
+    /**
+     * The number of tiles in the tile data area of a vram bank.
+     */
+    public static final int TILES = 384;
+
+    /**
+     * The size of the tile data area of a vram bank, in bytes.
+     */
+    public static final int TILE_DATA_SIZE = TILES * 16;
+
+    /**
+     * Colour indices of every tile, 64 per tile; bank 1's tiles follow bank 0's.
+     */
+    public final byte[] pixels;
+
+    /**
+     * The same colour indices with every row mirrored, or null if mirrored copies aren't kept.
+     */
+    public final byte[] flipped;
+
+    /**
+     * Creates a new TileCache, for vram which is entirely zero.
+     *
+     * @param banks   The number of vram banks, 1 on the DMG or 2 on the CGB.
+     * @param flipped Whether to keep mirrored copies of every tile.
+     */
+    public TileCache(int banks, boolean flipped)
+    {
+        this.pixels = new byte[banks * TILES * 64];
+        this.flipped = flipped ? new byte[pixels.length] : null;
+    }
+
+    /**
+     * Computes the offset of a row of a tile in {@link #pixels} and {@link #flipped}.
+     *
+     * @param bank The vram bank.
+     * @param tile The tile number, 0-383, counting from $8000.
+     * @param row  The row, 0-7.
+     * @return The offset of the row's leftmost pixel.
+     */
+    public static int rowOffset(int bank, int tile, int row)
+    {
+        return ((bank * TILES + tile) << 6) + (row << 3);
+    }
+
+    /**
+     * Decodes the row of a tile containing a byte of vram, after it was written.
+     *
+     * @param vram  The vram array, with every bank.
+     * @param index The index of the written byte in vram; ignored unless it is within a tile data area.
+     */
+    public void update(byte[] vram, int index)
+    {
+        int bank = index / Memory.VRAM_PAGESIZE;
+        int offset = index % Memory.VRAM_PAGESIZE;
+        if (offset >= TILE_DATA_SIZE || bank * TILES * 64 >= pixels.length) return;
+
+        // Both bitplanes of the row, merged through the lookup tables
+        int base = index & ~1;
+        int low = vram[base], high = vram[base + 1];
+
+        int row = rowOffset(bank, offset >> 4, (offset >> 1) & 7);
+        int colors = Bitplanes.interleave(low, high);
+        for (int px = 0; px < 8; px++)
+            pixels[row + px] = (byte) Bitplanes.pixel(colors, px);
+
+        if (flipped != null)
+        {
+            colors = Bitplanes.interleaveFlipped(low, high);
+            for (int px = 0; px < 8; px++)
+                flipped[row + px] = (byte) Bitplanes.pixel(colors, px);
+        }
+    }
+
+    /**
+     * Decodes every tile again, e.g. after vram was replaced wholesale by loading a saved state.
+     *
+     * @param vram The vram array, with every bank.
+     */
+    public void rebuild(byte[] vram)
+    {
+        for (int bank = 0; bank * Memory.VRAM_PAGESIZE < vram.length; bank++)
+        {
+            for (int offset = 0; offset < TILE_DATA_SIZE; offset += 2)
+                update(vram, bank * Memory.VRAM_PAGESIZE + offset);
+        }
+    }
+
+    /**
+     * Estimates the heap retained by this cache.
+     *
+     * @return The size of the decoded tiles, in bytes.
+     */
+    public long getFootprint()
+    {
+        return pixels.length + (flipped != null ? flipped.length : 0);
+    }
+}
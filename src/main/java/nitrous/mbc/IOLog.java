@@ -0,0 +1,350 @@
+package nitrous.mbc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A log of every write to the IO registers ($FF00-$FFFF), timestamped with the CPU cycle it happened at.
+ * <p/>
+ * Entries are packed into single longs (see {@link #entry}) and stored in a preallocated ring, so recording a write
+ * is a couple of array and field stores, and never allocates. The ring only holds the latest writes; to keep them
+ * all, {@link #spill(File)} starts a background thread which periodically appends new entries to a file. If the
+ * thread ever falls a whole ring behind, the overwritten entries are counted in {@link #getDropped()} rather than
+ * stalling the emulator.
+ * <p/>
+ * Log files start with the {@link #MAGIC} and {@link #VERSION} as little-endian ints, followed by the entries as
+ * little-endian longs. {@link IOLogDecoder} turns them into per-register timelines.
+ *
+ * @author Tudor
+ */
+public class IOLog
+{
+    /**
+     * The magic number log files start with, "NXIO".
+     */
+    public static final int MAGIC = 0x4F49584E;
+
+    /**
+     * The version of the log file format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The default number of entries the ring holds, enough for a few seconds of even the busiest sound drivers.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * The interval between spills to the log file, in milliseconds; shortened while the game writes so quickly that
+     * a spill finds the ring more than a quarter full.
+     */
+    private static final long SPILL_INTERVAL = 50;
+
+    /**
+     * The ring of entries; its length is a power of two.
+     */
+    private final long[] ring;
+
+    /**
+     * The mask which turns a position into an index into the ring.
+     */
+    private final int mask;
+
+    /**
+     * The total number of entries recorded. Written only by the emulation thread, after the entry itself.
+     */
+    private volatile long position;
+
+    /**
+     * The number of entries overwritten before they could be spilled.
+     */
+    private volatile long dropped;
+
+    /**
+     * The thread spilling entries to a file, if any.
+     */
+    private Spiller spiller;
+
+    /**
+     * Creates a new IOLog.
+     *
+     * @param capacity The number of entries the ring holds; rounded up to a power of two.
+     */
+    public IOLog(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Packs a write into an entry: the cycle in the top 48 bits, then the register, then the value.
+     *
+     * @param cycle    The CPU cycle the write happened at.
+     * @param register The register written, 00h-FFh.
+     * @param value    The value written.
+     * @return The entry.
+     */
+    public static long entry(long cycle, int register, int value)
+    {
+        return (cycle << 16) | ((register & 0xFF) << 8) | (value & 0xFF);
+    }
+
+    /**
+     * Unpacks the cycle from an entry.
+     *
+     * @param entry The entry.
+     * @return The CPU cycle the write happened at.
+     */
+    public static long cycle(long entry)
+    {
+        return entry >>> 16;
+    }
+
+    /**
+     * Unpacks the register from an entry.
+     *
+     * @param entry The entry.
+     * @return The register written, 00h-FFh.
+     */
+    public static int register(long entry)
+    {
+        return (int) (entry >>> 8) & 0xFF;
+    }
+
+    /**
+     * Unpacks the value from an entry.
+     *
+     * @param entry The entry.
+     * @return The unsigned value written.
+     */
+    public static int value(long entry)
+    {
+        return (int) entry & 0xFF;
+    }
+
+    /**
+     * Records a write. Must only be called from the emulation thread.
+     *
+     * @param cycle    The CPU cycle the write happened at.
+     * @param register The register written, 00h-FFh.
+     * @param value    The value written.
+     */
+    public void record(long cycle, int register, int value)
+    {
+        long position = this.position;
+        ring[(int) position & mask] = entry(cycle, register, value);
+        this.position = position + 1;
+    }
+
+    /**
+     * Retrieves the total number of entries recorded so far.
+     *
+     * @return The position the next entry will be recorded at.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Retrieves the number of entries the ring holds.
+     *
+     * @return The capacity of the ring.
+     */
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    /**
+     * Retrieves the number of entries overwritten before they could be spilled to the log file.
+     *
+     * @return The number of entries dropped.
+     */
+    public long getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Copies recorded entries out of the ring.
+     * <p/>
+     * May be called from any thread.
+     *
+     * @param from The position of the first entry wanted.
+     * @param into The array to copy into, from index 0.
+     * @return The number of entries copied, up to the length of the array; or -1 if the entry at from has already been
+     * overwritten (or was overwritten while copying), in which case reading should resume nearer {@link
+     * #getPosition()}.
+     */
+    public int read(long from, long[] into)
+    {
+        long end = position;
+        if (from < end - ring.length) return -1;
+
+        int count = (int) Math.min(end - from, into.length);
+        for (int i = 0; i < count; i++)
+            into[i] = ring[(int) (from + i) & mask];
+
+        // The emulation thread may have lapped us while we were copying
+        if (from < position - ring.length) return -1;
+        return count;
+    }
+
+    /**
+     * Starts appending every entry recorded from now on to a log file, in the background.
+     *
+     * @param file The log file; overwritten if it exists.
+     * @throws IOException if the file can't be created.
+     */
+    public synchronized void spill(File file) throws IOException
+    {
+        if (spiller != null) throw new IllegalStateException("already spilling");
+        spiller = new Spiller(new FileOutputStream(file).getChannel(), position);
+        spiller.start();
+    }
+
+    /**
+     * Spills any remaining entries, and closes the log file.
+     */
+    public synchronized void close()
+    {
+        if (spiller == null) return;
+        spiller.close();
+        spiller = null;
+    }
+
+    /**
+     * Appends entries from the ring to a log file.
+     */
+    private class Spiller extends Thread
+    {
+        /**
+         * The log file.
+         */
+        private final FileChannel out;
+
+        /**
+         * The buffer entries are staged in; one ring's worth.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * The entries read from the ring.
+         */
+        private final long[] entries = new long[ring.length];
+
+        /**
+         * The position of the next entry to spill.
+         */
+        private long next;
+
+        /**
+         * Whether the last spill found the ring more than a quarter full.
+         */
+        private boolean busy;
+
+        /**
+         * Whether the spiller has been asked to stop.
+         */
+        private volatile boolean closed;
+
+        /**
+         * Creates a new Spiller, and writes the log file's header.
+         *
+         * @param out   The log file.
+         * @param start The position of the first entry to spill.
+         * @throws IOException if the header can't be written.
+         */
+        Spiller(FileChannel out, long start) throws IOException
+        {
+            super("IO-Log-Spiller-Thread");
+            setDaemon(true);
+
+            this.out = out;
+            this.next = start;
+            this.buffer = ByteBuffer.allocateDirect(ring.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION).flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            while (!closed)
+            {
+                try
+                {
+                    Thread.sleep(busy ? 1 : SPILL_INTERVAL);
+                } catch (InterruptedException ignored)
+                {
+                    // #error we were woken up by close(), which does the final spill itself
+                }
+
+                if (!closed) spill();
+            }
+        }
+
+        /**
+         * Appends every entry recorded since the last spill.
+         */
+        synchronized void spill()
+        {
+            busy = position - next > ring.length / 4;
+            try
+            {
+                while (next < position)
+                {
+                    int count = read(next, entries);
+                    if (count < 0)
+                    {
+                        // Skip ahead by half a ring, so the emulation thread doesn't immediately lap us again
+                        long resume = position - ring.length / 2;
+                        dropped += resume - next;
+                        next = resume;
+                        continue;
+                    }
+
+                    buffer.clear();
+                    buffer.asLongBuffer().put(entries, 0, count);
+                    buffer.limit(count * 8);
+                    while (buffer.hasRemaining()) out.write(buffer);
+
+                    next += count;
+                }
+            } catch (IOException e)
+            {
+                // #error stop spilling; the ring keeps recording
+                e.printStackTrace();
+                closed = true;
+            }
+        }
+
+        /**
+         * Performs a final spill, and closes the log file.
+         */
+        void close()
+        {
+            closed = true;
+            interrupt();
+            spill();
+            try
+            {
+                out.close();
+            } catch (IOException e)
+            {
+                // #error print stacktrace for debugging
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package nitrous.mbc;
+
+import nitrous.cpu.R;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Turns an {@link IOLog} file into per-register timelines.
+ * <p/>
+ * Usage: <code>java nitrous.mbc.IOLogDecoder log-file [register...]</code>, where registers are given in hexadecimal
+ * (e.g. 40 or FF40). Without registers, a summary of every register written is printed instead; with them, each
+ * write to those registers is printed with its cycle, the cycles elapsed since the previous write, and the value.
+ *
+ * @author Tudor
+ */
+public class IOLogDecoder
+{
+    /**
+     * The decoder tool's entry point.
+     *
+     * @param argv command line arguments
+     * @throws IOException if the log can't be read.
+     */
+    public static void main(String[] argv) throws IOException
+    {
+        if (argv.length == 0)
+        {
+            System.err.println("Usage: IOLogDecoder log-file [register...]");
+            return;
+        }
+
+        long[][] timelines;
+        try (FileInputStream in = new FileInputStream(new File(argv[0])))
+        {
+            timelines = decode(in.getChannel());
+        }
+
+        String[] names = registerNames();
+        if (argv.length == 1)
+        {
+            summarize(timelines, names, System.out);
+            return;
+        }
+
+        for (int i = 1; i < argv.length; i++)
+        {
+            int register = Integer.parseInt(argv[i], 16) & 0xFF;
+            print(timelines[register], names[register], System.out);
+        }
+    }
+
+    /**
+     * Reads a log file, and splits it into one timeline per register.
+     *
+     * @param in The log file, positioned at its header.
+     * @return 256 arrays of entries, indexed by register, in the order they were recorded.
+     * @throws IOException if the file can't be read, or isn't an IO log.
+     */
+    public static long[][] decode(ReadableByteChannel in) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.position() < 8)
+        {
+            if (in.read(buffer) < 0) throw new IOException("not an IO log");
+        }
+
+        buffer.flip();
+        if (buffer.getInt() != IOLog.MAGIC)
+            throw new IOException("not an IO log");
+        if (buffer.getInt() != IOLog.VERSION)
+            throw new IOException("unsupported IO log version");
+
+        long[][] timelines = new long[0x100][16];
+        int[] counts = new int[0x100];
+        while (true)
+        {
+            while (buffer.remaining() >= 8)
+            {
+                long entry = buffer.getLong();
+                int register = IOLog.register(entry);
+                if (counts[register] == timelines[register].length)
+                    timelines[register] = Arrays.copyOf(timelines[register], counts[register] * 2);
+                timelines[register][counts[register]++] = entry;
+            }
+
+            buffer.compact();
+            if (in.read(buffer) < 0) break;
+            buffer.flip();
+        }
+
+        for (int i = 0; i < timelines.length; i++)
+            timelines[i] = Arrays.copyOf(timelines[i], counts[i]);
+        return timelines;
+    }
+
+    /**
+     * Prints how often each register was written, and over which cycles.
+     *
+     * @param timelines The timelines, indexed by register.
+     * @param names     The name of each register.
+     * @param out       The stream to print to.
+     */
+    public static void summarize(long[][] timelines, String[] names, PrintStream out)
+    {
+        for (int register = 0; register < timelines.length; register++)
+        {
+            long[] timeline = timelines[register];
+            if (timeline.length == 0) continue;
+
+            out.printf("%-10s %8d writes, cycles %d-%d%n", names[register], timeline.length,
+                    IOLog.cycle(timeline[0]), IOLog.cycle(timeline[timeline.length - 1]));
+        }
+    }
+
+    /**
+     * Prints every write in a timeline.
+     *
+     * @param timeline The timeline.
+     * @param name     The name of its register.
+     * @param out      The stream to print to.
+     */
+    public static void print(long[] timeline, String name, PrintStream out)
+    {
+        out.printf("%s: %d writes%n", name, timeline.length);
+        long last = timeline.length > 0 ? IOLog.cycle(timeline[0]) : 0;
+        for (long entry : timeline)
+        {
+            long cycle = IOLog.cycle(entry);
+            out.printf("  %12d %+8d  %02X%n", cycle, cycle - last, IOLog.value(entry));
+            last = cycle;
+        }
+    }
+
+    /**
+     * Names every register, using the constants in {@link R} where there is one.
+     *
+     * @return 256 names, such as "FF40 LCDC", indexed by register.
+     */
+    public static String[] registerNames()
+    {
+        String[] names = new String[0x100];
+        for (int i = 0; i < names.length; i++)
+            names[i] = String.format("FF%02X", i);
+
+        for (Field field : R.class.getFields())
+        {
+            if (field.getType() != int.class || !field.getName().startsWith("R_")) continue;
+            try
+            {
+                int register = field.getInt(null);
+                if (register >= 0 && register < 0x100 && names[register].length() == 4)
+                    names[register] += " " + field.getName().substring(2);
+            } catch (IllegalAccessException ignored)
+            {
+                // #error fields of an interface are always public
+            }
+        }
+        return names;
+    }
+}
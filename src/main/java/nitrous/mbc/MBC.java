@@ -5,6 +5,10 @@ import nitrous.cpu.Emulator;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Abstract implementation of features shared by all Memory Banking Chips.
@@ -18,6 +22,11 @@ public abstract class MBC extends Memory
      */
     public static final int RAM_PAGESIZE = 0x2000;
 
+    /**
+     * The granularity at which writes to cart RAM are tracked for {@link SaveFlusher}, 256 bytes.
+     */
+    public static final int DIRTY_PAGESIZE = 0x100;
+
     /**
      * The current offset (page) into cart ram.
      */
@@ -33,6 +42,26 @@ public abstract class MBC extends Memory
      */
     protected byte[] cartRam;
 
+    /**
+     * One flag per {@link #DIRTY_PAGESIZE} bytes of cart ram, set when the page is written to.
+     * Null unless a {@link SaveFlusher} is persisting this cart's ram.
+     * <p/>
+     * Flags are set on the emulation thread and cleared on the flusher's, so they are atomic: a flag is only set
+     * after the write it marks, and cleared before the page is copied.
+     */
+    AtomicIntegerArray dirtyPages;
+
+    /**
+     * Set when the data saved after cart ram (see {@link #getTrailerSize}) has changed and should be flushed.
+     */
+    final AtomicBoolean trailerDirty = new AtomicBoolean();
+
+    /**
+     * Set by the {@link SaveFlusher} thread to have the emulation thread call {@link #prepareTrailer} at the next
+     * V-Blank.
+     */
+    volatile boolean trailerRequested;
+
     /**
      * Default constructor for all extending classes.
      *
@@ -43,6 +72,103 @@ public abstract class MBC extends Memory
         super(core);
     }
 
+    /**
+     * Computes the size of cart ram to allocate.
+     *
+     * @param banks The number of 8k banks this controller can address.
+     * @return The size of cart ram, in bytes; compact sessions only allocate as many banks as the header declares.
+     */
+    protected int ramSize(int banks)
+    {
+        if (core.compact) banks = Math.min(banks, core.cartridge.ramBanks);
+        return banks * RAM_PAGESIZE;
+    }
+
+    /**
+     * Maps a bank of cart ram into $A000-$BFFF.
+     * <p/>
+     * Banks past the end of cart ram wrap around, as they would on a cartridge with less ram than the controller
+     * can address.
+     *
+     * @param bank The bank number.
+     */
+    protected void mapRam(int bank)
+    {
+        int start = cartRam.length == 0 ? 0 : (bank * RAM_PAGESIZE) % cartRam.length;
+        if (MemoryStats.ENABLED && start != ramPageStart) stats.ramSwitches++;
+        ramPageStart = start;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFootprint()
+    {
+        return super.getFootprint() + cartRam.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Cart ram follows the rest of memory.
+     */
+    @Override
+    public int getStateSize()
+    {
+        return super.getStateSize() + cartRam.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveState(ByteBuffer state)
+    {
+        super.saveState(state);
+        state.put(cartRam);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadState(ByteBuffer state)
+    {
+        super.loadState(state);
+        state.get(cartRam);
+
+        // Everything changed, as far as the save file is concerned
+        AtomicIntegerArray dirty = dirtyPages;
+        if (dirty != null)
+        {
+            for (int page = 0; page < dirty.length(); page++)
+                dirty.set(page, 1);
+        }
+        trailerDirty.set(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveScalars(ByteBuffer state)
+    {
+        super.saveScalars(state);
+        state.putInt(ramPageStart).put((byte) (ramEnabled ? 1 : 0));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadScalars(ByteBuffer state)
+    {
+        super.loadScalars(state);
+        ramPageStart = state.getInt();
+        ramEnabled = state.get() != 0;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -51,13 +177,28 @@ public abstract class MBC extends Memory
     {
         if(!hasBattery()) throw new IllegalStateException("no battery!");
         int read = 0;
-        while (true)
+        while (read < cartRam.length)
         {
-            int n = in.read(cartRam, read, cartRam.length);
+            int n = in.read(cartRam, read, cartRam.length - read);
             if (n == -1) break;
             read += n;
         }
         if (read != cartRam.length) throw new IOException("cart data invalid");
+
+        // Anything after cart ram is extra hardware state
+        if (getTrailerSize() > 0)
+        {
+            byte[] trailer = new byte[getTrailerSize()];
+            read = 0;
+            while (read < trailer.length)
+            {
+                int n = in.read(trailer, read, trailer.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+            if (read > 0)
+                loadTrailer(ByteBuffer.wrap(trailer, 0, read).order(ByteOrder.LITTLE_ENDIAN));
+        }
     }
 
     /**
@@ -68,6 +209,92 @@ public abstract class MBC extends Memory
     {
         if(!hasBattery()) throw new IllegalStateException("no battery!");
         out.write(cartRam);
+
+        if (getTrailerSize() > 0)
+        {
+            ByteBuffer trailer = ByteBuffer.allocate(getTrailerSize()).order(ByteOrder.LITTLE_ENDIAN);
+            saveTrailer(trailer);
+            out.write(trailer.array());
+        }
+    }
+
+    /**
+     * Retrieves the size of the hardware state saved after cart ram in save files (e.g., the MBC3 real time clock).
+     *
+     * @return The size of the trailer, in bytes, or 0 if there is none.
+     */
+    public int getTrailerSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Captures the hardware state saved after cart ram, for {@link #saveTrailer} to write later.
+     * <p/>
+     * Called on the emulation thread (or while it is paused), and should mark {@link #trailerDirty} if the state
+     * changed.
+     */
+    protected void prepareTrailer()
+    {
+    }
+
+    /**
+     * Writes the hardware state saved after cart ram, as last captured by {@link #prepareTrailer}.
+     * <p/>
+     * This may be called from the {@link SaveFlusher} thread while the game is running, so it must only read state
+     * published safely by the emulation thread.
+     *
+     * @param out A little-endian buffer with {@link #getTrailerSize} bytes remaining.
+     */
+    protected void saveTrailer(ByteBuffer out)
+    {
+    }
+
+    /**
+     * Reads the hardware state saved after cart ram.
+     *
+     * @param in A little-endian buffer holding as much of the trailer as the save file contained.
+     */
+    protected void loadTrailer(ByteBuffer in)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Cart ram ($A000-$BFFF) is written through the given bank, or the currently mapped one if it is -1.
+     */
+    @Override
+    public void poke(int bank, int addr, int data)
+    {
+        addr &= 0xFFFF;
+        if ((addr & 0xE000) != 0xA000)
+        {
+            super.poke(bank, addr, data);
+            return;
+        }
+
+        int index = (bank < 0 ? ramPageStart : bank * RAM_PAGESIZE) + addr - 0xA000;
+        if (index < cartRam.length)
+            writeRam(index, (byte) data);
+    }
+
+    /**
+     * Writes a byte of cart ram, marking its page dirty if the ram is being persisted in the background.
+     * <p/>
+     * Writes are dropped if there is no cart ram, as when a compact session runs a cartridge whose header declares
+     * none; games often enable ram regardless.
+     *
+     * @param index The offset into cart ram.
+     * @param data  The data to write.
+     */
+    protected void writeRam(int index, byte data)
+    {
+        if (index >= cartRam.length) return;
+        cartRam[index] = data;
+        AtomicIntegerArray dirty = dirtyPages;
+        if (dirty != null)
+            dirty.lazySet(index >> 8, 1);
     }
 
     /**
@@ -81,7 +308,8 @@ public abstract class MBC extends Memory
         {
             case 0xA000:
             case 0xB000:
-                if (ramEnabled)
+                // Without cart ram, reads float as though it were disabled
+                if (ramEnabled && cartRam.length != 0)
                 {
                     return cartRam[addr - 0xA000 + ramPageStart];
                 } else
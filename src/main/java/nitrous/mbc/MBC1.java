@@ -4,6 +4,7 @@ import nitrous.cpu.Emulator;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Implementation of Memory Bank Chip 1.
@@ -17,34 +18,47 @@ public class MBC1 extends MBC
      */
     private int modeSelect;
 
-    /**
-     * Currently mapped ROM bank.
-     */
-    private int romBank = 1;
-
     /**
      * {@inheritDoc}
      */
     public MBC1(Emulator core)
     {
         super(core);
-        cartRam = new byte[RAM_PAGESIZE * 4];
+        cartRam = new byte[ramSize(4)];
     }
 
     /**
-     * Maps a ROM bank to be accessed.
-     *
-     * @param bank The bank number.
+     * {@inheritDoc}
      */
-    private void mapRom(int bank)
+    @Override
+    protected void mapRom(int bank)
     {
         /**
          * Banks $00, $20, $40, and $60 are not usable, and redirect to the next bank.
          */
         if (bank == 0x00 || bank == 0x20 || bank == 0x40 || bank == 0x60)
             bank++;
-        romBank = bank;
-        romPageStart = Memory.ROM_PAGESIZE * bank;
+        super.mapRom(bank);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveScalars(ByteBuffer state)
+    {
+        super.saveScalars(state);
+        state.putInt(modeSelect);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadScalars(ByteBuffer state)
+    {
+        super.loadScalars(state);
+        modeSelect = state.getInt();
     }
 
     /**
@@ -85,7 +99,7 @@ public class MBC1 extends MBC
                  */
                 if (ramEnabled)
                 {
-                    cartRam[addr - 0xA000 + ramPageStart] = data;
+                    writeRam(addr - 0xA000 + ramPageStart, data);
                 }
                 break;
             case 0x2000:
@@ -109,7 +123,7 @@ public class MBC1 extends MBC
                  */
                 if (modeSelect == 0)
                 {
-                    ramPageStart = (data & 0x03) * RAM_PAGESIZE;
+                    mapRam(data & 0x03);
                 } else
                 {
                     mapRom((romBank & 0x1F) | ((data & 0x03) << 4));
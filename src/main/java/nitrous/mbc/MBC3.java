@@ -2,13 +2,17 @@ package nitrous.mbc;
 
 import nitrous.cpu.Emulator;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import static java.lang.Math.max;
 
 /**
  * Implementation of Memory Bank Chip 3.
+ * <p/>
+ * Carts with a timer (types 0Fh and 10h) have a realtime clock, which is derived from the emulated cycle count only
+ * when the game latches or writes it. Its state is kept after cart ram in the save file, along with the time it was
+ * captured, so that it keeps counting while the emulator is closed. The clock is only read on the emulation thread,
+ * which publishes an immutable copy of it for the save file whenever it changes or a save is requested.
  *
  * @author Tudor
  */
@@ -25,9 +29,89 @@ public class MBC3 extends MBC
     private boolean rtcEnabled;
 
     /**
-     * The realtime clock registers.
+     * The number of seconds the realtime clock can count before its day counter overflows (512 days).
      */
-    private byte[] rtc = new byte[4];
+    private static final long RTC_PERIOD = 512 * 86400L;
+
+    /**
+     * The size of the realtime clock state saved after cart ram, in the layout used by other emulators:
+     * the live and latched S, M, H, DL and DH registers as 32-bit words, followed by a 64-bit UNIX timestamp.
+     */
+    private static final int RTC_TRAILER_SIZE = 48;
+
+    /**
+     * The RTC register (0-4 for S, M, H, DL, DH) mapped into A000-BFFF, or -1 if a ram bank is mapped instead.
+     */
+    private int rtcRegister = -1;
+
+    /**
+     * The realtime clock registers, as of the last latch.
+     */
+    private final byte[] rtcLatched = new byte[5];
+
+    /**
+     * The last value written to the latch register, since a latch happens on a write of 00h followed by 01h.
+     */
+    private int rtcLatch = -1;
+
+    /**
+     * The value of the clock, in seconds, at {@link #rtcBaseCycle}.
+     * <p/>
+     * The clock isn't ticked as the CPU runs; it is derived from the cycle counter whenever a game looks at it.
+     */
+    private long rtcBase;
+
+    /**
+     * The base clock cycle (see {@link Emulator#getBaseClockCycles}) at which the clock read {@link #rtcBase}.
+     */
+    private long rtcBaseCycle;
+
+    /**
+     * Whether the clock is stopped (DH bit 6).
+     */
+    private boolean rtcHalted;
+
+    /**
+     * Whether the day counter has overflowed (DH bit 7). Stays set until the game clears it.
+     */
+    private boolean rtcCarry;
+
+    /**
+     * The clock as last captured by {@link #prepareTrailer}, to be written to the save file.
+     */
+    private volatile RtcTrailer trailer;
+
+    /**
+     * An immutable copy of the realtime clock, as saved after cart ram.
+     */
+    private static final class RtcTrailer
+    {
+        /**
+         * The live S, M, H, DL and DH registers.
+         */
+        final byte[] registers = new byte[5];
+
+        /**
+         * The latched S, M, H, DL and DH registers.
+         */
+        final byte[] latched;
+
+        /**
+         * The UNIX time at which the registers were captured, in seconds.
+         */
+        final long timestamp = System.currentTimeMillis() / 1000;
+
+        /**
+         * Captures the clock of a controller.
+         *
+         * @param mbc The controller.
+         */
+        RtcTrailer(MBC3 mbc)
+        {
+            mbc.toRegisters(mbc.rtcSeconds(), mbc.rtcCarry, registers);
+            latched = mbc.rtcLatched.clone();
+        }
+    }
 
     /**
      * {@inheritDoc}
@@ -35,7 +119,195 @@ public class MBC3 extends MBC
     public MBC3(Emulator core)
     {
         super(core);
-        cartRam = new byte[RAM_PAGESIZE * 4];
+        cartRam = new byte[ramSize(4)];
+        trailer = new RtcTrailer(this);
+    }
+
+    /**
+     * Computes the number of seconds counted by the realtime clock, without wrapping at {@link #RTC_PERIOD}.
+     *
+     * @return The current value of the clock.
+     */
+    private long rtcSeconds()
+    {
+        if (rtcHalted) return rtcBase;
+        return rtcBase + (core.getBaseClockCycles() - rtcBaseCycle) / Emulator.BASE_CLOCK_SPEED;
+    }
+
+    /**
+     * Splits a clock value into the five RTC registers.
+     *
+     * @param seconds The value of the clock, which may be past {@link #RTC_PERIOD}.
+     * @param carry   Whether the day counter had already overflowed.
+     * @param out     The array to store S, M, H, DL and DH into.
+     */
+    private void toRegisters(long seconds, boolean carry, byte[] out)
+    {
+        carry |= seconds >= RTC_PERIOD;
+        seconds %= RTC_PERIOD;
+        long days = seconds / 86400;
+
+        out[0] = (byte) (seconds % 60);
+        out[1] = (byte) (seconds / 60 % 60);
+        out[2] = (byte) (seconds / 3600 % 24);
+        out[3] = (byte) days;
+        out[4] = (byte) ((days >> 8) | (rtcHalted ? 0x40 : 0) | (carry ? 0x80 : 0));
+    }
+
+    /**
+     * Rebuilds the clock from the five RTC registers.
+     *
+     * @param regs The S, M, H, DL and DH registers.
+     */
+    private void fromRegisters(byte[] regs)
+    {
+        rtcBase = (regs[0] & 0xFF) + (regs[1] & 0xFF) * 60L + (regs[2] & 0xFF) * 3600L
+                + ((regs[3] & 0xFF) | ((regs[4] & 0x01) << 8)) * 86400L;
+        rtcHalted = (regs[4] & 0x40) != 0;
+        rtcCarry = (regs[4] & 0x80) != 0;
+    }
+
+    /**
+     * Writes an RTC register. The clock keeps counting from the new value.
+     *
+     * @param register The register, 0-4 for S, M, H, DL, DH.
+     * @param data     The value to write.
+     */
+    private void writeRtc(int register, byte data)
+    {
+        long cycles = core.getBaseClockCycles();
+        long seconds = rtcSeconds();
+
+        byte[] regs = new byte[5];
+        toRegisters(seconds, rtcCarry, regs);
+        regs[register] = data;
+
+        // Writing the seconds register resets the sub-second divider, other registers leave it running
+        long fraction = rtcHalted || register == 0 ? 0 : (cycles - rtcBaseCycle) % Emulator.BASE_CLOCK_SPEED;
+
+        fromRegisters(regs);
+        rtcBaseCycle = cycles - fraction;
+        prepareTrailer();
+    }
+
+    /**
+     * Copies the current time into the latched RTC registers.
+     */
+    private void latchRtc()
+    {
+        toRegisters(rtcSeconds(), rtcCarry, rtcLatched);
+        prepareTrailer();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTrailerSize()
+    {
+        return core.cartridge.hasTimer() ? RTC_TRAILER_SIZE : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void prepareTrailer()
+    {
+        if (!core.cartridge.hasTimer()) return;
+        trailer = new RtcTrailer(this);
+        trailerDirty.set(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveTrailer(ByteBuffer out)
+    {
+        RtcTrailer rtc = trailer;
+        for (byte reg : rtc.registers)
+            out.putInt(reg & 0xFF);
+        for (byte reg : rtc.latched)
+            out.putInt(reg & 0xFF);
+        out.putLong(rtc.timestamp);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadTrailer(ByteBuffer in)
+    {
+        if (in.remaining() < 40) return;
+
+        byte[] regs = new byte[5];
+        for (int i = 0; i < regs.length; i++)
+            regs[i] = (byte) in.getInt();
+        for (int i = 0; i < rtcLatched.length; i++)
+            rtcLatched[i] = (byte) in.getInt();
+
+        // Some emulators save a 32-bit timestamp instead
+        long timestamp = in.remaining() >= 8 ? in.getLong() : in.remaining() >= 4 ? in.getInt() & 0xFFFFFFFFL : 0;
+
+        fromRegisters(regs);
+        rtcBaseCycle = core.getBaseClockCycles();
+
+        // The cartridge's battery kept the clock running while the game was off
+        long now = System.currentTimeMillis() / 1000;
+        if (timestamp > 0 && !rtcHalted && now > timestamp)
+        {
+            rtcBase += now - timestamp;
+            if (rtcBase >= RTC_PERIOD)
+            {
+                rtcCarry = true;
+                rtcBase %= RTC_PERIOD;
+            }
+        }
+        prepareTrailer();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveScalars(ByteBuffer state)
+    {
+        super.saveScalars(state);
+        state.putInt(ramBank).put((byte) (rtcEnabled ? 1 : 0)).putInt(rtcRegister).putInt(rtcLatch).put(rtcLatched);
+        state.putLong(rtcBase).putLong(rtcBaseCycle);
+        state.put((byte) (rtcHalted ? 1 : 0)).put((byte) (rtcCarry ? 1 : 0));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadScalars(ByteBuffer state)
+    {
+        super.loadScalars(state);
+        ramBank = state.getInt();
+        rtcEnabled = state.get() != 0;
+        rtcRegister = state.getInt();
+        rtcLatch = state.getInt();
+        state.get(rtcLatched);
+        rtcBase = state.getLong();
+        rtcBaseCycle = state.getLong();
+        rtcHalted = state.get() != 0;
+        rtcCarry = state.get() != 0;
+        prepareTrailer();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getAddress(int addr)
+    {
+        addr &= 0xffff;
+        if (rtcRegister >= 0 && (addr & 0xE000) == 0xA000)
+            return rtcEnabled ? (short) (rtcLatched[rtcRegister] & 0xFF) : 0xff;
+        return super.getAddress(addr);
     }
 
     /**
@@ -65,8 +337,7 @@ public class MBC3 extends MBC
                  * address. As for the MBC1, writing a value of 00h, will select Bank 01h instead.
                  * All other values 01-7Fh select the corresponding ROM Banks.
                  */
-                int bank = max((data & 0x7F), 1);
-                romPageStart = Memory.ROM_PAGESIZE * bank;
+                mapRom(max((data & 0x7F), 1));
                 break;
             case 0x4000:
             case 0x5000:
@@ -76,35 +347,42 @@ public class MBC3 extends MBC
                  * map the corresponding RTC register into memory at A000-BFFF. That register could then be read/written
                  * by accessing any address in that area, typically that is done by using address A000.
                  */
-                // TODO: allow writing to rtc
                 if ((data >= 0x08) && (data <= 0x0C))
                 {
                     // RTC
-                    if (rtcEnabled)
-                    {
-                        ramBank = -1;
-                    }
+                    rtcRegister = data - 0x08;
                 } else if (data <= 0x03)
                 {
+                    rtcRegister = -1;
                     ramBank = data;
                     //  ramBank &= core.cartridge.ramBanks - 1;
-                    ramPageStart = ramBank * RAM_PAGESIZE;
+                    mapRam(ramBank);
                 }
                 break;
+            case 0x6000:
+            case 0x7000:
+                /**
+                 * When writing 00h, and then 01h to this register, the current time becomes latched into the RTC
+                 * registers. The latched data will not change until it becomes latched again, by repeating the
+                 * write 00h->01h procedure.
+                 */
+                if (rtcLatch == 0x00 && data == 0x01 && core.cartridge.hasTimer())
+                    latchRtc();
+                rtcLatch = data;
+                break;
             case 0xA000:
             case 0xB000:
                 /**
                  * Depending on the current Bank Number/RTC Register selection (see above), this memory space is used
                  * to access an 8KByte external RAM Bank, or a single RTC Register.
                  */
-                if (ramEnabled && ramBank >= 0)
+                if (rtcRegister >= 0)
                 {
-                    cartRam[addr - 0xA000 + ramPageStart] = data;
-                } else if (rtcEnabled)
+                    if (rtcEnabled && core.cartridge.hasTimer())
+                        writeRtc(rtcRegister, data);
+                } else if (ramEnabled)
                 {
-                    // FIXME this is probably incorrect
-                    //  rtc[ramBank - 0x08] = data;
-                    // System.err.println("Write to RTC not implemented yet");
+                    writeRam(addr - 0xA000 + ramPageStart, data);
                 }
                 break;
             default:
@@ -12,29 +12,13 @@ import java.io.OutputStream;
  */
 public class MBC5 extends MBC
 {
-    /**
-     * The currently selected ROM bank.
-     */
-    private int romBank = 1;
-
     /**
      * {@inheritDoc}
      */
     public MBC5(Emulator core)
     {
         super(core);
-        cartRam = new byte[RAM_PAGESIZE * 16];
-    }
-
-    /**
-     * Maps a ROM bank to be accessed.
-     *
-     * @param bank The bank number.
-     */
-    private void mapRom(int bank)
-    {
-        romBank = bank;
-        romPageStart = Memory.ROM_PAGESIZE * bank;
+        cartRam = new byte[ramSize(16)];
     }
 
     /**
@@ -60,7 +44,7 @@ public class MBC5 extends MBC
             case 0xB000:
                 if (ramEnabled)
                 {
-                    cartRam[addr - 0xA000 + ramPageStart] = data;
+                    writeRam(addr - 0xA000 + ramPageStart, data);
                 }
                 break;
             case 0x2000:
@@ -79,7 +63,7 @@ public class MBC5 extends MBC
                 break;
             case 0x4000:
             case 0x5000:
-                ramPageStart = (data & 0x03) * RAM_PAGESIZE;
+                mapRam(data & 0x03);
                 break;
             default:
                 super.setAddress(addr, data);
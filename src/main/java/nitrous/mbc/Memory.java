@@ -1,11 +1,14 @@
 package nitrous.mbc;
 
+import nitrous.cheat.CheatEngine;
 import nitrous.cpu.Emulator;
 import nitrous.cpu.R;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static nitrous.cpu.R.*;
 
@@ -50,6 +53,12 @@ public class Memory
      */
     public static final int ROM_PAGESIZE = 0x4000;
 
+    /**
+     * The space reserved for scalar state (bank selection and the like) at the start of the memory region of a
+     * {@link nitrous.MachineState}, shared by this class and any controller extending it.
+     */
+    protected static final int STATE_SCALARS = 0x80;
+
     /**
      * Register values, mapped from $FF00-$FF7F + HRAM ($FF80-$FFFE) + Interrupt Enable Register ($FFFF)
      */
@@ -63,16 +72,18 @@ public class Memory
     /**
      * Video RAM, mapped from $8000-$9FFF.
      * <p/>
-     * On the GBC, this bank is switchable 0-1 by writing to $FF4F.
+     * On the GBC, this bank is switchable 0-1 by writing to $FF4F. In compact sessions, bank 1 is only allocated once
+     * a game first switches to it, so this array may be replaced; it should not be cached across instructions.
      */
-    public final byte[] vram;
+    public byte[] vram;
 
     /**
      * Work RAM, mapped from $C000-$CFFF and $D000-$DFFF.
      * <p/>
-     * On the GBC, this bank is switchable 1-7 by writing to $FF07.
+     * On the GBC, this bank is switchable 1-7 by writing to $FF70. In compact sessions, banks 2-7 are only allocated
+     * once a game first switches to one of them, so this array may be replaced.
      */
-    public final byte[] wram;
+    public byte[] wram;
 
     /**
      * The current page of Video RAM, always multiples of Memory.VRAM_PAGESIZE.
@@ -89,9 +100,24 @@ public class Memory
     public int wramPageStart = WRAM_PAGESIZE;
 
     /**
-     * The current page of ROM, always multiples of Memory.ROM_PAGESIZE.
+     * The currently mapped ROM bank, accessed through $4000-$7FFF.
+     */
+    public int romBank;
+
+    /**
+     * ROM bank 0, mapped from $0000-$3FFF.
      */
-    public int romPageStart = ROM_PAGESIZE;
+    protected byte[] rom0;
+
+    /**
+     * Contents of the currently mapped ROM bank, mapped from $4000-$7FFF.
+     */
+    protected byte[] romN;
+
+    /**
+     * Game Genie patches applied to ROM banks as they are mapped, or null if there are none.
+     */
+    private CheatEngine cheats;
 
     /**
      * Reference to the main Emulator instance.
@@ -103,6 +129,16 @@ public class Memory
      */
     public HDMA hdma;
 
+    /**
+     * Access counters, or null unless {@link MemoryStats#ENABLED}.
+     */
+    public final MemoryStats stats;
+
+    /**
+     * Log of writes to the IO registers, or null if they aren't being logged.
+     */
+    public IOLog ioLog;
+
     /**
      * Instantiate a Memory instance.
      *
@@ -112,11 +148,233 @@ public class Memory
     {
         this.core = core;
 
-        // The CGB has 16k of wram
-        wram = new byte[WRAM_PAGESIZE * (core.cartridge.isColorGB ? 8 : 2)];
+        // The CGB has 32k of wram and 16k of vram, but compact sessions start out with only what the DMG has
+        boolean color = core.cartridge.isColorGB && !core.compact;
+        wram = new byte[WRAM_PAGESIZE * (color ? 8 : 2)];
+        vram = new byte[VRAM_PAGESIZE * (color ? 2 : 1)];
+
+        stats = MemoryStats.ENABLED ? new MemoryStats(this, core.cartridge.romBanks) : null;
+
+        // Bank 0 is fixed, and every cartridge starts up with bank 1 in the switchable area
+        rom0 = core.cartridge.getBank(0);
+        mapRom(1);
+    }
+
+    /**
+     * Maps a ROM bank into $4000-$7FFF.
+     * <p/>
+     * The bank is only read from the cartridge image the first time any session maps it.
+     *
+     * @param bank The bank number.
+     */
+    protected void mapRom(int bank)
+    {
+        if (MemoryStats.ENABLED && bank != romBank) stats.romSwitches++;
+        romBank = bank;
+        romN = core.cartridge.getBank(bank);
+
+        // Only banks containing a patch are replaced, so reads are never slower for having cheats
+        if (cheats != null)
+            romN = cheats.patch(bank, romN, true);
+    }
+
+    /**
+     * Installs the cheat engine whose Game Genie patches apply to ROM, and maps the patched banks in.
+     * <p/>
+     * Like {@link #remapRom}, this must not race the game's own bank switches.
+     *
+     * @param cheats The cheat engine, or null to remove every patch.
+     */
+    public void setCheats(CheatEngine cheats)
+    {
+        this.cheats = cheats;
+        remapRom();
+    }
+
+    /**
+     * Maps the current ROM banks in again, after the patches applying to them have changed.
+     * <p/>
+     * Must be called from the emulation thread, from another thread holding the {@link Emulator#executeLock()}, or
+     * before the session is started, since the MBC may switch banks at any time while it runs.
+     */
+    public void remapRom()
+    {
+        byte[] bank0 = core.cartridge.getBank(0);
+        rom0 = cheats != null ? cheats.patch(0, bank0, false) : bank0;
+        mapRom(romBank);
+    }
+
+    /**
+     * Writes a byte of ram directly, without side effects (e.g., for a GameShark code).
+     *
+     * @param bank The work ram bank to write $D000-$DFFF through, or -1 for the currently mapped one.
+     * @param addr The address to write to; only ram ($8000-$9FFF, $C000-$DFFF, $FF80-$FFFE) is written.
+     * @param data The data to write.
+     */
+    public void poke(int bank, int addr, int data)
+    {
+        addr &= 0xFFFF;
+        switch (addr & 0xF000)
+        {
+            case 0x8000:
+            case 0x9000:
+                writeVram(vramPageStart + addr - 0x8000, (byte) data);
+                break;
+            case 0xC000:
+                wram[addr - 0xC000] = (byte) data;
+                break;
+            case 0xD000:
+            {
+                int start = bank < 0 ? wramPageStart : WRAM_PAGESIZE * Math.max(1, bank);
+
+                // Compact sessions may not have allocated the bank yet
+                if (start + WRAM_PAGESIZE <= wram.length)
+                    wram[start + addr - 0xD000] = (byte) data;
+                break;
+            }
+            case 0xF000:
+                if (addr >= 0xFF80 && addr < 0xFFFF)
+                    registers[addr - 0xFF00] = (byte) data;
+                break;
+        }
+    }
+
+    /**
+     * Estimates the heap retained by this memory's arrays.
+     *
+     * @return The combined size of all memory arrays, in bytes.
+     */
+    public long getFootprint()
+    {
+        return registers.length + oam.length + vram.length + wram.length;
+    }
+
+    /**
+     * Computes the size of this memory's region of a {@link nitrous.MachineState}.
+     * <p/>
+     * The region is laid out as {@link #STATE_SCALARS} bytes of scalar state, followed by the registers, OAM, vram
+     * and wram at fixed offsets. Vram and wram are always given room for every bank the cartridge can use, so the
+     * size doesn't change when a compact session allocates more banks.
+     *
+     * @return The size of the region, in bytes.
+     */
+    public int getStateSize()
+    {
+        int banks = core.cartridge.isColorGB ? 2 : 1;
+        return STATE_SCALARS + registers.length + oam.length + VRAM_PAGESIZE * banks + getStateWramSize();
+    }
+
+    /**
+     * Computes the room given to wram in a {@link nitrous.MachineState}: every bank the cartridge can use.
+     *
+     * @return The size of the wram area, in bytes.
+     */
+    private int getStateWramSize()
+    {
+        return WRAM_PAGESIZE * (core.cartridge.isColorGB ? 8 : 2);
+    }
+
+    /**
+     * Writes this memory into a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the memory region; {@link #getStateSize} bytes are used.
+     */
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+        saveScalars(state);
+        state.position(base + STATE_SCALARS);
+
+        int banks = core.cartridge.isColorGB ? 2 : 1;
+        int vramStart = state.position() + registers.length + oam.length;
+        state.put(registers).put(oam).put(vram);
+        state.position(vramStart + VRAM_PAGESIZE * banks);
+        state.put(wram);
+        state.position(vramStart + VRAM_PAGESIZE * banks + getStateWramSize());
+    }
+
+    /**
+     * Restores this memory from a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the memory region.
+     */
+    public void loadState(ByteBuffer state)
+    {
+        // Scanlines still pending were reached before the state changed
+        core.lcd.catchUp();
+
+        int base = state.position();
+        loadScalars(state);
+        state.position(base + STATE_SCALARS);
+
+        int banks = core.cartridge.isColorGB ? 2 : 1;
+        int vramStart = state.position() + registers.length + oam.length;
+        state.get(registers).get(oam).get(vram);
+        state.position(vramStart + VRAM_PAGESIZE * banks);
+        state.get(wram);
+        state.position(vramStart + VRAM_PAGESIZE * banks + getStateWramSize());
+
+        core.lcd.tiles.rebuild(vram);
+        core.lcd.sprites.invalidate();
+    }
+
+    /**
+     * Writes a byte of vram, keeping the LCD's decoded tiles in step.
+     *
+     * @param index The index into vram, including the bank offset.
+     * @param data  The data to write.
+     */
+    private void writeVram(int index, byte data)
+    {
+        core.lcd.beforeVramWrite(index, data);
+        vram[index] = data;
+        core.lcd.tiles.update(vram, index);
+    }
+
+    /**
+     * Writes scalar state into the start of the memory region of a {@link nitrous.MachineState}.
+     * Controllers with state of their own should call this first, and then append theirs.
+     *
+     * @param state The arena to write to; at most {@link #STATE_SCALARS} bytes may be used in total.
+     */
+    protected void saveScalars(ByteBuffer state)
+    {
+        state.putInt(romBank).putInt(vramPageStart).putInt(wramPageStart);
+        state.putInt(vram.length).putInt(wram.length);
+
+        // An in-progress HDMA transfer, if any
+        state.putInt(hdma != null ? hdma.source : -1);
+        state.putInt(hdma != null ? hdma.dest : 0).putInt(hdma != null ? hdma.length : 0);
+        state.putInt(hdma != null ? hdma.ptr : 0);
+    }
 
-        // and 8k of vram
-        vram = new byte[VRAM_PAGESIZE * (core.cartridge.isColorGB ? 2 : 1)];
+    /**
+     * Restores scalar state written by {@link #saveScalars}.
+     *
+     * @param state The arena to read from.
+     */
+    protected void loadScalars(ByteBuffer state)
+    {
+        mapRom(state.getInt());
+        vramPageStart = state.getInt();
+        wramPageStart = state.getInt();
+
+        // A compact session may hold fewer banks than the one the state came from
+        int vramLength = state.getInt();
+        int wramLength = state.getInt();
+        if (vram.length != vramLength) vram = new byte[vramLength];
+        if (wram.length != wramLength) wram = new byte[wramLength];
+
+        int source = state.getInt();
+        int dest = state.getInt();
+        int length = state.getInt();
+        int ptr = state.getInt();
+        hdma = null;
+        if (source >= 0)
+        {
+            hdma = new HDMA(source, dest, length);
+            hdma.ptr = ptr;
+        }
     }
 
     /**
@@ -204,11 +462,12 @@ public class Memory
              */
             for (int i = ptr; i < ptr + 0x10; i++)
             {
-                vram[vramPageStart + dest + i] = (byte) (getAddress(source + i) & 0xff);
+                writeVram(vramPageStart + dest + i, (byte) (getAddress(source + i) & 0xff));
             }
 
             ptr += 0x10;
             length -= 0x10;
+            if (MemoryStats.ENABLED) stats.hdmaBytes += 0x10;
             System.err.printf("Ticked HDMA from %04X-%04X, %02X remaining\n", source, dest, length);
             if (length == 0)
             {
@@ -261,7 +520,7 @@ public class Memory
                 break;
             case 0x8000:
             case 0x9000:
-                vram[vramPageStart + addr - 0x8000] = data;
+                writeVram(vramPageStart + addr - 0x8000, data);
                 break;
             case 0xA000:
             case 0xB000:
@@ -283,7 +542,9 @@ public class Memory
                     setAddress(addr - 0xE000, data);
                 } else if (addr < 0xFF00)
                 {
+                    core.lcd.beforeOamWrite(addr - 0xFE00, data);
                     oam[addr - 0xFE00] = data;
+                    core.lcd.sprites.invalidate();
                 } else
                 {
                     setIO(addr - 0xFF00, data);
@@ -300,11 +561,26 @@ public class Memory
      */
     public void setIO(int addr, int data)
     {
+        if (ioLog != null) ioLog.record(core.cycle, addr, data);
+
         switch (addr)
         {
             case 0x4d:
                 core.setDoubleSpeed((data & 0x01) != 0);
                 break;
+            case R_LCDC:
+            case R_SCY:
+            case R_SCX:
+            case R_WY:
+            case R_WX:
+                // Scanlines the LCD has already passed must be drawn with the old value
+                core.lcd.beforeRegisterWrite(addr, data);
+                break;
+            case R_BGP:
+            case R_OBP0:
+            case R_OBP1:
+                core.lcd.setDMGPalette(addr, data);
+                break;
             case 0x69:
             {
                 if (!core.cartridge.isColorGB) break;
@@ -355,9 +631,10 @@ public class Memory
                     // General DMA
                     for (int i = 0; i < length; i++)
                     {
-                        vram[vramPageStart + dest + i] = (byte) (getAddress(source + i) & 0xff);
+                        writeVram(vramPageStart + dest + i, (byte) (getAddress(source + i) & 0xff));
                     }
                     registers[0x55] = (byte) 0xFF;
+                    if (MemoryStats.ENABLED) stats.generalDmaBytes += length;
                 }
                 break;
             }
@@ -365,7 +642,15 @@ public class Memory
             {
                 if (core.cartridge.isColorGB)
                 {
-                    vramPageStart = VRAM_PAGESIZE * (data & 0x3);
+                    if (MemoryStats.ENABLED && VRAM_PAGESIZE * (data & 0x1) != vramPageStart) stats.vramSwitches++;
+                    vramPageStart = VRAM_PAGESIZE * (data & 0x1);
+
+                    // Compact sessions allocate bank 1 on first use
+                    if (vramPageStart + VRAM_PAGESIZE > vram.length)
+                    {
+                        core.lcd.vramResized(VRAM_PAGESIZE * 2);
+                        vram = Arrays.copyOf(vram, VRAM_PAGESIZE * 2);
+                    }
                 }
                 break;
             }
@@ -373,7 +658,13 @@ public class Memory
             {
                 if (core.cartridge.isColorGB)
                 {
+                    if (MemoryStats.ENABLED && WRAM_PAGESIZE * Math.max(1, data & 0x7) != wramPageStart)
+                        stats.wramSwitches++;
                     wramPageStart = WRAM_PAGESIZE * Math.max(1, data & 0x7);
+
+                    // Compact sessions allocate banks 2-7 on first use
+                    if (wramPageStart + WRAM_PAGESIZE > wram.length)
+                        wram = Arrays.copyOf(wram, WRAM_PAGESIZE * 8);
                 }
                 break;
             }
@@ -441,6 +732,7 @@ public class Memory
             case R_DMA:
             {
                 int addressBase = data * 0x100;
+                if (MemoryStats.ENABLED) stats.oamDmaBytes += 0xA0;
 
                 for (int i = 0; i < 0xA0; i++)
                 {
@@ -491,12 +783,12 @@ public class Memory
             case 0x1000:
             case 0x2000:
             case 0x3000:
-                return core.cartridge.rom[addr];
+                return rom0[addr];
             case 0x4000:
             case 0x5000:
             case 0x6000:
             case 0x7000:
-                return core.cartridge.rom[romPageStart + addr - 0x4000];
+                return romN[addr - 0x4000];
             case 0x8000:
             case 0x9000:
                 return vram[vramPageStart + addr - 0x8000];
@@ -569,6 +861,7 @@ public class Memory
             }
             case R_NR52:
             {
+                core.sound.updateStatus();
                 short reg = (short) (registers[R_NR52] & 0x80);
                 if (core.sound.channel1.isPlaying) reg |= 0x01;
                 if (core.sound.channel2.isPlaying) reg |= 0x02;
@@ -0,0 +1,268 @@
+package nitrous.mbc;
+
+import nitrous.cpu.Emulator;
+import nitrous.lcd.LCD;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only, zero-copy access to the memory of a running session, for external agents that inspect game state.
+ * <p/>
+ * The views returned here wrap the session's own arrays, so reading them costs no more than an array access and
+ * never goes through the memory controller. A view stays valid until the game switches the bank it covers (or, in a
+ * compact session, until a bank is first allocated); fetching it again is cheap and only allocates a new view if
+ * the mapping actually changed, so agents can simply fetch the views they need once per frame.
+ * <p/>
+ * Individual variables, such as a player's health or coordinates, are best read through a {@link WatchList}, which
+ * gathers a fixed set of addresses into a preallocated array at every V-Blank.
+ *
+ * @author Tudor
+ */
+public class MemoryObserver implements LCD.VBlankListener
+{
+    /**
+     * Stand-in for the cart ram of cartridges without a memory bank controller.
+     */
+    private static final byte[] NO_RAM = new byte[0];
+
+    /**
+     * The session being observed.
+     */
+    private final Emulator core;
+
+    /**
+     * Cached views, along with the array and offset each one was created for.
+     */
+    private final View wram0 = new View(), wramN = new View(), vram = new View(), cartRam = new View(),
+            hram = new View(), oam = new View();
+
+    /**
+     * Registered {@link WatchList} instances, gathered at every V-Blank.
+     */
+    private volatile WatchList[] watchLists = new WatchList[0];
+
+    /**
+     * A cached read-only view over part of an array.
+     */
+    private static class View
+    {
+        /**
+         * The array the view was created over.
+         */
+        byte[] array;
+
+        /**
+         * The offset into the array the view starts at.
+         */
+        int offset = -1;
+
+        /**
+         * The view itself.
+         */
+        ByteBuffer buffer;
+
+        /**
+         * Fetches the view, creating it again if the mapping has changed since it was last created.
+         *
+         * @param array  The array currently mapped.
+         * @param offset The offset currently mapped.
+         * @param length The length of the view.
+         * @return A read-only view.
+         */
+        ByteBuffer get(byte[] array, int offset, int length)
+        {
+            if (array != this.array || offset != this.offset)
+            {
+                buffer = ByteBuffer.wrap(array, offset, length).slice().asReadOnlyBuffer();
+                this.array = array;
+                this.offset = offset;
+            }
+
+            // The caller may have moved the position; views are always handed out rewound
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * Creates an observer, and starts gathering watch lists at every V-Blank.
+     *
+     * @param core The session to observe.
+     */
+    public MemoryObserver(Emulator core)
+    {
+        this.core = core;
+        core.lcd.addVBlankListener(this);
+    }
+
+    /**
+     * Stops gathering watch lists.
+     */
+    public void close()
+    {
+        core.lcd.removeVBlankListener(this);
+    }
+
+    /**
+     * Retrieves work ram bank 0, mapped at $C000-$CFFF.
+     *
+     * @return A read-only view, 4k in size.
+     */
+    public ByteBuffer getWorkRam()
+    {
+        return wram0.get(core.mmu.wram, 0, Memory.WRAM_PAGESIZE);
+    }
+
+    /**
+     * Retrieves the currently mapped work ram bank, at $D000-$DFFF. On the CGB, this follows the bank selected
+     * through $FF70.
+     *
+     * @return A read-only view, 4k in size.
+     */
+    public ByteBuffer getSwitchableWorkRam()
+    {
+        return wramN.get(core.mmu.wram, core.mmu.wramPageStart, Memory.WRAM_PAGESIZE);
+    }
+
+    /**
+     * Retrieves the currently mapped video ram bank, at $8000-$9FFF.
+     *
+     * @return A read-only view, 8k in size.
+     */
+    public ByteBuffer getVideoRam()
+    {
+        return vram.get(core.mmu.vram, core.mmu.vramPageStart, Memory.VRAM_PAGESIZE);
+    }
+
+    /**
+     * Retrieves high ram, at $FF80-$FFFE.
+     *
+     * @return A read-only view, 127 bytes in size.
+     */
+    public ByteBuffer getHighRam()
+    {
+        return hram.get(core.mmu.registers, 0x80, 0x7F);
+    }
+
+    /**
+     * Retrieves the sprite attribute table, at $FE00-$FE9F.
+     *
+     * @return A read-only view, 160 bytes in size.
+     */
+    public ByteBuffer getOam()
+    {
+        return oam.get(core.mmu.oam, 0, core.mmu.oam.length);
+    }
+
+    /**
+     * Retrieves the currently mapped bank of cart ram, at $A000-$BFFF.
+     * <p/>
+     * The contents are returned even if the game has disabled access to cart ram.
+     *
+     * @return A read-only view, 8k in size, or an empty buffer if the cartridge has no ram.
+     */
+    public ByteBuffer getCartRam()
+    {
+        if (!(core.mmu instanceof MBC)) return cartRam.get(NO_RAM, 0, 0);
+
+        MBC mbc = (MBC) core.mmu;
+        if (mbc.cartRam.length == 0) return cartRam.get(mbc.cartRam, 0, 0);
+        return cartRam.get(mbc.cartRam, mbc.ramPageStart, Math.min(MBC.RAM_PAGESIZE, mbc.cartRam.length));
+    }
+
+    /**
+     * Reads a byte of memory without going through the memory controller, and without side effects.
+     * <p/>
+     * IO registers are returned as last written, rather than as the game would read them.
+     *
+     * @param addr The address to read.
+     * @return The unsigned value at the address.
+     */
+    public int peek(int addr)
+    {
+        Memory mmu = core.mmu;
+        switch (addr & 0xF000)
+        {
+            case 0x0000:
+            case 0x1000:
+            case 0x2000:
+            case 0x3000:
+                return mmu.rom0[addr] & 0xFF;
+            case 0x4000:
+            case 0x5000:
+            case 0x6000:
+            case 0x7000:
+                return mmu.romN[addr - 0x4000] & 0xFF;
+            case 0x8000:
+            case 0x9000:
+                return mmu.vram[mmu.vramPageStart + addr - 0x8000] & 0xFF;
+            case 0xA000:
+            case 0xB000:
+                if (!(mmu instanceof MBC)) return 0xFF;
+                MBC mbc = (MBC) mmu;
+                int index = mbc.ramPageStart + addr - 0xA000;
+                return index < mbc.cartRam.length ? mbc.cartRam[index] & 0xFF : 0xFF;
+            case 0xC000:
+            case 0xE000:
+                return mmu.wram[addr & 0x0FFF] & 0xFF;
+            case 0xD000:
+                return mmu.wram[mmu.wramPageStart + (addr & 0x0FFF)] & 0xFF;
+            default:
+                if (addr < 0xFE00) return mmu.wram[mmu.wramPageStart + (addr & 0x0FFF)] & 0xFF;
+                if (addr < 0xFEA0) return mmu.oam[addr - 0xFE00] & 0xFF;
+                if (addr < 0xFF00) return 0xFF;
+                return mmu.registers[addr - 0xFF00] & 0xFF;
+        }
+    }
+
+    /**
+     * Registers a set of addresses to be gathered at every V-Blank.
+     *
+     * @param addresses The addresses to watch.
+     * @return The watch list, whose values are updated every frame.
+     */
+    public WatchList watch(int... addresses)
+    {
+        WatchList list = new WatchList(this, addresses);
+        synchronized (this)
+        {
+            WatchList[] lists = Arrays.copyOf(watchLists, watchLists.length + 1);
+            lists[lists.length - 1] = list;
+            watchLists = lists;
+        }
+        return list;
+    }
+
+    /**
+     * Stops gathering a watch list.
+     *
+     * @param list The watch list to remove.
+     */
+    public synchronized void unwatch(WatchList list)
+    {
+        WatchList[] lists = watchLists;
+        for (int i = 0; i < lists.length; i++)
+        {
+            if (lists[i] == list)
+            {
+                WatchList[] removed = new WatchList[lists.length - 1];
+                System.arraycopy(lists, 0, removed, 0, i);
+                System.arraycopy(lists, i + 1, removed, i, lists.length - i - 1);
+                watchLists = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vblank()
+    {
+        WatchList[] lists = watchLists;
+        for (WatchList list : lists)
+            list.gather();
+    }
+}
@@ -0,0 +1,268 @@
+package nitrous.mbc;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts memory accesses, bank switches and DMA transfers, to find out which games thrash bank switching and where a
+ * faster mapping strategy would pay off.
+ * <p/>
+ * Counting is enabled with -Dnox.memoryStats=true. {@link #ENABLED} is a static final, so when it is false the JIT
+ * folds every <code>if (MemoryStats.ENABLED)</code> away, and the memory access paths are exactly as fast as if the
+ * counters did not exist.
+ * <p/>
+ * Counters accumulate until {@link #drain(MemoryStats)} or {@link #reset()} is called, so they can be exported at
+ * whatever interval is useful: once a frame from a {@link nitrous.lcd.LCD.VBlankListener}, or once a second, as the
+ * LCD does when printing its frame timings.
+ *
+ * @author Tudor
+ */
+public class MemoryStats
+{
+    /**
+     * Whether memory statistics are collected at all.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("nox.memoryStats");
+
+    /**
+     * The memory controller being counted, or null for an instance only used to hold drained counters.
+     */
+    private final Memory mmu;
+
+    /**
+     * CPU reads and writes per 256-byte page of the address space, indexed by the high byte of the address.
+     */
+    public final long[] pageReads = new long[0x100], pageWrites = new long[0x100];
+
+    /**
+     * CPU reads per ROM bank; bank 0 counts $0000-$3FFF.
+     */
+    public final long[] romBankReads;
+
+    /**
+     * CPU reads and writes per cart ram bank.
+     */
+    public final long[] ramBankReads = new long[16], ramBankWrites = new long[16];
+
+    /**
+     * CPU reads and writes per work ram bank; bank 0 counts $C000-$CFFF.
+     */
+    public final long[] wramBankReads = new long[8], wramBankWrites = new long[8];
+
+    /**
+     * Writes to the memory bank controller's registers, per 4k window of $0000-$7FFF.
+     */
+    public final long[] registerWrites = new long[8];
+
+    /**
+     * The number of times a register write actually changed the mapped ROM, cart ram, work ram or video ram bank.
+     */
+    public long romSwitches, ramSwitches, wramSwitches, vramSwitches;
+
+    /**
+     * Bytes copied by OAM DMA, general purpose DMA, and H-Blank DMA.
+     */
+    public long oamDmaBytes, generalDmaBytes, hdmaBytes;
+
+    /**
+     * The number of frames counted.
+     */
+    public long frames;
+
+    /**
+     * Creates a new MemoryStats instance.
+     *
+     * @param mmu      The memory controller to count, or null to only hold counters drained from another instance.
+     * @param romBanks The number of ROM banks.
+     */
+    public MemoryStats(Memory mmu, int romBanks)
+    {
+        this.mmu = mmu;
+        this.romBankReads = new long[Math.max(2, romBanks)];
+    }
+
+    /**
+     * Counts a read by the CPU.
+     *
+     * @param addr The address read.
+     */
+    public void read(int addr)
+    {
+        addr &= 0xFFFF;
+        pageReads[addr >>> 8]++;
+        switch (addr >>> 12)
+        {
+            case 0x0:
+            case 0x1:
+            case 0x2:
+            case 0x3:
+                romBankReads[0]++;
+                break;
+            case 0x4:
+            case 0x5:
+            case 0x6:
+            case 0x7:
+                romBankReads[mmu.romBank % romBankReads.length]++;
+                break;
+            case 0xA:
+            case 0xB:
+                if (mmu instanceof MBC)
+                    ramBankReads[((MBC) mmu).ramPageStart / MBC.RAM_PAGESIZE]++;
+                break;
+            case 0xC:
+                wramBankReads[0]++;
+                break;
+            case 0xD:
+                wramBankReads[mmu.wramPageStart / Memory.WRAM_PAGESIZE]++;
+                break;
+        }
+    }
+
+    /**
+     * Counts a write by the CPU.
+     *
+     * @param addr The address written.
+     */
+    public void write(int addr)
+    {
+        addr &= 0xFFFF;
+        pageWrites[addr >>> 8]++;
+        switch (addr >>> 12)
+        {
+            case 0x0:
+            case 0x1:
+            case 0x2:
+            case 0x3:
+            case 0x4:
+            case 0x5:
+            case 0x6:
+            case 0x7:
+                registerWrites[addr >>> 12]++;
+                break;
+            case 0xA:
+            case 0xB:
+                if (mmu instanceof MBC)
+                    ramBankWrites[((MBC) mmu).ramPageStart / MBC.RAM_PAGESIZE]++;
+                break;
+            case 0xC:
+                wramBankWrites[0]++;
+                break;
+            case 0xD:
+                wramBankWrites[mmu.wramPageStart / Memory.WRAM_PAGESIZE]++;
+                break;
+        }
+    }
+
+    /**
+     * Adds the counters to another instance, and resets them.
+     *
+     * @param into The instance to add to, which must have been created for the same cartridge.
+     */
+    public void drain(MemoryStats into)
+    {
+        add(pageReads, into.pageReads);
+        add(pageWrites, into.pageWrites);
+        add(romBankReads, into.romBankReads);
+        add(ramBankReads, into.ramBankReads);
+        add(ramBankWrites, into.ramBankWrites);
+        add(wramBankReads, into.wramBankReads);
+        add(wramBankWrites, into.wramBankWrites);
+        add(registerWrites, into.registerWrites);
+        into.romSwitches += romSwitches;
+        into.ramSwitches += ramSwitches;
+        into.wramSwitches += wramSwitches;
+        into.vramSwitches += vramSwitches;
+        into.oamDmaBytes += oamDmaBytes;
+        into.generalDmaBytes += generalDmaBytes;
+        into.hdmaBytes += hdmaBytes;
+        into.frames += frames;
+        reset();
+    }
+
+    /**
+     * Adds one array of counters to another.
+     *
+     * @param from The counters to add.
+     * @param into The counters to add to.
+     */
+    private static void add(long[] from, long[] into)
+    {
+        for (int i = 0; i < from.length; i++)
+            into[i] += from[i];
+    }
+
+    /**
+     * Resets every counter to zero.
+     */
+    public void reset()
+    {
+        Arrays.fill(pageReads, 0);
+        Arrays.fill(pageWrites, 0);
+        Arrays.fill(romBankReads, 0);
+        Arrays.fill(ramBankReads, 0);
+        Arrays.fill(ramBankWrites, 0);
+        Arrays.fill(wramBankReads, 0);
+        Arrays.fill(wramBankWrites, 0);
+        Arrays.fill(registerWrites, 0);
+        romSwitches = ramSwitches = wramSwitches = vramSwitches = 0;
+        oamDmaBytes = generalDmaBytes = hdmaBytes = 0;
+        frames = 0;
+    }
+
+    /**
+     * Prints a summary of the counters: bank switches, DMA volumes, the busiest pages, and every bank accessed.
+     *
+     * @param out The stream to print to.
+     */
+    public void print(PrintStream out)
+    {
+        long registers = 0;
+        for (long n : registerWrites) registers += n;
+
+        out.printf("Memory over %d frames: %d ROM, %d cart ram, %d wram, %d vram bank switches from %d MBC writes%n",
+                frames, romSwitches, ramSwitches, wramSwitches, vramSwitches, registers);
+        out.printf("  MBC writes by window: %s%n", list(registerWrites, 0x1000));
+        out.printf("  DMA: %d OAM, %d general, %d H-Blank bytes%n", oamDmaBytes, generalDmaBytes, hdmaBytes);
+
+        // The eight busiest pages, by reads and writes together
+        StringBuilder pages = new StringBuilder();
+        boolean[] shown = new boolean[0x100];
+        for (int n = 0; n < 8; n++)
+        {
+            int busiest = -1;
+            for (int i = 0; i < 0x100; i++)
+            {
+                if (shown[i]) continue;
+                if (busiest < 0 || pageReads[i] + pageWrites[i] > pageReads[busiest] + pageWrites[busiest])
+                    busiest = i;
+            }
+            if (pageReads[busiest] + pageWrites[busiest] == 0) break;
+
+            shown[busiest] = true;
+            pages.append(String.format(" %02X00:%d/%d", busiest, pageReads[busiest], pageWrites[busiest]));
+        }
+        out.printf("  Busiest pages (reads/writes):%s%n", pages);
+        out.printf("  ROM bank reads: %s%n", list(romBankReads, 1));
+        out.printf("  Cart ram bank reads: %s, writes: %s%n", list(ramBankReads, 1), list(ramBankWrites, 1));
+        out.printf("  Wram bank reads: %s, writes: %s%n", list(wramBankReads, 1), list(wramBankWrites, 1));
+    }
+
+    /**
+     * Lists the non-zero entries of an array of counters.
+     *
+     * @param counters The counters.
+     * @param scale    The multiplier applied to indices when labelling them (e.g. 1000h for 4k windows).
+     * @return The list, as "index:count" pairs with hexadecimal indices.
+     */
+    private static String list(long[] counters, int scale)
+    {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < counters.length; i++)
+        {
+            if (counters[i] == 0) continue;
+            if (list.length() > 0) list.append(' ');
+            list.append(Integer.toHexString(i * scale).toUpperCase()).append(':').append(counters[i]);
+        }
+        return list.length() == 0 ? "none" : list.toString();
+    }
+}
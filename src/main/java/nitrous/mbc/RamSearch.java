@@ -0,0 +1,407 @@
+package nitrous.mbc;
+
+import nitrous.cpu.Emulator;
+
+import java.util.Arrays;
+
+/**
+ * Narrows down the addresses holding a value by comparing successive snapshots of ram, for finding cheats or
+ * variables for agents to watch.
+ * <p/>
+ * Every bank of work ram is searched (all eight on the CGB, not just the one currently mapped), followed by every
+ * bank of cart ram. Each byte of that space is a candidate, tracked as one bit of a bitset, and each filter takes a
+ * new snapshot and clears the bits of candidates that fail the comparison.
+ * <p/>
+ * Snapshots are decoded once into pooled int arrays according to the {@link Type} chosen at {@link #reset(Type)},
+ * so every filter, whatever the value type, is the same tight loop over two int arrays. No filter allocates.
+ * <p/>
+ * Snapshots are read straight from the session's arrays, so for a consistent result filter while the session is
+ * paused, or from a {@link nitrous.lcd.LCD.VBlankListener}.
+ *
+ * @author Tudor
+ */
+public class RamSearch
+{
+    /**
+     * How the bytes at a candidate address are interpreted.
+     */
+    public enum Type
+    {
+        /**
+         * An unsigned byte.
+         */
+        BYTE,
+
+        /**
+         * An unsigned little-endian 16-bit word.
+         */
+        WORD,
+
+        /**
+         * A byte holding two binary-coded decimal digits, 0-99. Bytes which are not valid BCD never match.
+         */
+        BCD,
+
+        /**
+         * A little-endian pair of BCD bytes holding four digits, 0-9999.
+         */
+        BCD_WORD
+    }
+
+    /**
+     * A comparison between a candidate's new value and either its previous value, or a constant.
+     */
+    public enum Comparison
+    {
+        /**
+         * The value decreased, or is less than the constant.
+         */
+        LESS(0b001),
+
+        /**
+         * The value is unchanged, or equal to the constant.
+         */
+        EQUAL(0b010),
+
+        /**
+         * The value increased, or is greater than the constant.
+         */
+        GREATER(0b100),
+
+        /**
+         * The value changed, or differs from the constant.
+         */
+        NOT_EQUAL(0b101),
+
+        /**
+         * The value did not increase, or is at most the constant.
+         */
+        LESS_OR_EQUAL(0b011),
+
+        /**
+         * The value did not decrease, or is at least the constant.
+         */
+        GREATER_OR_EQUAL(0b110);
+
+        /**
+         * The outcomes accepted: bit 0 if the new value is less, bit 1 if it is equal, bit 2 if it is greater.
+         */
+        final int accept;
+
+        /**
+         * Creates a new Comparison.
+         *
+         * @param accept The outcomes accepted.
+         */
+        Comparison(int accept)
+        {
+            this.accept = accept;
+        }
+    }
+
+    /**
+     * The value of each byte read as two BCD digits, or -1 if it is not valid BCD.
+     */
+    private static final int[] BCD_VALUES = new int[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+            BCD_VALUES[i] = (i >> 4) > 9 || (i & 0xF) > 9 ? -1 : (i >> 4) * 10 + (i & 0xF);
+    }
+
+    /**
+     * The session being searched.
+     */
+    private final Emulator core;
+
+    /**
+     * The type of the values being searched for.
+     */
+    private Type type = Type.BYTE;
+
+    /**
+     * The number of bytes of work ram, and the total number of bytes, searched.
+     */
+    private int wramLength, size;
+
+    /**
+     * The raw snapshot, reused by every capture.
+     */
+    private byte[] raw = new byte[0];
+
+    /**
+     * Decoded values of the latest and the previous snapshot, swapped after each filter; -1 where the bytes are
+     * not a valid value of the searched type.
+     */
+    private int[] current = new int[0], previous = new int[0];
+
+    /**
+     * One bit per byte of the search space, set while the address is still a candidate.
+     */
+    private long[] candidates = new long[0];
+
+    /**
+     * Creates a new search over a session's ram. Every address starts as a candidate for a byte value.
+     *
+     * @param core The session to search.
+     */
+    public RamSearch(Emulator core)
+    {
+        this.core = core;
+        reset(Type.BYTE);
+    }
+
+    /**
+     * Starts a new search, making every address a candidate again, and takes the first snapshot.
+     *
+     * @param type The type of value to search for.
+     */
+    public void reset(Type type)
+    {
+        this.type = type;
+
+        wramLength = core.mmu.wram.length;
+        size = wramLength + (core.mmu instanceof MBC ? ((MBC) core.mmu).cartRam.length : 0);
+
+        // Arrays are only replaced if the space grew, e.g. when a compact session first switches work ram banks
+        if (raw.length != size)
+        {
+            raw = new byte[size];
+            current = new int[size];
+            previous = new int[size];
+            candidates = new long[(size + 63) >>> 6];
+        }
+
+        Arrays.fill(candidates, -1L);
+        if ((size & 63) != 0) candidates[candidates.length - 1] = -1L >>> (64 - (size & 63));
+
+        // Words may not straddle two banks which are never mapped next to each other: the switchable work ram banks
+        // past the first, each cart ram bank, and the end of either space
+        if (type == Type.WORD || type == Type.BCD_WORD)
+        {
+            for (int i = Memory.WRAM_PAGESIZE * 2 - 1; i < wramLength; i += Memory.WRAM_PAGESIZE) clear(i);
+            clear(wramLength - 1);
+            for (int i = wramLength + MBC.RAM_PAGESIZE - 1; i < size; i += MBC.RAM_PAGESIZE) clear(i);
+            clear(size - 1);
+        }
+
+        capture();
+        int[] values = current;
+        for (int i = 0; i < size; i++)
+        {
+            if (values[i] < 0) clear(i);
+        }
+    }
+
+    /**
+     * Keeps the candidates whose value compares against their value at the last filter (or reset) as given.
+     * <p/>
+     * For instance, LESS keeps the values which decreased, and NOT_EQUAL the ones which changed.
+     *
+     * @param comparison How the new value must compare to the previous one.
+     * @return The number of candidates left.
+     */
+    public int filter(Comparison comparison)
+    {
+        capture();
+
+        int[] current = this.current, previous = this.previous;
+        long[] candidates = this.candidates;
+        int accept = comparison.accept, size = this.size;
+
+        for (int w = 0; w < candidates.length; w++)
+        {
+            long bits = candidates[w];
+            if (bits == 0) continue;
+
+            int base = w << 6;
+            int end = Math.min(64, size - base);
+            long mask = 0;
+            for (int j = 0; j < end; j++)
+            {
+                int value = current[base + j];
+                int delta = value - previous[base + j];
+
+                // -1, 0 or 1, for less, equal or greater; invalid values are negative and never match
+                int sign = (delta >> 31) | (-delta >>> 31);
+                mask |= (long) ((accept >> (sign + 1)) & ~(value >>> 31) & 1) << j;
+            }
+            candidates[w] = bits & mask;
+        }
+        return count();
+    }
+
+    /**
+     * Keeps the candidates whose value compares against a constant as given.
+     * <p/>
+     * For instance, EQUAL with 42 keeps the addresses which now hold 42.
+     *
+     * @param comparison How the new value must compare to the constant.
+     * @param constant   The constant to compare to.
+     * @return The number of candidates left.
+     */
+    public int filter(Comparison comparison, int constant)
+    {
+        capture();
+
+        int[] current = this.current;
+        long[] candidates = this.candidates;
+        int accept = comparison.accept, size = this.size;
+
+        for (int w = 0; w < candidates.length; w++)
+        {
+            long bits = candidates[w];
+            if (bits == 0) continue;
+
+            int base = w << 6;
+            int end = Math.min(64, size - base);
+            long mask = 0;
+            for (int j = 0; j < end; j++)
+            {
+                int value = current[base + j];
+                int delta = value - constant;
+                int sign = (delta >> 31) | (-delta >>> 31);
+                mask |= (long) ((accept >> (sign + 1)) & ~(value >>> 31) & 1) << j;
+            }
+            candidates[w] = bits & mask;
+        }
+        return count();
+    }
+
+    /**
+     * Counts the candidates left.
+     *
+     * @return The number of candidates.
+     */
+    public int count()
+    {
+        int count = 0;
+        for (long bits : candidates)
+            count += Long.bitCount(bits);
+        return count;
+    }
+
+    /**
+     * Finds the next candidate.
+     * <p/>
+     * Candidates are identified by their index into the search space; {@link #getAddress(int)} and
+     * {@link #getBank(int)} tell where they are mapped.
+     *
+     * @param from The index to start looking at, inclusive.
+     * @return The index of the next candidate, or -1 if there are no more.
+     */
+    public int next(int from)
+    {
+        int w = from >>> 6;
+        if (w >= candidates.length) return -1;
+
+        long bits = candidates[w] & (-1L << from);
+        while (bits == 0)
+        {
+            if (++w == candidates.length) return -1;
+            bits = candidates[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Removes a candidate by hand.
+     *
+     * @param index The index of the candidate.
+     */
+    public void clear(int index)
+    {
+        if (index >= 0 && index < size)
+            candidates[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Retrieves the value of a candidate as of the last filter.
+     *
+     * @param index The index of the candidate.
+     * @return The decoded value, or -1 if the bytes are not a valid value of the searched type.
+     */
+    public int getValue(int index)
+    {
+        return current[index];
+    }
+
+    /**
+     * Retrieves the address a candidate is mapped at, when its bank is mapped.
+     *
+     * @param index The index of the candidate.
+     * @return The address, in $A000-$BFFF or $C000-$DFFF.
+     */
+    public int getAddress(int index)
+    {
+        if (index < wramLength)
+            return index < Memory.WRAM_PAGESIZE ? 0xC000 + index : 0xD000 + (index & (Memory.WRAM_PAGESIZE - 1));
+        return 0xA000 + ((index - wramLength) & (MBC.RAM_PAGESIZE - 1));
+    }
+
+    /**
+     * Retrieves the bank a candidate is in.
+     *
+     * @param index The index of the candidate.
+     * @return The work ram bank for $C000-$DFFF, or the cart ram bank for $A000-$BFFF.
+     */
+    public int getBank(int index)
+    {
+        if (index < wramLength) return index / Memory.WRAM_PAGESIZE;
+        return (index - wramLength) / MBC.RAM_PAGESIZE;
+    }
+
+    /**
+     * Retrieves the type of value being searched for.
+     *
+     * @return The type given at the last reset.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Takes a snapshot into the raw buffer, and decodes it into {@link #current}, keeping the old values in
+     * {@link #previous}.
+     */
+    private void capture()
+    {
+        Memory mmu = core.mmu;
+        byte[] raw = this.raw;
+        System.arraycopy(mmu.wram, 0, raw, 0, wramLength);
+        if (size > wramLength)
+            System.arraycopy(((MBC) mmu).cartRam, 0, raw, wramLength, size - wramLength);
+
+        int[] values = previous;
+        previous = current;
+        current = values;
+
+        int size = this.size;
+        switch (type)
+        {
+            case BYTE:
+                for (int i = 0; i < size; i++)
+                    values[i] = raw[i] & 0xFF;
+                break;
+            case WORD:
+                for (int i = 0; i < size - 1; i++)
+                    values[i] = (raw[i] & 0xFF) | ((raw[i + 1] & 0xFF) << 8);
+                values[size - 1] = -1;
+                break;
+            case BCD:
+                for (int i = 0; i < size; i++)
+                    values[i] = BCD_VALUES[raw[i] & 0xFF];
+                break;
+            case BCD_WORD:
+                for (int i = 0; i < size - 1; i++)
+                {
+                    int low = BCD_VALUES[raw[i] & 0xFF], high = BCD_VALUES[raw[i + 1] & 0xFF];
+                    values[i] = (low | high) < 0 ? -1 : low + high * 100;
+                }
+                values[size - 1] = -1;
+                break;
+        }
+    }
+}
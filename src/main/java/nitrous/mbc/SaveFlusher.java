@@ -0,0 +1,225 @@
+package nitrous.mbc;
+
+import nitrous.lcd.LCD;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Persists battery-backed cart ram to its save file in the background.
+ * <p/>
+ * The save file is memory-mapped over the cart ram region. The emulation thread only ever flags the 256-byte pages
+ * it writes to (see {@link MBC#writeRam}); this class's thread periodically copies just the dirty pages into the
+ * mapping and forces them to disk. Progress therefore survives a crash, and the emulation thread never waits on IO.
+ * Any trailer the controller saves after cart ram (see {@link MBC#getTrailerSize}) is kept up to date as well; it is
+ * captured on the emulation thread (see {@link MBC#prepareTrailer}), and only copied here.
+ * <p/>
+ * Cart ram itself stays a plain array, so reads and writes from the CPU are no slower than before.
+ *
+ * @author Tudor
+ */
+public class SaveFlusher extends Thread implements LCD.VBlankListener
+{
+    /**
+     * The default interval between flushes, in milliseconds. Overridden by the nox.saveInterval system property.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * The memory bank controller whose ram is persisted.
+     */
+    private final MBC mbc;
+
+    /**
+     * The save file, mapped over the cart ram region.
+     */
+    private final MappedByteBuffer mapping;
+
+    /**
+     * The interval between flushes, in milliseconds.
+     */
+    private final long interval;
+
+    /**
+     * Whether the flusher has been asked to stop.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The number of pages (including the trailer) written to disk so far.
+     */
+    private volatile long pagesFlushed;
+
+    /**
+     * Maps a save file and starts tracking writes to cart ram.
+     * <p/>
+     * Every page is initially considered dirty, so the first flush writes out the entire cart ram.
+     *
+     * @param mbc      The memory bank controller to persist.
+     * @param file     The save file; created if it doesn't exist. Any data past the cart ram region is preserved.
+     * @param interval The interval between flushes, in milliseconds.
+     * @throws IOException if the file can't be mapped.
+     */
+    public SaveFlusher(MBC mbc, File file, long interval) throws IOException
+    {
+        super("Save-Flusher-Thread");
+        setDaemon(true);
+
+        if (!mbc.hasBattery()) throw new IllegalStateException("no battery!");
+
+        this.mbc = mbc;
+        this.interval = interval;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            // The mapping stays valid after the file is closed
+            long size = mbc.cartRam.length + mbc.getTrailerSize();
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        AtomicIntegerArray dirty = new AtomicIntegerArray(mbc.cartRam.length / MBC.DIRTY_PAGESIZE);
+        for (int page = 0; page < dirty.length(); page++)
+            dirty.set(page, 1);
+        mbc.dirtyPages = dirty;
+        mbc.trailerDirty.set(true);
+
+        // The trailer can only be captured consistently on the emulation thread
+        if (mbc.getTrailerSize() > 0) mbc.core.lcd.addVBlankListener(this);
+    }
+
+    /**
+     * Creates a flusher using the interval configured by the nox.saveInterval system property.
+     *
+     * @param mbc  The memory bank controller to persist.
+     * @param file The save file.
+     * @return The started flusher, or null if background saving was disabled by setting the interval to 0.
+     * @throws IOException if the file can't be mapped.
+     */
+    public static SaveFlusher start(MBC mbc, File file) throws IOException
+    {
+        long interval = Long.getLong("nox.saveInterval", DEFAULT_INTERVAL);
+        if (interval <= 0) return null;
+
+        SaveFlusher flusher = new SaveFlusher(mbc, file, interval);
+        flusher.start();
+        return flusher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            } catch (InterruptedException ignored)
+            {
+                // #error we were woken up by close(), which does the final flush itself
+            }
+
+            if (!closed) flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vblank()
+    {
+        if (!mbc.trailerRequested) return;
+        mbc.prepareTrailer();
+        mbc.trailerRequested = false;
+    }
+
+    /**
+     * Copies every dirty page, and the trailer if it has changed, into the save file.
+     * <p/>
+     * Runs concurrently with the emulation thread. A page's flag is atomically cleared before it is copied, and the
+     * emulation thread only sets it after writing, so a write which races with the copy simply marks it dirty again
+     * for the next flush, and no write is ever lost.
+     */
+    public synchronized void flush()
+    {
+        AtomicIntegerArray dirty = mbc.dirtyPages;
+        byte[] ram = mbc.cartRam;
+        ByteBuffer out = mapping.duplicate();
+
+        int flushed = 0;
+        for (int page = 0; page < dirty.length(); page++)
+        {
+            // getAndSet is a full fence, so the copy below can't be reordered before the clear
+            if (dirty.get(page) == 0 || dirty.getAndSet(page, 0) == 0) continue;
+
+            int offset = page * MBC.DIRTY_PAGESIZE;
+            out.position(offset);
+            out.put(ram, offset, MBC.DIRTY_PAGESIZE);
+            flushed++;
+        }
+
+        // The trailer is stamped with the time it was written, so it only needs rewriting when the game changes it
+        if (mbc.getTrailerSize() > 0 && mbc.trailerDirty.getAndSet(false))
+        {
+            out.position(ram.length);
+            mbc.saveTrailer(out.slice().order(ByteOrder.LITTLE_ENDIAN));
+            flushed++;
+        }
+
+        if (flushed > 0)
+        {
+            mapping.force();
+            pagesFlushed += flushed;
+        }
+    }
+
+    /**
+     * Performs a final flush and stops the flusher thread.
+     */
+    public void close()
+    {
+        closed = true;
+        interrupt();
+
+        if (mbc.getTrailerSize() > 0)
+        {
+            // Have the emulation thread capture the trailer as of now; if it is paused, the last capture is still
+            // consistent, and is stamped with the time it was taken
+            mbc.trailerRequested = true;
+            for (int i = 0; i < 10 && mbc.trailerRequested; i++)
+            {
+                try
+                {
+                    Thread.sleep(10);
+                } catch (InterruptedException e)
+                {
+                    // #error give up waiting, and save the last capture
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            mbc.core.lcd.removeVBlankListener(this);
+            mbc.trailerDirty.set(true);
+        }
+        flush();
+    }
+
+    /**
+     * Retrieves the number of pages written to disk so far.
+     *
+     * @return The number of 256-byte pages flushed.
+     */
+    public long getPagesFlushed()
+    {
+        return pagesFlushed;
+    }
+}
@@ -0,0 +1,94 @@
+package nitrous.mbc;
+
+/**
+ * A fixed set of addresses whose values are gathered once per frame by a {@link MemoryObserver}.
+ * <p/>
+ * Values are written into a preallocated array, so watching memory never allocates, however many frames are
+ * observed. They are gathered on the emulation thread at the start of V-Blank; other threads can use {@link
+ * #getFrame()} to tell whether a new frame's values have been gathered since they last looked.
+ *
+ * @author Tudor
+ */
+public class WatchList
+{
+    /**
+     * The observer gathering this list.
+     */
+    private final MemoryObserver observer;
+
+    /**
+     * The watched addresses.
+     */
+    private final int[] addresses;
+
+    /**
+     * The unsigned value of each watched address, as of the last V-Blank.
+     */
+    public final int[] values;
+
+    /**
+     * The number of frames gathered so far.
+     */
+    private volatile long frame;
+
+    /**
+     * Creates a new WatchList.
+     *
+     * @param observer  The observer gathering this list.
+     * @param addresses The addresses to watch.
+     */
+    WatchList(MemoryObserver observer, int[] addresses)
+    {
+        this.observer = observer;
+        this.addresses = addresses.clone();
+        this.values = new int[addresses.length];
+
+        for (int i = 0; i < this.addresses.length; i++)
+            this.addresses[i] &= 0xFFFF;
+        gather();
+    }
+
+    /**
+     * Reads every watched address into {@link #values}.
+     */
+    void gather()
+    {
+        int[] addresses = this.addresses;
+        int[] values = this.values;
+        for (int i = 0; i < addresses.length; i++)
+            values[i] = observer.peek(addresses[i]);
+        frame++;
+    }
+
+    /**
+     * Retrieves a watched address.
+     *
+     * @param index The index of the address in this list.
+     * @return The address.
+     */
+    public int getAddress(int index)
+    {
+        return addresses[index];
+    }
+
+    /**
+     * Retrieves a watched value, combined with the one following it as a little-endian 16-bit word.
+     *
+     * @param index The index of the low byte in this list; the high byte must be watched at index + 1.
+     * @return The 16-bit value.
+     */
+    public int getWord(int index)
+    {
+        return values[index] | (values[index + 1] << 8);
+    }
+
+    /**
+     * Retrieves the number of frames gathered so far.
+     *
+     * @return The frame counter, incremented after every gather.
+     */
+    public long getFrame()
+    {
+        return frame;
+    }
+}
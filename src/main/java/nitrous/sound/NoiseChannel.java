@@ -2,6 +2,8 @@ package nitrous.sound;
 
 import nitrous.cpu.Emulator;
 
+import java.nio.ByteBuffer;
+
 import static nitrous.cpu.R.*;
 
 /**
@@ -191,6 +193,48 @@ public class NoiseChannel extends SoundChannel
         period = 4194304 / freq;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.saveState(state);
+
+        state.putInt(period).putInt(length).put((byte) (useLength ? 1 : 0)).putLong(clockStart - core.cycle);
+        state.putInt(envelopeInitial).put((byte) (envelopeIncrease ? 1 : 0)).putInt(envelopeSweep);
+        state.put((byte) (regular ? 1 : 0)).putInt(currentVolume).put((byte) (high ? 1 : 0));
+        state.putLong(lastToggle - core.cycle).put((byte) (isPlaying ? 1 : 0));
+
+        state.position(base + STATE_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.loadState(state);
+
+        period = state.getInt();
+        length = state.getInt();
+        useLength = state.get() != 0;
+        clockStart = core.cycle + state.getLong();
+        envelopeInitial = state.getInt();
+        envelopeIncrease = state.get() != 0;
+        envelopeSweep = state.getInt();
+        regular = state.get() != 0;
+        currentVolume = state.getInt();
+        high = state.get() != 0;
+        lastToggle = core.cycle + state.getLong();
+        isPlaying = state.get() != 0;
+
+        state.position(base + STATE_SIZE);
+    }
+
     /**
      * Handle restart request: update {@link #clockStart}.
      */
@@ -200,6 +244,16 @@ public class NoiseChannel extends SoundChannel
         clockStart = core.cycle;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateStatus()
+    {
+        handleRequests();
+        isPlaying = !useLength || core.cycle - clockStart <= length;
+    }
+
     /**
      * {@inheritDoc}
      */
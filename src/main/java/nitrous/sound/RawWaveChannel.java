@@ -2,6 +2,8 @@ package nitrous.sound;
 
 import nitrous.cpu.Emulator;
 
+import java.nio.ByteBuffer;
+
 import static nitrous.cpu.R.*;
 
 /**
@@ -172,6 +174,53 @@ public class RawWaveChannel extends SoundChannel
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.saveState(state);
+
+        state.put((byte) (enabled ? 1 : 0)).putInt(length).put((byte) (useLength ? 1 : 0)).putInt(period);
+        state.putInt(shift).putLong(clockStart - core.cycle);
+
+        // Samples are 4-bit, so each fits in a byte
+        for (int sample : samples) state.put((byte) sample);
+        for (int sample : updated) state.put((byte) sample);
+
+        state.put((byte) (requestCopy ? 1 : 0)).putLong(lastUpdate - core.cycle).put((byte) (isPlaying ? 1 : 0));
+
+        state.position(base + STATE_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.loadState(state);
+
+        enabled = state.get() != 0;
+        length = state.getInt();
+        useLength = state.get() != 0;
+        period = state.getInt();
+        shift = state.getInt();
+        clockStart = core.cycle + state.getLong();
+
+        for (int i = 0; i < samples.length; i++) samples[i] = state.get();
+        for (int i = 0; i < updated.length; i++) updated[i] = state.get();
+
+        requestCopy = state.get() != 0;
+        lastUpdate = core.cycle + state.getLong();
+        isPlaying = state.get() != 0;
+
+        state.position(base + STATE_SIZE);
+    }
+
     /**
      * Handle restart request: update {@link #clockStart}.
      */
@@ -212,6 +261,20 @@ public class RawWaveChannel extends SoundChannel
         requestCopy = true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateStatus()
+    {
+        handleRequests();
+        if (requestCopy)
+            handleCopyRequest();
+        lastUpdate = core.cycle;
+
+        isPlaying = enabled && (!useLength || core.cycle - clockStart <= length);
+    }
+
     /**
      * {@inheritDoc}
      */
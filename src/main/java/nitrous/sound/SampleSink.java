@@ -0,0 +1,21 @@
+package nitrous.sound;
+
+/**
+ * Interface for a consumer of the audio the {@link SoundManager} generates, a block at a time.
+ * <p/>
+ * Blocks are passed on the emulation thread as each one fills, in {@link SoundChannel#AUDIO_FORMAT}: 16-bit signed
+ * big-endian stereo, left channel first. The array is reused for the next block; a sink must copy what it needs
+ * before returning.
+ *
+ * @author Tudor
+ */
+public interface SampleSink
+{
+    /**
+     * Method called with each block of samples generated.
+     *
+     * @param block  The samples.
+     * @param length The number of bytes in the block.
+     */
+    void samples(byte[] block, int length);
+}
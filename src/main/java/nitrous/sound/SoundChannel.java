@@ -3,6 +3,7 @@ package nitrous.sound;
 import nitrous.cpu.Emulator;
 
 import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
 
 /**
  * Abstract class that aids in the implementation of a sound channel.
@@ -11,6 +12,11 @@ import javax.sound.sampled.AudioFormat;
  */
 public abstract class SoundChannel
 {
+    /**
+     * The size of each channel's slot in the sound region of a {@link nitrous.MachineState}, in bytes.
+     */
+    public static final int STATE_SIZE = 0x80;
+
     /**
      * The field to store the {@link Emulator} instance.
      */
@@ -79,6 +85,29 @@ public abstract class SoundChannel
         return didSomething;
     }
 
+    /**
+     * Writes the channel state into a {@link nitrous.MachineState} arena.
+     * <p/>
+     * Clock cycles are stored relative to the CPU's cycle counter, so they line up with it again when restored.
+     *
+     * @param state The arena, positioned at the start of this channel's slot; {@link #STATE_SIZE} bytes are used.
+     */
+    public void saveState(ByteBuffer state)
+    {
+        state.put((byte) (updateRequest ? 1 : 0)).put((byte) (restartRequest ? 1 : 0));
+    }
+
+    /**
+     * Restores the channel state from a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of this channel's slot; the CPU state is already restored.
+     */
+    public void loadState(ByteBuffer state)
+    {
+        updateRequest = state.get() != 0;
+        restartRequest = state.get() != 0;
+    }
+
     /**
      * Method called to handle a restart request.
      */
@@ -89,6 +118,12 @@ public abstract class SoundChannel
      */
     protected abstract void handleUpdateRequest();
 
+    /**
+     * Brings the channel's playing status up to date without rendering a sample, for sessions which don't render any.
+     * Pending update and restart requests are handled straight away.
+     */
+    public abstract void updateStatus();
+
     /**
      * Renders one sample of sound.
      *
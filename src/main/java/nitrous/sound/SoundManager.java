@@ -7,6 +7,7 @@ import nitrous.Settings;
 
 import javax.sound.sampled.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import static nitrous.cpu.R.*;
 
@@ -24,6 +25,17 @@ import static nitrous.cpu.R.*;
  */
 public class SoundManager
 {
+    /**
+     * The size of a block of samples, in bytes; samples are output a block at a time.
+     */
+    public static final int BLOCK_SIZE = 480;
+
+    /**
+     * The size of the sound region of a {@link nitrous.MachineState}, in bytes: the sample clock, then a slot for
+     * each of the four channels.
+     */
+    public static final int STATE_SIZE = 0x10 + 4 * SoundChannel.STATE_SIZE;
+
     /**
      * Link to {@link Emulator} instance.
      */
@@ -59,6 +71,11 @@ public class SoundManager
      */
     public final NoiseChannel channel4;
 
+    /**
+     * The sink every block of samples is passed to, or null for none.
+     */
+    private volatile SampleSink sampleSink;
+
     /**
      * Amount of CPU cycles per sample of audio.
      */
@@ -103,6 +120,18 @@ public class SoundManager
      * @param core the emulator instance
      */
     public SoundManager(Emulator core)
+    {
+        this(core, true);
+    }
+
+    /**
+     * Constructs a {@link SoundManager} for {@link Emulator} instance.
+     *
+     * @param core   the emulator instance
+     * @param output whether to open an audio line; if not, samples are only generated when writing to a sound file
+     *               or a {@link SampleSink}
+     */
+    public SoundManager(Emulator core, boolean output)
     {
         this.core = core;
 
@@ -113,7 +142,10 @@ public class SoundManager
         channel4 = new NoiseChannel(core);
 
         // Create buffer.
-        buffer = new byte[480];
+        buffer = new byte[BLOCK_SIZE];
+
+        // Headless sessions never touch the audio system
+        if (!output) return;
 
         // Create and start SourceDataLine.
         try
@@ -121,7 +153,7 @@ public class SoundManager
             sdl = AudioSystem.getSourceDataLine(SoundChannel.AUDIO_FORMAT);
             sdl.open(SoundChannel.AUDIO_FORMAT);
             sdl.start();
-        } catch (LineUnavailableException e)
+        } catch (LineUnavailableException | IllegalArgumentException e)
         {
             // #error best we can do is set null if you can't output sound
             e.printStackTrace();
@@ -129,6 +161,78 @@ public class SoundManager
         }
     }
 
+    /**
+     * Checks whether samples are being generated, i.e. whether there is an audio line, a sound file or a {@link
+     * SampleSink} to send them to.
+     *
+     * @return Whether samples are generated as the CPU runs.
+     */
+    public boolean isRendering()
+    {
+        return sdl != null || out != null || sampleSink != null;
+    }
+
+    /**
+     * Brings the playing status of every channel up to date, as read through NR52.
+     * <p/>
+     * Channels only update their status as they render samples, so sessions which don't generate any (e.g. compact
+     * ones) work it out from the channels' length and enable state when it is read instead.
+     */
+    public void updateStatus()
+    {
+        if (isRendering()) return;
+
+        channel1.updateStatus();
+        channel2.updateStatus();
+        channel3.updateStatus();
+        channel4.updateStatus();
+    }
+
+    /**
+     * Writes the sound state into a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the sound region; {@link #STATE_SIZE} bytes are used.
+     */
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+        state.putDouble(clockTicks);
+        state.position(base + 0x10);
+
+        channel1.saveState(state);
+        channel2.saveState(state);
+        channel3.saveState(state);
+        channel4.saveState(state);
+    }
+
+    /**
+     * Restores the sound state from a {@link nitrous.MachineState} arena.
+     *
+     * @param state The arena, positioned at the start of the sound region; the CPU state must already be restored,
+     *              since the channels' clocks are stored relative to it.
+     */
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+        clockTicks = state.getDouble();
+        state.position(base + 0x10);
+
+        channel1.loadState(state);
+        channel2.loadState(state);
+        channel3.loadState(state);
+        channel4.loadState(state);
+    }
+
+    /**
+     * Estimates the heap retained by this sound manager's buffers.
+     *
+     * @return The size of the sample buffer, in bytes.
+     */
+    public long getFootprint()
+    {
+        return buffer.length;
+    }
+
     /**
      * Gets the amount of CPU cycles per sample of audio.
      *
@@ -173,6 +277,18 @@ public class SoundManager
         });
     }
 
+    /**
+     * Sets the sink every block of samples is passed to as it is generated.
+     * <p/>
+     * Samples are generated for a session without an audio line as long as a sink is set.
+     *
+     * @param sink The sink, or null for none.
+     */
+    public void setSampleSink(SampleSink sink)
+    {
+        sampleSink = sink;
+    }
+
     static
     {
         // #save optionally write sound output
@@ -256,6 +372,11 @@ public class SoundManager
      */
     public void tick(long delta)
     {
+        // Without anywhere to send samples, there's no point in generating them; the channels' status is worked out
+        // when NR52 is read instead (see updateStatus)
+        SampleSink sink = sampleSink;
+        if (sdl == null && out == null && sink == null) return;
+
         // Increase amount of time since last sample.
         clockTicks += delta;
 
@@ -333,9 +454,15 @@ public class SoundManager
                         out = null;
                     }
 
+                // Pass to the sink, if there is one.
+                if (sink != null) sink.samples(buffer, buffer.length);
+
                 // Write to sound output.
-                int written = 0;
-                while ((written += sdl.write(buffer, written, buffer.length)) != buffer.length) ;
+                if (sdl != null)
+                {
+                    int written = 0;
+                    while ((written += sdl.write(buffer, written, buffer.length)) != buffer.length) ;
+                }
 
                 // Reset used samples.
                 usedSamples = 0;
@@ -2,6 +2,8 @@ package nitrous.sound;
 
 import nitrous.cpu.Emulator;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class implements channel 1 and 2 of the Gameboy's programmable sound chip.
  * <p/>
@@ -261,6 +263,52 @@ public class SquareWaveChannel extends SoundChannel
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.saveState(state);
+
+        state.putInt(gbFreq).putInt(period).putInt(length).put((byte) (useLength ? 1 : 0));
+        state.putLong(clockStart - core.cycle);
+        state.putInt(envelopeInitial).put((byte) (envelopeIncrease ? 1 : 0)).putInt(envelopeSweep).putInt(duty);
+        state.putLong(lastSweep - core.cycle).putInt(sweepCycles).put((byte) (sweepIncrease ? 1 : 0)).putInt(sweepShift);
+        state.putInt(currentVolume).put((byte) (isPlaying ? 1 : 0));
+
+        state.position(base + STATE_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadState(ByteBuffer state)
+    {
+        int base = state.position();
+        super.loadState(state);
+
+        gbFreq = state.getInt();
+        period = state.getInt();
+        length = state.getInt();
+        useLength = state.get() != 0;
+        clockStart = core.cycle + state.getLong();
+        envelopeInitial = state.getInt();
+        envelopeIncrease = state.get() != 0;
+        envelopeSweep = state.getInt();
+        duty = state.getInt();
+        lastSweep = core.cycle + state.getLong();
+        sweepCycles = state.getInt();
+        sweepIncrease = state.get() != 0;
+        sweepShift = state.getInt();
+        currentVolume = state.getInt();
+        isPlaying = state.get() != 0;
+
+        state.position(base + STATE_SIZE);
+    }
+
     /**
      * Handle restart request: update {@link #clockStart}.
      */
@@ -270,6 +318,16 @@ public class SquareWaveChannel extends SoundChannel
         clockStart = core.cycle;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateStatus()
+    {
+        handleRequests();
+        isPlaying = !useLength || core.cycle - clockStart <= length;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -2,10 +2,18 @@ package nitrous.ui;
 
 import nitrous.Cartridge;
 import nitrous.EmulateSpeed;
+import nitrous.ROMLoader;
 import nitrous.Settings;
+import nitrous.SharedMemoryExporter;
+import nitrous.cheat.CheatEngine;
 import nitrous.cpu.Emulator;
 import nitrous.cpu.R;
+import nitrous.lcd.ColorCorrection;
+import nitrous.lcd.FrameSkip;
 import nitrous.lcd.Interpolator;
+import nitrous.mbc.IOLog;
+import nitrous.mbc.MBC;
+import nitrous.mbc.SaveFlusher;
 import nitrous.renderer.IRenderManager;
 
 import javax.swing.*;
@@ -21,7 +29,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 
@@ -91,9 +98,9 @@ public class Application
             return;
         }
 
-        // Load the ROM.
+        // Load the ROM, sharing the image with any other session already running it.
         // #read load the ROM
-        Cartridge cartridge = new Cartridge(Files.readAllBytes(rom.toPath()));
+        Cartridge cartridge = ROMLoader.load(rom.toPath());
 
         // Create the Emulator.
         Emulator core = new Emulator(cartridge);
@@ -104,16 +111,85 @@ public class Application
         // If there is a battery on the cartridge, then we attempt to load the save file.
         if (core.mmu.hasBattery())
         {
-            try
+            try (FileInputStream in = new FileInputStream(core.savefile))
             {
                 // #read the save file
-                core.mmu.load(new FileInputStream(core.savefile));
+                core.mmu.load(in);
             } catch (Exception ignored)
             {
                 // #error There is nothing you can do if the file fails to load.
             }
+
+            // Keep the save file up to date as the game runs, so a crash doesn't lose progress.
+            if (core.mmu instanceof MBC)
+            {
+                try
+                {
+                    core.saveFlusher = SaveFlusher.start((MBC) core.mmu, core.savefile);
+                } catch (IOException e)
+                {
+                    // #error fall back to saving on exit
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // #cheat apply any Game Genie or GameShark codes given on the command line, comma-separated
+        if (System.getProperty("nox.cheats") != null)
+        {
+            CheatEngine cheats = new CheatEngine(core);
+            for (String code : System.getProperty("nox.cheats").split(","))
+            {
+                try
+                {
+                    cheats.add(code.trim());
+                } catch (IllegalArgumentException e)
+                {
+                    // #error skip the bad code, but keep the others
+                    System.err.println(e.getMessage());
+                }
+            }
+
+            // The session hasn't started yet, so patch ROM before the first instruction rather than the first V-Blank
+            cheats.applyPatches();
         }
 
+        // Log every write to the IO registers to a file, for replaying audio or video and for debugging
+        if (System.getProperty("nox.ioLog") != null)
+        {
+            IOLog log = new IOLog(IOLog.DEFAULT_CAPACITY);
+            try
+            {
+                log.spill(new File(System.getProperty("nox.ioLog")));
+                core.mmu.ioLog = log;
+                Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+            } catch (IOException e)
+            {
+                // #error run without the log
+                e.printStackTrace();
+            }
+        }
+
+        // Export frames and audio into a memory-mapped file, for other processes to read
+        try
+        {
+            SharedMemoryExporter exporter = SharedMemoryExporter.start(core);
+            if (exporter != null) Runtime.getRuntime().addShutdownHook(new Thread(exporter::close));
+        } catch (IOException | IllegalArgumentException e)
+        {
+            // #error run without exporting
+            e.printStackTrace();
+        }
+
+        // Apply the stored colour correction; it only affects Gameboy Color games
+        core.lcd.setColorCorrection(Settings.getColorCorrection());
+
+        // Apply the stored frame skip policy
+        core.lcd.setFrameSkip(Settings.getFrameSkip());
+
+        // Draw scanlines on a thread of their own, which only pays off with a core to spare
+        core.lcd.setParallelRendering(Boolean.getBoolean("nox.parallelRender"));
+
         // Initialize the UI with stored fullscreen and magnification settings.
         initUI(core, Settings.isFullScreen(), Settings.getMagnification());
     }
@@ -180,8 +256,7 @@ public class Application
             public boolean accept(File f)
             {
                 if (f.isDirectory()) return true;
-                String name = f.getName();
-                return name.endsWith(".gb") || name.endsWith(".gbc") || name.endsWith(".rom");
+                return ROMLoader.isSupported(f.getName());
             }
 
             /**
@@ -190,7 +265,7 @@ public class Application
             @Override
             public String getDescription()
             {
-                return "Gameboy ROM (*.gb, *.gbc, *.rom)";
+                return "Gameboy ROM (*.gb, *.gbc, *.rom, *.zip, *.gz)";
             }
         };
 
@@ -538,6 +613,79 @@ public class Application
                     }
                 });
 
+                // Add frame skip switching.
+                menu.add(new JMenu("Frame Skip")
+                {
+                    {
+                        // A button group for our radio buttons.
+                        ButtonGroup group = new ButtonGroup();
+
+                        // Loop over frame skip policies.
+                        for (final FrameSkip frameSkip : FrameSkip.values())
+                        {
+                            // Create the radio button.
+                            add(new JRadioButtonMenuItem(frameSkip.name)
+                            {
+                                {
+                                    // Add the radio button to the group so they are exclusive.
+                                    group.add(this);
+
+                                    // Make the current policy selected.
+                                    if (frameSkip == Settings.getFrameSkip())
+                                        group.setSelected(getModel(), true);
+
+                                    // Alter settings on click.
+                                    // #action alter frame skip policy on menu click
+                                    addActionListener((e) ->
+                                    {
+                                        Settings.setFrameSkip(frameSkip);
+                                        core.lcd.setFrameSkip(frameSkip);
+                                        group.setSelected(getModel(), true);
+                                    });
+                                }
+                            });
+                        }
+                    }
+                });
+
+                // Add colour correction switching, for Gameboy Color games only.
+                if (core.cartridge.isColorGB)
+                {
+                    menu.add(new JMenu("Color")
+                    {
+                        {
+                            // A button group for our radio buttons.
+                            ButtonGroup group = new ButtonGroup();
+
+                            // Loop over colour corrections.
+                            for (final ColorCorrection correction : ColorCorrection.values())
+                            {
+                                // Create the radio button.
+                                add(new JRadioButtonMenuItem(correction.name)
+                                {
+                                    {
+                                        // Add the radio button to the group so they are exclusive.
+                                        group.add(this);
+
+                                        // Make the current colour correction selected.
+                                        if (correction == Settings.getColorCorrection())
+                                            group.setSelected(getModel(), true);
+
+                                        // Alter settings on click.
+                                        // #action alter colour correction on menu click
+                                        addActionListener((e) ->
+                                        {
+                                            Settings.setColorCorrection(correction);
+                                            core.lcd.setColorCorrection(correction);
+                                            group.setSelected(getModel(), true);
+                                        });
+                                    }
+                                });
+                            }
+                        }
+                    });
+                }
+
                 // Add sound channel enable toggle submenu.
                 menu.add(new JMenu("Sound")
                 {
@@ -865,7 +1013,15 @@ public class Application
                     System.err.println(core.cycle);
 
                     // #save cartridge memory to disk
-                    // Save the cartridge memory if it has a battery.
+                    // If cart ram is being saved in the background, it only needs a final flush.
+                    if (core.saveFlusher != null)
+                    {
+                        System.err.println("Flushing cart ram");
+                        core.saveFlusher.close();
+                        return;
+                    }
+
+                    // Otherwise, save the cartridge memory if it has a battery.
                     try (FileOutputStream f = new FileOutputStream(core.savefile))
                     {
                         if (core.mmu.hasBattery())